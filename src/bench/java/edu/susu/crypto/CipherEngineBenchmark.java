@@ -0,0 +1,113 @@
+package edu.susu.crypto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сравнение реализаций CipherEngine на одних и тех же файлах: процесс cryptoANN на файл,
+ * пул процессов cryptoANN и сеть внутри JVM. Процессы здесь - заглушка StubAnnExecutable,
+ * так что для них измеряется в основном стоимость запуска и обмена, а не вычисления сети
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class CipherEngineBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Engine {
+        @Param({"process", "pool", "java"})
+        String engine;
+
+        @Param({"65536", "16777216"})
+        int size;
+
+        Path storage;
+        CipherEngine cipher;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            storage = Files.createTempDirectory("bench-engine");
+            String launcher = StubAnnExecutable.createLauncher(storage).toString();
+            AnnWorkerPool pool = engine.equals("pool") ? new AnnWorkerPool(launcher, 1, Integer.MAX_VALUE, 60000) : null;
+            ExternalProcessEngine external = new ExternalProcessEngine(launcher, 60000, pool);
+            cipher = engine.equals("java") ? new JavaNetworkEngine(external) : external;
+            Files.write(storage.resolve("train.txt"), new byte[] {1});
+            if (!cipher.train(storage.toString(), "train.txt"))
+                throw new IllegalStateException("Stub training failed");
+            byte[] payload = new byte[size];
+            new Random(42).nextBytes(payload);
+            Files.write(storage.resolve("input.bin"), payload);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            cipher.shutdown();
+            StubAnnExecutable.deleteRecursively(storage.toFile());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Frames {
+        @Param({"16", "64"})
+        int frameSize;
+
+        NeuralNetwork network;
+        ByteBuffer input;
+        ByteBuffer output;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            Path file = Files.createTempFile("bench", ".net");
+            try {
+                StubAnnExecutable.writeNetwork(file, frameSize, 2 * frameSize, 1);
+                network = NeuralNetwork.load(file);
+            } finally {
+                Files.delete(file);
+            }
+            byte[] payload = new byte[1 << 20];
+            new Random(42).nextBytes(payload);
+            input = ByteBuffer.wrap(payload);
+            output = ByteBuffer.allocate(payload.length);
+        }
+    }
+
+    /**
+     * Шифрование и обратное дешифрование файла: файл после итерации возвращается к исходному размеру
+     */
+    @Benchmark
+    public boolean encryptDecrypt(Engine state) {
+        return state.cipher.encrypt(state.storage.toString(), "input.bin")
+                & state.cipher.decrypt(state.storage.toString(), "input.bin");
+    }
+
+    /**
+     * Прямой проход сети по 1 МБ данных в памяти
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public ByteBuffer forwardPass(Frames state) {
+        state.input.clear();
+        state.output.clear();
+        state.network.transform(state.input, state.output);
+        return state.output;
+    }
+}
@@ -0,0 +1,139 @@
+package edu.susu.crypto;
+
+import edu.susu.database.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сохранение загрузок в хранилище и обработка файлов заглушкой cryptoANN
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx1g"})
+public class FileProcessorBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Upload {
+        @Param({"1024", "1048576", "104857600"})
+        int size;
+
+        Path storage;
+        User user;
+        byte[] payload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            storage = Files.createTempDirectory("bench-storage");
+            user = new User();
+            user.setName("benchmark-user");
+            user.setStoragePath(storage.toString());
+            payload = new byte[size];
+            new Random(42).nextBytes(payload);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            StubAnnExecutable.deleteRecursively(storage.toFile());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Cipher {
+        /** process - отдельный процесс на файл, pool - долгоживущий процесс из AnnWorkerPool */
+        @Param({"process", "pool"})
+        String mode;
+
+        Path storage;
+        CipherEngine engine;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            storage = Files.createTempDirectory("bench-ann");
+            String launcher = StubAnnExecutable.createLauncher(storage).toString();
+            byte[] payload = new byte[4096];
+            new Random(42).nextBytes(payload);
+            Files.write(storage.resolve("input.bin"), payload);
+            AnnWorkerPool pool = mode.equals("pool") ? new AnnWorkerPool(launcher, 1, Integer.MAX_VALUE, 60000) : null;
+            engine = new ExternalProcessEngine(launcher, 60000, pool);
+            FileProcessor.setCipherEngine(engine);
+            FileProcessor.setResultCacheEnabled(false);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            engine.shutdown();
+            FileProcessor.setResultCacheEnabled(true);
+            StubAnnExecutable.deleteRecursively(storage.toFile());
+        }
+    }
+
+    /**
+     * Повторная загрузка и шифрование одного и того же файла: после первого раза
+     * результат берётся из ContentStore, сеть не запускается
+     */
+    @State(Scope.Benchmark)
+    public static class CachedCipher {
+        Path storage;
+        User user;
+        byte[] payload;
+        CipherEngine engine;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            storage = Files.createTempDirectory("bench-cached");
+            String launcher = StubAnnExecutable.createLauncher(storage).toString();
+            StubAnnExecutable.writeNetwork(storage.resolve(CipherEngine.ENCRYPTOR_FILE_NAME),
+                    StubAnnExecutable.FRAME_SIZE, StubAnnExecutable.HIDDEN_SIZE, 1);
+            user = new User();
+            user.setName("benchmark-user");
+            user.setStoragePath(storage.toString());
+            payload = new byte[1 << 20];
+            new Random(42).nextBytes(payload);
+            engine = new ExternalProcessEngine(launcher, 60000, null);
+            FileProcessor.setCipherEngine(engine);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            engine.shutdown();
+            StubAnnExecutable.deleteRecursively(storage.toFile());
+        }
+    }
+
+    @Benchmark
+    public Path saveFileInStorage(Upload state) throws Exception {
+        return FileProcessor.saveFileInStorage(state.user, new ByteArrayInputStream(state.payload), "upload.bin");
+    }
+
+    @Benchmark
+    @Warmup(iterations = 2, time = 2)
+    @Measurement(iterations = 3, time = 3)
+    public Path encryptSmallFile(Cipher state) {
+        return FileProcessor.encryptFile(state.storage.toString(), "input.bin");
+    }
+
+    @Benchmark
+    public Path uploadAndEncryptCached(CachedCipher state) throws Exception {
+        FileProcessor.saveFileInStorage(state.user, new ByteArrayInputStream(state.payload), "upload.bin");
+        return FileProcessor.encryptFile(state.storage.toString(), "upload.bin");
+    }
+}
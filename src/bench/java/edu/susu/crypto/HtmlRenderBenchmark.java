@@ -0,0 +1,47 @@
+package edu.susu.crypto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Формирование html-страниц в HTMLFactory
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HtmlRenderBenchmark {
+
+    private String username = "benchmark-user";
+
+    @Benchmark
+    public byte[] staticLoginPage() {
+        return HTMLFactory.createLoginPage();
+    }
+
+    @Benchmark
+    public byte[] loginPageWithMessage() {
+        return HTMLFactory.createLoginPage("Incorrect password.");
+    }
+
+    @Benchmark
+    public byte[] userPage() {
+        return HTMLFactory.createUserPage(username);
+    }
+
+    @Benchmark
+    public byte[] annInitPage() {
+        return HTMLFactory.createANNInitPage(username);
+    }
+}
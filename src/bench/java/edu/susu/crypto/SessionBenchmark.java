@@ -0,0 +1,91 @@
+package edu.susu.crypto;
+
+import edu.susu.database.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Выдача токенов сессии и работа пула сеансов под конкурентной нагрузкой
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionBenchmark {
+
+    private static final int POOL_SESSIONS = 10000;
+
+    @State(Scope.Thread)
+    public static class SingleSession {
+        Session session;
+
+        @Setup
+        public void setUp() {
+            User user = new User();
+            user.setName("benchmark-user");
+            session = new Session(user, 30);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Pool {
+        SessionPool pool;
+        String[] keys;
+        User user;
+
+        @Setup
+        public void setUp() {
+            pool = new SessionPool();
+            keys = new String[POOL_SESSIONS];
+            for (int i = 0; i < POOL_SESSIONS; i++) {
+                User user = new User();
+                user.setName("user" + i);
+                keys[i] = pool.openSession(user, 30);
+            }
+            user = new User();
+            user.setName("benchmark-user");
+        }
+    }
+
+    @Benchmark
+    public String updateToken(SingleSession state) {
+        state.session.updateToken();
+        return state.session.getToken();
+    }
+
+    /**
+     * Обычная страница: счётчик использований растёт, токен обновляется каждые несколько запросов
+     */
+    @Benchmark
+    public String getToken(SingleSession state) {
+        state.session.tokenUsageCount++;
+        return state.session.getToken();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Session getSessionContended(Pool state) {
+        return state.pool.getSession(state.keys[ThreadLocalRandom.current().nextInt(POOL_SESSIONS)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String openSessionContended(Pool state) {
+        String key = state.pool.openSession(state.user, 30);
+        state.pool.closeSession(key);
+        return key;
+    }
+}
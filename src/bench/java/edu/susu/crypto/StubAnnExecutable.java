@@ -0,0 +1,143 @@
+package edu.susu.crypto;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Заглушка cryptoANN для бенчмарков: вместо нейронной сети применяет к файлу XOR с константой.
+ * Поддерживает оба режима запуска: {@code <dir> <file> train|encrypt|decrypt}
+ * и {@code <dir> --worker} (протокол AnnWorker). При обучении записывает случайные сети
+ * в формате NeuralNetwork, чтобы с ними мог работать и JavaNetworkEngine
+ */
+public class StubAnnExecutable {
+
+    private static final byte KEY = 0x5A;
+    static final int FRAME_SIZE = 16;
+    static final int HIDDEN_SIZE = 32;
+    static final int TRAINING_EPOCHS = 5;
+
+    /**
+     * Имитирует эпохи обучения: сообщает о них в стандартный вывод и продолжает
+     * с эпохи, записанной в контрольной точке из CRYPTOANN_CHECKPOINT
+     */
+    private static void train(Path directory) throws IOException {
+        String checkpointPath = System.getenv(ExternalProcessEngine.CHECKPOINT_ENVIRONMENT_VARIABLE);
+        Path checkpoint = (checkpointPath != null) ? Paths.get(checkpointPath) : null;
+        int epoch = 0;
+        if (checkpoint != null && Files.isRegularFile(checkpoint))
+            epoch = Integer.parseInt(new String(Files.readAllBytes(checkpoint), StandardCharsets.US_ASCII).trim());
+        while (epoch < TRAINING_EPOCHS) {
+            epoch++;
+            if (checkpoint != null)
+                Files.write(checkpoint, Integer.toString(epoch).getBytes(StandardCharsets.US_ASCII));
+            System.out.println("epoch " + epoch + "/" + TRAINING_EPOCHS + " loss " + (1.0 / epoch));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 2 && args[1].equals(AnnWorker.WORKER_FLAG)) {
+            serve(args[0]);
+            return;
+        }
+        if (args.length != 3)
+            System.exit(2);
+        System.exit(process(args[0], args[1], args[2]));
+    }
+
+    /**
+     * Создаёт исполняемый сценарий, запускающий заглушку в отдельной JVM
+     * @param directory директория, в которой создаётся сценарий
+     * @return путь к сценарию (для ExternalProcessEngine)
+     */
+    public static Path createLauncher(Path directory) throws IOException {
+        Path launcher = directory.resolve("cryptoANN-stub.sh");
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(launcher))) {
+            writer.println("#!/bin/sh");
+            writer.println("exec \"" + java + "\" -Xshare:auto -XX:TieredStopAtLevel=1 -cp \""
+                    + System.getProperty("java.class.path") + "\" " + StubAnnExecutable.class.getName() + " \"$@\"");
+        }
+        if (!launcher.toFile().setExecutable(true))
+            throw new IOException("Cannot make " + launcher + " executable");
+        return launcher;
+    }
+
+    private static int process(String directoryPath, String fileName, String mode) throws IOException {
+        Path directory = Paths.get(directoryPath);
+        switch (mode) {
+            case "train":
+                train(directory);
+                writeNetwork(directory.resolve(CipherEngine.ENCRYPTOR_FILE_NAME), FRAME_SIZE, HIDDEN_SIZE, 1);
+                writeNetwork(directory.resolve(CipherEngine.DECRYPTOR_FILE_NAME), FRAME_SIZE, HIDDEN_SIZE, 2);
+                return 0;
+            case "encrypt":
+            case "decrypt":
+                Path file = directory.resolve(fileName);
+                byte[] data = Files.readAllBytes(file);
+                for (int i = 0; i < data.length; i++)
+                    data[i] ^= KEY;
+                Files.write(file, data);
+                return 0;
+            default:
+                return 1;
+        }
+    }
+
+    private static void serve(String directoryPath) throws IOException {
+        DataInputStream requests = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream responses = new DataOutputStream(new BufferedOutputStream(System.out));
+        while (true) {
+            String command, fileName;
+            try {
+                command = requests.readUTF();
+                fileName = requests.readUTF();
+            } catch (EOFException e) {
+                return;
+            }
+            if (command.equals("quit"))
+                return;
+            int status = command.equals("ping") ? 0 : process(directoryPath, fileName, command);
+            responses.writeInt(status);
+            responses.flush();
+        }
+    }
+
+    /**
+     * Записывает сеть со случайными весами: frameSize входов, один скрытый слой, frameSize выходов
+     */
+    static void writeNetwork(Path path, int frameSize, int hiddenSize, long seed) throws IOException {
+        Random random = new Random(seed);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(frameSize);
+            out.writeInt(2);
+            int inputs = frameSize;
+            for (int outputs : new int[] {hiddenSize, frameSize}) {
+                out.writeInt(outputs);
+                for (int i = 0; i < outputs * inputs; i++)
+                    out.writeFloat((float) random.nextGaussian());
+                for (int i = 0; i < outputs; i++)
+                    out.writeFloat((float) random.nextGaussian());
+                inputs = outputs;
+            }
+        }
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                deleteRecursively(child);
+        file.delete();
+    }
+}
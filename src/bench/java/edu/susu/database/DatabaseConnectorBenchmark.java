@@ -0,0 +1,62 @@
+package edu.susu.database;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Чтение пользователей из встроенной Derby в памяти, с кешем пользователей и без него
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DatabaseConnectorBenchmark {
+
+	private static final int USERS = 1000;
+
+	@Param({"true", "false"})
+	boolean cached;
+
+	private DatabaseConnector db;
+
+	@Setup
+	public void setUp() throws Exception {
+		db = new DatabaseConnector(DatabaseConnector.EMBEDDED_DERBY_DRIVER, "jdbc:derby:memory:", "bench" + System.nanoTime());
+		db.connect();
+		db.configureUserCache(cached ? USERS : 0, TimeUnit.MINUTES.toMillis(5));
+		for (int i = 0; i < USERS; i++)
+			db.addUser("user" + i, new byte[32]);
+	}
+
+	@TearDown
+	public void tearDown() {
+		db.close();
+	}
+
+	@Benchmark
+	public User getUser() {
+		return db.getUser("user" + ThreadLocalRandom.current().nextInt(USERS));
+	}
+
+	@Benchmark
+	@Threads(8)
+	public User getUserContended() {
+		return db.getUser("user" + ThreadLocalRandom.current().nextInt(USERS));
+	}
+}
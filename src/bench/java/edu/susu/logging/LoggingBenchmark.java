@@ -0,0 +1,65 @@
+package edu.susu.logging;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Стоимость вызова журнала для потока, который пишет: отключённый уровень и запись в буфер.
+ * Журнал пишется в файлы во временной директории; если фоновый поток не успевает,
+ * записи INFO отбрасываются, так что замер - это цена публикации, а не ввода-вывода
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoggingBenchmark {
+
+    private Logger log;
+    private long counter;
+
+    @Setup
+    public void setUp() throws IOException {
+        LogManager.configureFiles(Level.INFO, Files.createTempDirectory("log-bench"), 64L * 1024 * 1024, 2,
+                LogManager.DEFAULT_BUFFER_SIZE);
+        log = LogManager.getLogger(LoggingBenchmark.class);
+        LogContext.put("user", "benchmark");
+    }
+
+    @TearDown
+    public void tearDown() {
+        LogContext.clear();
+        LogManager.shutdown();
+    }
+
+    @Benchmark
+    public void disabledDebug() {
+        log.debug("Processed file {} in {} ms", "data.bin", counter++);
+    }
+
+    @Benchmark
+    public void enabledInfo() {
+        log.info("Processed file {} in {} ms", "data.bin", counter++);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void enabledInfoContended() {
+        log.info("Processed file {} in {} ms", "data.bin", counter++);
+    }
+}
@@ -0,0 +1,70 @@
+package edu.susu.metrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Стоимость записи в метрики на горячем пути: счётчик, гистограмма, поиск экземпляра по меткам
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    private MetricFamily<Histogram> durations;
+    private Histogram histogram;
+    private LongAdder counter;
+    private MetricRegistry registry;
+
+    @Setup
+    public void setUp() {
+        registry = new MetricRegistry();
+        durations = registry.histogram("benchmark_duration_seconds", "Benchmark", "route");
+        histogram = durations.labels("/{usr}/upload");
+        counter = registry.counter("benchmark_total", "Benchmark").get();
+        for (int i = 0; i < 20; i++)
+            durations.labels("/route" + i).record(i * 1000);
+    }
+
+    @Benchmark
+    public void counterIncrement() {
+        counter.increment();
+    }
+
+    @Benchmark
+    public void histogramRecord() {
+        histogram.record(ThreadLocalRandom.current().nextLong(1 << 30));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void histogramRecordContended() {
+        histogram.record(ThreadLocalRandom.current().nextLong(1 << 30));
+    }
+
+    @Benchmark
+    public void histogramLabelLookup() {
+        durations.labels("/{usr}/upload").record(ThreadLocalRandom.current().nextLong(1 << 30));
+    }
+
+    @Benchmark
+    public String scrape() {
+        return registry.scrape();
+    }
+}
@@ -0,0 +1,73 @@
+package edu.susu.crypto;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.ext.Provider;
+
+import edu.susu.logging.LogContext;
+import edu.susu.logging.LogManager;
+import edu.susu.logging.Logger;
+
+/**
+ * Журнал доступа вместо LoggingFilter: одна строка на запрос (метод, путь, код, время) без тел и заголовков.
+ * Успешные быстрые запросы попадают в журнал выборочно, ошибки сервера и медленные запросы - всегда.
+ * Заодно задаёт поля журнала потока (пользователь, маршрут, сеанс) для записей, сделанных при обработке запроса
+ */
+@Provider
+public class AccessLogFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+    private static final Logger log = LogManager.getLogger("access");
+
+    private static volatile int sampleRate = 1; // инициализируется в ServiceContextListener
+    private static volatile long slowRequestNanos = TimeUnit.SECONDS.toNanos(1);
+
+    @Context
+    private ResourceInfo resourceInfo;
+
+    /**
+     * @param rate в журнал попадает в среднем один из rate успешных запросов; 0 - ни одного
+     * @param slowMillis запросы дольше этого времени записываются всегда; 0 - не выделять медленные
+     */
+    static void configure(int rate, long slowMillis) {
+        sampleRate = Math.max(0, rate);
+        slowRequestNanos = (slowMillis > 0) ? TimeUnit.MILLISECONDS.toNanos(slowMillis) : Long.MAX_VALUE;
+    }
+
+    @Override
+    public void filter(ContainerRequestContext request) {
+        LogContext.clear();
+        Method method = resourceInfo.getResourceMethod();
+        if (method != null)
+            LogContext.put("route", RequestMetricsFilter.route(resourceInfo.getResourceClass(), method));
+        LogContext.put("user", request.getUriInfo().getPathParameters().getFirst("usr"));
+        Cookie session = request.getCookies().get("session");
+        // ключ сеанса - секрет, в журнал попадает только его отпечаток
+        if (session != null && !session.getValue().isEmpty())
+            LogContext.put("session", Integer.toHexString(session.getValue().hashCode()));
+    }
+
+    @Override
+    public void filter(ContainerRequestContext request, ContainerResponseContext response) {
+        Object start = request.getProperty(RequestMetricsFilter.START_PROPERTY);
+        long elapsed = (start != null) ? System.nanoTime() - (Long) start : -1;
+        int status = response.getStatus();
+        if (status >= 500 || elapsed >= slowRequestNanos || sampled())
+            log.info("{} {} {} {} ms", request.getMethod(), request.getUriInfo().getRequestUri().getRawPath(),
+                    status, (elapsed >= 0) ? TimeUnit.NANOSECONDS.toMillis(elapsed) : "-");
+        LogContext.clear();
+    }
+
+    private static boolean sampled() {
+        int rate = sampleRate;
+        return rate == 1 || (rate > 1 && ThreadLocalRandom.current().nextInt(rate) == 0);
+    }
+}
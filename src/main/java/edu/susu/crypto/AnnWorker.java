@@ -0,0 +1,138 @@
+package edu.susu.crypto;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Долгоживущий процесс cryptoANN, загрузивший сеть одного пользователя.
+ * Процесс запускается как {@code cryptoANN <directoryPath> --worker} и обменивается
+ * с сервисом кадрами через stdin/stdout:
+ * запрос - две строки в формате DataOutputStream.writeUTF (команда и имя файла),
+ * ответ - код завершения int (0 - успех). Команды: encrypt, decrypt, ping, quit
+ */
+class AnnWorker {
+
+    static final String WORKER_FLAG = "--worker";
+
+    private final String directoryPath;
+    private final Process process;
+    private final DataOutputStream requests;
+    private final DataInputStream responses;
+    private int jobsDone = 0;
+    private volatile long lastUsed = System.currentTimeMillis();
+    private volatile boolean timedOut = false;
+
+    private AnnWorker(String directoryPath, Process process) {
+        this.directoryPath = directoryPath;
+        this.process = process;
+        this.requests = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+        this.responses = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+    }
+
+    /**
+     * Запускает процесс и проверяет, что он отвечает на ping
+     * @param executablePath путь к исполняемому файлу cryptoANN
+     * @param directoryPath директория пользователя с файлами сети
+     * @param watchdog планировщик, прерывающий зависшие обмены
+     * @param timeoutMillis время ожидания ответа
+     * @return готовый к работе процесс
+     * @throws IOException если процесс не удалось запустить или он не поддерживает протокол
+     */
+    static AnnWorker start(String executablePath, String directoryPath, ScheduledExecutorService watchdog, long timeoutMillis) throws IOException {
+        Process process = new ProcessBuilder(executablePath, directoryPath, WORKER_FLAG)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        AnnWorker worker = new AnnWorker(directoryPath, process);
+        try {
+            if (worker.call("ping", "", watchdog, timeoutMillis) == 0)
+                return worker;
+        } catch (IOException e) {
+            worker.kill();
+            throw e;
+        }
+        worker.kill();
+        throw new IOException("cryptoANN worker failed the handshake");
+    }
+
+    String getDirectoryPath() {
+        return directoryPath;
+    }
+
+    int getJobsDone() {
+        return jobsDone;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    boolean isAlive() {
+        return process.isAlive();
+    }
+
+    /**
+     * Выполняет команду; если процесс не ответил за отведённое время, он уничтожается
+     * @return код завершения команды
+     * @throws IOException если обмен прерван (в том числе по таймауту) или планировщик остановлен
+     */
+    int call(String command, String fileName, ScheduledExecutorService watchdog, long timeoutMillis) throws IOException {
+        // без таймаута зависший процесс держал бы поток вечно, поэтому без планировщика команда не отправляется
+        ScheduledFuture<?> timeout;
+        try {
+            timeout = watchdog.schedule(this::timeOut, timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            throw new IOException("cryptoANN worker watchdog is shut down");
+        }
+        try {
+            requests.writeUTF(command);
+            requests.writeUTF(fileName);
+            requests.flush();
+            int status = responses.readInt();
+            if (!command.equals("ping")) {
+                jobsDone++;
+                lastUsed = System.currentTimeMillis();
+            }
+            return status;
+        } catch (IOException e) {
+            if (timedOut)
+                throw new IOException("no response in " + timeoutMillis + " ms", e);
+            throw e;
+        } finally {
+            timeout.cancel(false);
+        }
+    }
+
+    /**
+     * Просит процесс завершиться, а если он не реагирует - уничтожает
+     */
+    void close() {
+        try {
+            requests.writeUTF("quit");
+            requests.writeUTF("");
+            requests.flush();
+            if (process.waitFor(1, TimeUnit.SECONDS))
+                return;
+        } catch (IOException e) {
+            // процесс уже завершён
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        kill();
+    }
+
+    private void timeOut() {
+        timedOut = true;
+        kill();
+    }
+
+    void kill() {
+        process.destroyForcibly();
+    }
+}
@@ -0,0 +1,264 @@
+package edu.susu.crypto;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.susu.logging.LogManager;
+import edu.susu.logging.Logger;
+
+/**
+ * Пул долгоживущих процессов cryptoANN. Процессы привязаны к директории пользователя,
+ * так что сеть загружается с диска один раз на процесс, а не на каждый файл.
+ * Процесс перезапускается после заданного числа заданий, уничтожается при зависании
+ * и периодически проверяется командой ping, пока простаивает. Простаивающие процессы пингуются
+ * параллельно и с коротким таймаутом, чтобы один зависший процесс не задерживал проверку остальных
+ */
+public class AnnWorkerPool {
+
+    private static final Logger log = LogManager.getLogger(AnnWorkerPool.class);
+
+    private static final long HEALTH_CHECK_PERIOD_SECONDS = 30;
+    private static final long IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000;
+    private static final long PING_TIMEOUT_MILLIS = 10 * 1000;
+
+    private final String executablePath;
+    private final int maxIdleWorkers;
+    private final int maxJobsPerWorker;
+    private final long timeoutMillis;
+    private final ScheduledExecutorService watchdog;
+    private final ExecutorService pings;
+    // доступ к полям ниже - только под монитором this
+    private final Map<String, Deque<AnnWorker>> idle = new HashMap<>();
+    private final Map<String, Integer> generations = new HashMap<>();
+    private final Map<AnnWorker, Integer> workerGenerations = new HashMap<>();
+    private int idleCount = 0;
+    private boolean shutdown = false;
+
+    /**
+     * @param executablePath путь к исполняемому файлу cryptoANN
+     * @param maxIdleWorkers сколько простаивающих процессов держать загруженными
+     * @param maxJobsPerWorker после скольких заданий процесс перезапускается
+     * @param timeoutMillis время, после которого не ответивший процесс уничтожается
+     */
+    public AnnWorkerPool(String executablePath, int maxIdleWorkers, int maxJobsPerWorker, long timeoutMillis) {
+        this.executablePath = executablePath;
+        this.maxIdleWorkers = maxIdleWorkers;
+        this.maxJobsPerWorker = maxJobsPerWorker;
+        this.timeoutMillis = timeoutMillis;
+        // два потока: проверка простаивающих процессов не должна мешать срабатыванию таймаутов
+        this.watchdog = Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "ann-worker-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.pings = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "ann-worker-ping-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog.scheduleWithFixedDelay(this::checkIdleWorkers,
+                HEALTH_CHECK_PERIOD_SECONDS, HEALTH_CHECK_PERIOD_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Выполняет команду сети пользователя в одном из процессов пула
+     * @param directoryPath директория пользователя
+     * @param command encrypt или decrypt
+     * @param fileName имя файла в директории пользователя
+     * @return код завершения команды; -1, если процесс не ответил вовремя или пул остановлен.
+     * Команда, переданная процессу, не повторяется: зависший на файле процесс, скорее всего, завис бы и снова
+     * @throws IOException если процесс не удалось запустить
+     */
+    public int execute(String directoryPath, String command, String fileName) throws IOException {
+        AnnWorker worker;
+        try {
+            if (isShutdown())
+                return shutDown(command, fileName);
+            worker = acquire(directoryPath);
+        } catch (IOException e) {
+            if (isShutdown())
+                return shutDown(command, fileName);
+            throw e;
+        }
+        boolean healthy = false;
+        try {
+            int status = worker.call(command, fileName, watchdog, timeoutMillis);
+            healthy = true;
+            return status;
+        } catch (IOException e) {
+            log.warn("cryptoANN worker failed on {} of {}, not retrying", command, fileName, e);
+            return -1;
+        } finally {
+            release(worker, healthy);
+        }
+    }
+
+    private synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    private static int shutDown(String command, String fileName) {
+        log.warn("cryptoANN worker pool is shut down, {} of {} is not run", command, fileName);
+        return -1;
+    }
+
+    /**
+     * Останавливает процессы, загрузившие устаревшую сеть пользователя (например, после переобучения).
+     * Занятые процессы завершаются по окончании текущего задания
+     * @param directoryPath директория пользователя
+     */
+    public void invalidate(String directoryPath) {
+        List<AnnWorker> retired;
+        synchronized (this) {
+            generations.merge(directoryPath, 1, Integer::sum);
+            Deque<AnnWorker> workers = idle.remove(directoryPath);
+            retired = (workers == null) ? new ArrayList<>() : new ArrayList<>(workers);
+            for (AnnWorker worker : retired)
+                forget(worker);
+        }
+        for (AnnWorker worker : retired)
+            worker.close();
+    }
+
+    /**
+     * Завершает все простаивающие процессы и останавливает проверки
+     */
+    public void shutdown() {
+        List<AnnWorker> retired = new ArrayList<>();
+        synchronized (this) {
+            shutdown = true;
+            for (Deque<AnnWorker> workers : idle.values())
+                retired.addAll(workers);
+            idle.clear();
+            workerGenerations.clear();
+            idleCount = 0;
+        }
+        for (AnnWorker worker : retired)
+            worker.close();
+        pings.shutdownNow();
+        watchdog.shutdownNow();
+    }
+
+    private AnnWorker acquire(String directoryPath) throws IOException {
+        int generation;
+        synchronized (this) {
+            Deque<AnnWorker> workers = idle.get(directoryPath);
+            while (workers != null && !workers.isEmpty()) {
+                AnnWorker worker = workers.pollFirst();
+                idleCount--;
+                if (workers.isEmpty())
+                    idle.remove(directoryPath);
+                if (worker.isAlive())
+                    return worker;
+                forget(worker);
+            }
+            generation = generations.getOrDefault(directoryPath, 0);
+        }
+        AnnWorker worker = AnnWorker.start(executablePath, directoryPath, watchdog, timeoutMillis);
+        synchronized (this) {
+            workerGenerations.put(worker, generation);
+        }
+        return worker;
+    }
+
+    private void release(AnnWorker worker, boolean healthy) {
+        List<AnnWorker> retired = new ArrayList<>();
+        synchronized (this) {
+            boolean stale = !generations.getOrDefault(worker.getDirectoryPath(), 0)
+                    .equals(workerGenerations.get(worker));
+            if (shutdown || !healthy || stale || !worker.isAlive() || worker.getJobsDone() >= maxJobsPerWorker) {
+                forget(worker);
+                retired.add(worker);
+            } else {
+                idle.computeIfAbsent(worker.getDirectoryPath(), key -> new ArrayDeque<>()).addFirst(worker);
+                idleCount++;
+                while (idleCount > maxIdleWorkers) {
+                    AnnWorker eldest = pollLeastRecentlyUsed();
+                    forget(eldest);
+                    retired.add(eldest);
+                }
+            }
+        }
+        for (AnnWorker retiredWorker : retired)
+            retiredWorker.close();
+    }
+
+    /**
+     * Пингует простаивающие процессы и завершает зависшие и давно не использовавшиеся
+     */
+    private void checkIdleWorkers() {
+        List<AnnWorker> candidates = new ArrayList<>();
+        synchronized (this) {
+            for (Deque<AnnWorker> workers : idle.values())
+                candidates.addAll(workers);
+            idle.clear();
+            idleCount = 0;
+        }
+        long threshold = System.currentTimeMillis() - IDLE_TIMEOUT_MILLIS;
+        long pingTimeout = Math.min(timeoutMillis, PING_TIMEOUT_MILLIS);
+        List<Callable<Void>> checks = new ArrayList<>(candidates.size());
+        for (AnnWorker worker : candidates) {
+            if (worker.getLastUsed() < threshold) {
+                release(worker, false);
+                continue;
+            }
+            checks.add(() -> {
+                boolean healthy = false;
+                try {
+                    healthy = worker.call("ping", "", watchdog, pingTimeout) == 0;
+                } catch (IOException e) {
+                    log.warn("cryptoANN worker for {} failed the health check: {}", worker.getDirectoryPath(), e.getMessage());
+                } finally {
+                    release(worker, healthy);
+                }
+                return null;
+            });
+        }
+        if (checks.isEmpty())
+            return;
+        try {
+            pings.invokeAll(checks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RejectedExecutionException e) {
+            // пул останавливается
+            for (AnnWorker worker : candidates)
+                release(worker, false);
+        }
+    }
+
+    private AnnWorker pollLeastRecentlyUsed() {
+        String eldestKey = null;
+        AnnWorker eldest = null;
+        for (Map.Entry<String, Deque<AnnWorker>> entry : idle.entrySet()) {
+            AnnWorker candidate = entry.getValue().peekLast();
+            if (eldest == null || candidate.getLastUsed() < eldest.getLastUsed()) {
+                eldest = candidate;
+                eldestKey = entry.getKey();
+            }
+        }
+        Deque<AnnWorker> workers = idle.get(eldestKey);
+        workers.pollLast();
+        if (workers.isEmpty())
+            idle.remove(eldestKey);
+        idleCount--;
+        return eldest;
+    }
+
+    private void forget(AnnWorker worker) {
+        workerGenerations.remove(worker);
+    }
+}
@@ -0,0 +1,250 @@
+package edu.susu.crypto;
+
+import edu.susu.database.User;
+import edu.susu.exception.QuotaExceededException;
+import edu.susu.exception.UploadLimitExceededException;
+import edu.susu.logging.LogManager;
+import edu.susu.logging.Logger;
+import edu.susu.metrics.MetricFamily;
+import edu.susu.metrics.MetricRegistry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Пакетная обработка загрузок: файлы пакета сохраняются по мере поступления и сразу передаются
+ * нейронной сети в общем пуле потоков. Для zip-архива в теле запроса это значит, что приём следующих
+ * файлов идёт одновременно с шифрованием предыдущих; форму multipart Jersey разбирает целиком
+ * до вызова обработчика, так что для неё одновременно идут только сохранение и шифрование.
+ * У каждого пакета в обработке не больше файлов, чем потоков в пуле: приём ждёт, пока сеть
+ * освободится, и одновременные пакеты разных пользователей обслуживаются вперемешку
+ */
+public class BatchProcessor {
+
+    private static final Logger log = LogManager.getLogger(BatchProcessor.class);
+
+    public static final int DEFAULT_MAX_FILES = 10000;
+
+    private static final MetricFamily<LongAdder> files = MetricRegistry.getDefault().counter(
+            "cryptoann_batch_files_total", "Files processed by batch uploads", "mode", "outcome");
+
+    private final int parallelism;
+    private final int maxFiles;
+    private final ExecutorService executor;
+
+    /**
+     * Создаёт обработчик со своим пулом потоков
+     * @param parallelism сколько файлов обрабатывается одновременно; если не больше нуля, берётся число ядер процессора
+     * @param maxFiles максимальное число файлов в пакете
+     */
+    public BatchProcessor(int parallelism, int maxFiles) {
+        if (parallelism <= 0)
+            parallelism = Runtime.getRuntime().availableProcessors();
+        this.parallelism = parallelism;
+        this.maxFiles = maxFiles;
+        final int[] threadNumber = {0};
+        this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread;
+            synchronized (threadNumber) {
+                thread = new Thread(runnable, "ann-batch-worker-" + threadNumber[0]++);
+            }
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    /**
+     * Начинает пакет
+     * @param user пользователь с созданной директорией хранилища
+     * @param mode режим нейронной сети: encrypt, decrypt
+     */
+    public Batch open(User user, String mode) {
+        UserActivity.started(user.getName());
+        return new Batch(user, mode);
+    }
+
+    /**
+     * Останавливает пул; файлы, не дождавшиеся обработки, помечаются как неудавшиеся
+     */
+    public void shutdown() {
+        for (Runnable dropped : executor.shutdownNow())
+            if (dropped instanceof Batch.Task)
+                ((Batch.Task) dropped).cancel();
+    }
+
+    /**
+     * Итог обработки файла пакета
+     */
+    public enum Status { DONE, FAILED, TOO_LARGE, QUOTA_EXCEEDED, SKIPPED }
+
+    /**
+     * Файл пакета: исходное имя, имя в хранилище и итог обработки
+     */
+    public static final class Entry {
+        private final String fileName;
+        private final String storedFileName;
+        private volatile Status status;
+
+        Entry(String fileName, String storedFileName) {
+            this.fileName = fileName;
+            this.storedFileName = storedFileName;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * @return имя в хранилище; null, если файл пропущен
+         */
+        public String getStoredFileName() {
+            return storedFileName;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+    }
+
+    /**
+     * Пакет одного запроса. Файлы добавляются одним потоком - потоком, читающим запрос.
+     * Пакет нужно закрыть, когда запрос обработан
+     */
+    public final class Batch implements AutoCloseable {
+        private final User user;
+        private final String mode;
+        private final String id = UUID.randomUUID().toString().substring(0, 8);
+        private final List<Entry> entries = new ArrayList<>();
+        private final Semaphore slots = new Semaphore(parallelism);
+        private boolean closed;
+
+        private Batch(User user, String mode) {
+            this.user = user;
+            this.mode = mode;
+        }
+
+        /**
+         * Сохраняет файл в хранилище пользователя и ставит его в обработку.
+         * Ждёт, если сеть уже обрабатывает столько файлов пакета, сколько потоков в пуле.
+         * Файлы сверх допустимого числа не читаются и отмечаются как пропущенные
+         * @param fileName исходное имя файла
+         * @param content содержимое; закрывается после чтения
+         * @throws InterruptedException если поток прерван в ожидании
+         */
+        public void add(String fileName, InputStream content) throws InterruptedException {
+            if (entries.size() >= maxFiles) {
+                Entry skipped = new Entry(fileName, null);
+                entries.add(skipped);
+                complete(skipped, Status.SKIPPED);
+                try {
+                    content.close();
+                } catch (IOException e) {
+                    log.warn("Failed to close skipped batch file {}", fileName, e);
+                }
+                return;
+            }
+            // имена в пакете могут повторяться, в хранилище файлы различаются номером
+            Entry entry = new Entry(fileName, "batch-" + id + "-" + entries.size() + "-" + fileName);
+            entries.add(entry);
+            Path saved;
+            try {
+                saved = FileProcessor.saveFileInStorage(user, content, entry.storedFileName);
+            } catch (QuotaExceededException e) {
+                complete(entry, Status.QUOTA_EXCEEDED);
+                return;
+            } catch (UploadLimitExceededException e) {
+                complete(entry, Status.TOO_LARGE);
+                return;
+            }
+            if (saved == null) {
+                complete(entry, Status.FAILED);
+                return;
+            }
+            slots.acquire();
+            Task task = new Task(entry);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.cancel();
+            }
+        }
+
+        /**
+         * Дожидается обработки всех файлов пакета
+         * @return файлы пакета в порядке добавления
+         * @throws InterruptedException если поток прерван в ожидании
+         */
+        public List<Entry> finish() throws InterruptedException {
+            slots.acquire(parallelism);
+            slots.release(parallelism);
+            return Collections.unmodifiableList(entries);
+        }
+
+        /**
+         * Закрывает пакет: файлы, обработка которых ещё идёт, пользователю уже не сообщаются
+         */
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            UserActivity.finished(user.getName());
+        }
+
+        /**
+         * Обработка файла; занимает место пакета в пуле и освобождает его по завершении или отмене
+         */
+        private final class Task implements Runnable {
+            private final Entry entry;
+
+            Task(Entry entry) {
+                this.entry = entry;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    complete(entry, process(entry) ? Status.DONE : Status.FAILED);
+                } finally {
+                    slots.release();
+                }
+            }
+
+            void cancel() {
+                complete(entry, Status.FAILED);
+                slots.release();
+            }
+        }
+
+        private boolean process(Entry entry) {
+            try {
+                Path output = (mode.equals("encrypt"))
+                        ? FileProcessor.encryptFile(user.getStoragePath(), entry.storedFileName)
+                        : FileProcessor.decryptFile(user.getStoragePath(), entry.storedFileName);
+                return output != null;
+            } catch (RuntimeException e) {
+                log.error("Batch file {} failed", entry.storedFileName, e);
+                return false;
+            }
+        }
+
+        private void complete(Entry entry, Status status) {
+            entry.status = status;
+            files.labels(mode, status.name().toLowerCase()).increment();
+        }
+    }
+}
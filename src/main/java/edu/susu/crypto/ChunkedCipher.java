@@ -0,0 +1,599 @@
+package edu.susu.crypto;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Поблочная параллельная обработка больших файлов нейронной сетью.
+ * Файл делится на блоки фиксированного размера, блоки шифруются одновременно несколькими
+ * экземплярами нейронной сети пользователя (CipherEngine) и собираются по порядку в контейнер с индексом блоков,
+ * поэтому дешифрование тоже выполняется параллельно.
+ * <p>
+ * Контейнер записывается последовательно, поэтому его можно отдавать клиенту по мере шифрования,
+ * а дешифровать как из файла по индексу, так и из потока по записям блоков.
+ * <p>
+ * Формат контейнера (версия 2, целые числа - big-endian):
+ * <pre>
+ * заголовок: int MAGIC, short VERSION, int размер блока
+ * блоки:     int длина открытого блока, int длина шифроблока, байты шифроблока
+ * конец:     int -1 (в версии 1 отсутствует)
+ * индекс:    int число блоков, затем для каждого блока
+ *            long смещение записи блока, int длина открытого блока, int длина шифроблока
+ * концовка:  long смещение индекса, int MAGIC
+ * </pre>
+ */
+public class ChunkedCipher {
+
+    /** "CANN" */
+    static final int MAGIC = 0x43414E4E;
+    static final short VERSION = 2;
+    static final int DEFAULT_BLOCK_SIZE = 64 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = 4 + 2 + 4;
+    private static final int BLOCK_HEADER_SIZE = 4 + 4;
+    private static final int INDEX_ENTRY_SIZE = 8 + 4 + 4;
+    private static final int FOOTER_SIZE = 8 + 4;
+    private static final int END_OF_BLOCKS = -1;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    /** Дешифрует контейнеры, когда поблочный режим выключен: блоки по очереди в вызывающем потоке */
+    static final ChunkedCipher SEQUENTIAL = new ChunkedCipher(DEFAULT_BLOCK_SIZE);
+
+    private final int blockSize;
+    private final int parallelism;
+    private final ExecutorService executor;
+
+    /**
+     * Создаёт обработчик со своим пулом потоков
+     * @param blockSize размер блока в байтах
+     * @param parallelism число одновременно обрабатываемых блоков; если не больше нуля, берётся число ядер процессора
+     */
+    public ChunkedCipher(int blockSize, int parallelism) {
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("Block size must be positive");
+        if (parallelism <= 0)
+            parallelism = Runtime.getRuntime().availableProcessors();
+        this.blockSize = blockSize;
+        this.parallelism = parallelism;
+        final int[] threadNumber = {0};
+        this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread;
+            synchronized (threadNumber) {
+                thread = new Thread(runnable, "ann-block-worker-" + threadNumber[0]++);
+            }
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private ChunkedCipher(int blockSize) {
+        this.blockSize = blockSize;
+        this.parallelism = 1;
+        this.executor = null;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void shutdown() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    /**
+     * Проверяет, является ли файл контейнером поблочного шифрования. Кроме сигнатур сверяются
+     * поля заголовка и концовки: шифротекст без контейнера может случайно начинаться и кончаться
+     * сигнатурой, но вряд ли при этом в нём сойдутся версия, размер блока и положение индекса
+     * @param path путь к файлу
+     * @return true, если заголовок, концовка и число блоков индекса согласованы с размером файла
+     */
+    static boolean isContainer(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE + 4 + FOOTER_SIZE)
+                return false;
+            ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC)
+                return false;
+            short version = header.getShort();
+            if (version < 1 || version > VERSION || header.getInt() <= 0)
+                return false;
+            ByteBuffer footer = readFully(channel, size - FOOTER_SIZE, FOOTER_SIZE);
+            long indexOffset = footer.getLong();
+            if (footer.getInt() != MAGIC || indexOffset < HEADER_SIZE || indexOffset > size - FOOTER_SIZE - 4)
+                return false;
+            int count = readFully(channel, indexOffset, 4).getInt();
+            return count >= 0 && indexOffset + 4 + (long) count * INDEX_ENTRY_SIZE == size - FOOTER_SIZE;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Шифрует файл поблочно и заменяет его контейнером
+     * @param directoryPath директория пользователя с его нейронной сетью
+     * @param fileName имя файла в директории
+     * @throws IOException при ошибке ввода-вывода или если нейронная сеть не смогла обработать блок
+     */
+    public void encrypt(String directoryPath, String fileName) throws IOException {
+        Path source = Paths.get(directoryPath, fileName);
+        Path container = Files.createTempFile(source.getParent(), "container", ".part");
+        try (InputStream in = Files.newInputStream(source);
+             OutputStream out = Files.newOutputStream(container)) {
+            encrypt(directoryPath, in, out);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(container);
+            throw e;
+        }
+        FileProcessor.moveReplacing(container, source);
+    }
+
+    /**
+     * Шифрует поток поблочно, записывая контейнер в выходной поток по мере готовности блоков.
+     * Входной поток читается, только пока в обработке меньше двух блоков на поток,
+     * так что медленный получатель притормаживает и чтение, а память не зависит от размера данных.
+     * Если реализация сети обрабатывает блоки в памяти ({@link CipherEngine#processesBlocks}), открытые
+     * данные не попадают на диск, а в памяти - не больше двух блоков на поток вместе с результатами.
+     * cryptoANN обрабатывает только файлы, поэтому с ним каждый обрабатываемый блок временно лежит
+     * в директории пользователя и удаляется сразу после обработки
+     * @param directoryPath директория пользователя с его нейронной сетью
+     * @param source открытые данные; не закрывается
+     * @param target получатель контейнера; не закрывается
+     * @throws IOException при ошибке ввода-вывода или если нейронная сеть не смогла обработать блок
+     */
+    public void encrypt(String directoryPath, InputStream source, OutputStream target) throws IOException {
+        Path directory = Paths.get(directoryPath);
+        CipherEngine engine = FileProcessor.getCipherEngine();
+        boolean inMemory = engine.processesBlocks();
+        ArrayDeque<Future<Block>> window = new ArrayDeque<>();
+        List<long[]> index = new ArrayList<>();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(target, STREAM_BUFFER_SIZE));
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(blockSize);
+            long written = HEADER_SIZE;
+            boolean endOfInput = false;
+            long blockNumber = 0;
+            while (!endOfInput || !window.isEmpty()) {
+                while (!endOfInput && window.size() < 2 * parallelism) {
+                    final long number = blockNumber;
+                    Callable<Block> task;
+                    int length;
+                    if (inMemory) {
+                        ByteBuffer plain = readBlock(source, blockSize);
+                        length = plain.remaining();
+                        task = () -> processBlock(engine, directoryPath, plain, length, "encrypt", number);
+                    } else {
+                        Path blockPath = Files.createTempFile(directory, "block", ".part");
+                        try (OutputStream blockOut = Files.newOutputStream(blockPath)) {
+                            length = copy(source, blockOut, blockSize, buffer);
+                        } catch (IOException | RuntimeException e) {
+                            Files.deleteIfExists(blockPath);
+                            throw e;
+                        }
+                        if (length == 0)
+                            Files.delete(blockPath);
+                        task = () -> processBlock(directory, blockPath, length, "encrypt", number);
+                    }
+                    if (length < blockSize)
+                        endOfInput = true;
+                    if (length == 0)
+                        break;
+                    blockNumber++;
+                    window.addLast(submit(task));
+                }
+                if (window.isEmpty())
+                    break;
+                Block block = await(window.removeFirst());
+                try {
+                    long cipherLength = block.length();
+                    out.writeInt(block.plainLength);
+                    out.writeInt((int) cipherLength);
+                    block.writeTo(out);
+                    index.add(new long[] {written, block.plainLength, cipherLength});
+                    written += BLOCK_HEADER_SIZE + cipherLength;
+                } finally {
+                    block.discard();
+                }
+            }
+            out.writeInt(END_OF_BLOCKS);
+            long indexOffset = written + 4;
+            out.writeInt(index.size());
+            for (long[] entry : index) {
+                out.writeLong(entry[0]);
+                out.writeInt((int) entry[1]);
+                out.writeInt((int) entry[2]);
+            }
+            out.writeLong(indexOffset);
+            out.writeInt(MAGIC);
+            out.flush();
+        } catch (IOException | RuntimeException e) {
+            cancel(window);
+            throw e;
+        }
+    }
+
+    /**
+     * Дешифрует контейнер из потока, записывая открытые данные по порядку по мере готовности блоков.
+     * Блоки читаются последовательно до маркера конца, индекс не нужен; как и при шифровании,
+     * в обработке не больше двух блоков на поток, и блоки не пишутся на диск, если реализация сети
+     * обрабатывает их в памяти
+     * @param directoryPath директория пользователя с его нейронной сетью
+     * @param source контейнер версии 2; не закрывается
+     * @param target получатель открытых данных; не закрывается
+     * @throws IOException при ошибке ввода-вывода, повреждённом или неподдерживаемом контейнере,
+     * или если нейронная сеть не смогла обработать блок
+     */
+    public void decrypt(String directoryPath, InputStream source, OutputStream target) throws IOException {
+        Path directory = Paths.get(directoryPath);
+        CipherEngine engine = FileProcessor.getCipherEngine();
+        boolean inMemory = engine.processesBlocks();
+        ArrayDeque<Future<Block>> window = new ArrayDeque<>();
+        DataInputStream in = new DataInputStream(source);
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a block container");
+            short version = in.readShort();
+            if (version != VERSION)
+                throw new IOException("Block container version " + version + " can not be decrypted as a stream");
+            in.readInt(); // размер блока при шифровании
+            boolean endOfBlocks = false;
+            long blockNumber = 0;
+            while (!endOfBlocks || !window.isEmpty()) {
+                while (!endOfBlocks && window.size() < 2 * parallelism) {
+                    int plainLength = in.readInt();
+                    if (plainLength == END_OF_BLOCKS) {
+                        endOfBlocks = true;
+                        break;
+                    }
+                    int cipherLength = in.readInt();
+                    if (plainLength < 0 || cipherLength < 0)
+                        throw new IOException("Corrupted block container record " + blockNumber);
+                    final long number = blockNumber++;
+                    if (inMemory) {
+                        ByteBuffer cipher = readBlock(in, cipherLength);
+                        if (cipher.remaining() != cipherLength)
+                            throw new EOFException("Block container is truncated");
+                        window.addLast(submit(() -> processBlock(engine, directoryPath, cipher, plainLength, "decrypt", number)));
+                        continue;
+                    }
+                    Path blockPath = Files.createTempFile(directory, "block", ".part");
+                    try (OutputStream blockOut = Files.newOutputStream(blockPath)) {
+                        if (copy(in, blockOut, cipherLength, buffer) != cipherLength)
+                            throw new EOFException("Block container is truncated");
+                    } catch (IOException | RuntimeException e) {
+                        Files.deleteIfExists(blockPath);
+                        throw e;
+                    }
+                    window.addLast(submit(() -> processBlock(directory, blockPath, plainLength, "decrypt", number)));
+                }
+                if (window.isEmpty())
+                    break;
+                Block block = await(window.removeFirst());
+                try {
+                    block.writeTo(target);
+                } finally {
+                    block.discard();
+                }
+            }
+            target.flush();
+        } catch (IOException | RuntimeException e) {
+            cancel(window);
+            throw e;
+        }
+    }
+
+    /**
+     * Проверяет по первым байтам, начинается ли поток с заголовка контейнера, который можно дешифровать
+     * из потока: сигнатура, версия {@link #VERSION} и положительный размер блока.
+     * Поток должен поддерживать mark/reset; позиция в нём не меняется
+     */
+    static boolean startsWithContainer(InputStream source) throws IOException {
+        source.mark(HEADER_SIZE);
+        try {
+            DataInputStream in = new DataInputStream(source);
+            return in.readInt() == MAGIC && in.readShort() == VERSION && in.readInt() > 0;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            source.reset();
+        }
+    }
+
+    /**
+     * Дешифрует контейнер и заменяет его исходным файлом. Позиции блоков в результате
+     * известны из индекса, поэтому блоки пишутся на свои места в любом порядке
+     * @param directoryPath директория пользователя с его нейронной сетью
+     * @param fileName имя контейнера в директории
+     * @throws IOException при ошибке ввода-вывода, повреждённом или неподдерживаемом контейнере,
+     * или если нейронная сеть не смогла обработать блок
+     */
+    public void decrypt(String directoryPath, String fileName) throws IOException {
+        Path directory = Paths.get(directoryPath);
+        Path source = directory.resolve(fileName);
+        Path plain = Files.createTempFile(directory, "plain", ".part");
+        List<Future<Block>> blocks = new ArrayList<>();
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            long[][] index = readIndex(in);
+            long plainOffset = 0;
+            for (long[] entry : index) {
+                final long offset = entry[0];
+                final int plainLength = (int) entry[1];
+                final int cipherLength = (int) entry[2];
+                final long target = plainOffset;
+                blocks.add(submit(() -> {
+                    Block block = processBlock(directory, in, offset + BLOCK_HEADER_SIZE, cipherLength, plainLength, "decrypt");
+                    // у каждого блока свой канал записи: позиция общего канала менялась бы из разных потоков
+                    try (FileChannel blockChannel = FileChannel.open(block.path, StandardOpenOption.READ);
+                         FileChannel blockOut = FileChannel.open(plain, StandardOpenOption.WRITE)) {
+                        blockOut.position(target);
+                        transferFully(blockChannel, 0, plainLength, blockOut);
+                    } finally {
+                        Files.deleteIfExists(block.path);
+                    }
+                    return block;
+                }));
+                plainOffset += plainLength;
+            }
+            for (Future<Block> block : blocks)
+                await(block);
+        } catch (IOException | RuntimeException e) {
+            cancel(blocks);
+            Files.deleteIfExists(plain);
+            throw e;
+        }
+        FileProcessor.moveReplacing(plain, source);
+    }
+
+    /**
+     * Читает и проверяет индекс контейнера
+     * @return для каждого блока: смещение записи, длина открытого блока, длина шифроблока
+     */
+    private static long[][] readIndex(FileChannel in) throws IOException {
+        long size = in.size();
+        if (size < HEADER_SIZE + 4 + FOOTER_SIZE)
+            throw new IOException("Not a block container");
+        ByteBuffer header = readFully(in, 0, HEADER_SIZE);
+        if (header.getInt() != MAGIC)
+            throw new IOException("Not a block container");
+        short version = header.getShort();
+        if (version < 1 || version > VERSION)
+            throw new IOException("Unsupported block container version " + version);
+        ByteBuffer footer = readFully(in, size - FOOTER_SIZE, FOOTER_SIZE);
+        long indexOffset = footer.getLong();
+        if (footer.getInt() != MAGIC || indexOffset < HEADER_SIZE || indexOffset > size - FOOTER_SIZE - 4)
+            throw new IOException("Corrupted block container footer");
+        int count = readFully(in, indexOffset, 4).getInt();
+        if (count < 0 || indexOffset + 4 + (long) count * INDEX_ENTRY_SIZE != size - FOOTER_SIZE)
+            throw new IOException("Corrupted block container index");
+        ByteBuffer entries = readFully(in, indexOffset + 4, count * INDEX_ENTRY_SIZE);
+        long[][] index = new long[count][];
+        for (int i = 0; i < count; i++) {
+            index[i] = new long[] {entries.getLong(), entries.getInt(), entries.getInt()};
+            if (index[i][0] < HEADER_SIZE || index[i][1] < 0 || index[i][2] < 0
+                    || index[i][0] + BLOCK_HEADER_SIZE + index[i][2] > indexOffset)
+                throw new IOException("Corrupted block container index entry " + i);
+        }
+        return index;
+    }
+
+    /**
+     * Копирует участок файла во временный файл блока и обрабатывает его сетью пользователя
+     * @param plainLength длина открытого блока; при дешифровании с ней сверяется результат
+     */
+    private static Block processBlock(Path directory, FileChannel in, long offset, int length,
+                                      int plainLength, String mode) throws IOException {
+        Path blockPath = Files.createTempFile(directory, "block", ".part");
+        try (FileChannel blockChannel = FileChannel.open(blockPath, StandardOpenOption.WRITE)) {
+            transferFully(in, offset, length, blockChannel);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(blockPath);
+            throw e;
+        }
+        return processBlock(directory, blockPath, plainLength, mode, offset);
+    }
+
+    /**
+     * Обрабатывает временный файл блока сетью пользователя; при ошибке файл удаляется
+     * @param plainLength длина открытого блока; при дешифровании с ней сверяется результат
+     * @param position смещение или номер блока для сообщений об ошибках
+     */
+    private static Block processBlock(Path directory, Path blockPath, int plainLength, String mode, long position)
+            throws IOException {
+        try {
+            CipherEngine engine = FileProcessor.getCipherEngine();
+            String blockName = blockPath.getFileName().toString();
+            boolean done = mode.equals("encrypt")
+                    ? engine.encrypt(directory.toString(), blockName)
+                    : engine.decrypt(directory.toString(), blockName);
+            if (!done)
+                throw new IOException("Neural network failed to " + mode + " block " + position);
+            if (mode.equals("decrypt") && Files.size(blockPath) != plainLength)
+                throw new IOException("Decrypted block " + position + " has unexpected length");
+            return new Block(blockPath, plainLength);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(blockPath);
+            throw e;
+        }
+    }
+
+    /**
+     * Обрабатывает блок в памяти сетью пользователя
+     * @param plainLength длина открытого блока; при дешифровании с ней сверяется результат
+     */
+    private static Block processBlock(CipherEngine engine, String directoryPath, ByteBuffer input, int plainLength,
+                                      String mode, long position) throws IOException {
+        ByteBuffer result = mode.equals("encrypt")
+                ? engine.encryptBlock(directoryPath, input)
+                : engine.decryptBlock(directoryPath, input);
+        if (mode.equals("decrypt") && result.remaining() != plainLength)
+            throw new IOException("Decrypted block " + position + " has unexpected length");
+        return new Block(result, plainLength);
+    }
+
+    /**
+     * Читает из потока в память не больше limit байт. Буфер растёт по мере чтения,
+     * так что длина из повреждённого контейнера не заставляет выделить память сразу
+     * @return прочитанные данные; меньше limit, только если поток закончился
+     */
+    private static ByteBuffer readBlock(InputStream in, int limit) throws IOException {
+        byte[] data = new byte[Math.min(limit, STREAM_BUFFER_SIZE)];
+        int total = 0;
+        while (total < limit) {
+            if (total == data.length)
+                data = Arrays.copyOf(data, (int) Math.min(limit, 2L * data.length));
+            int read = in.read(data, total, data.length - total);
+            if (read < 0)
+                break;
+            total += read;
+        }
+        return ByteBuffer.wrap(data, 0, total);
+    }
+
+    /**
+     * Копирует из потока не больше limit байт
+     * @return число скопированных байт; меньше limit, только если поток закончился
+     */
+    private static int copy(InputStream in, OutputStream out, int limit, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < limit) {
+            int read = in.read(buffer, 0, Math.min(buffer.length, limit - total));
+            if (read < 0)
+                break;
+            out.write(buffer, 0, read);
+            total += read;
+        }
+        return total;
+    }
+
+    private <T> Future<T> submit(Callable<T> task) {
+        if (executor != null)
+            return executor.submit(task);
+        FutureTask<T> future = new FutureTask<>(task);
+        future.run();
+        return future;
+    }
+
+    private static Block await(Future<Block> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing blocks", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Отменяет блоки, ещё не обработанные, и удаляет временные файлы уже обработанных
+     */
+    private static void cancel(Iterable<Future<Block>> blocks) {
+        for (Future<Block> future : blocks) {
+            if (future.cancel(true))
+                continue;
+            try {
+                future.get().discard();
+            } catch (Exception ignored) {
+                // блок завершился с ошибкой, его файл уже удалён
+            }
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of file");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Дописывает участок файла в канал с его текущей позиции; позиция исходного канала не меняется,
+     * поэтому его можно читать из нескольких потоков одновременно
+     */
+    private static void transferFully(FileChannel from, long position, long count, FileChannel to) throws IOException {
+        long done = 0;
+        while (done < count) {
+            long transferred = from.transferTo(position + done, count - done, to);
+            if (transferred <= 0)
+                throw new IOException("Unexpected end of file");
+            done += transferred;
+        }
+    }
+
+    /**
+     * Результат обработки блока: во временном файле или, если сеть обрабатывает блоки в памяти, в буфере
+     */
+    private static final class Block {
+        final Path path;
+        final ByteBuffer data;
+        final int plainLength;
+
+        Block(Path path, int plainLength) {
+            this.path = path;
+            this.data = null;
+            this.plainLength = plainLength;
+        }
+
+        Block(ByteBuffer data, int plainLength) {
+            this.path = null;
+            this.data = data;
+            this.plainLength = plainLength;
+        }
+
+        long length() throws IOException {
+            return (data != null) ? data.remaining() : Files.size(path);
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            if (data == null) {
+                Files.copy(path, out);
+            } else if (data.hasArray()) {
+                out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            } else {
+                byte[] bytes = new byte[data.remaining()];
+                data.duplicate().get(bytes);
+                out.write(bytes);
+            }
+        }
+
+        void discard() throws IOException {
+            if (path != null)
+                Files.deleteIfExists(path);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package edu.susu.crypto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Реализация нейронной сети пользователя: обучение по обучающей выборке и обработка файлов.
+ * Сети пользователя хранятся в его директории (encryptor.net, decryptor.net),
+ * файлы обрабатываются на месте. Реализации должны допускать одновременные вызовы из разных потоков
+ */
+public interface CipherEngine {
+
+    String ENCRYPTOR_FILE_NAME = "encryptor.net";
+    String DECRYPTOR_FILE_NAME = "decryptor.net";
+    /** Промежуточное состояние обучения, с которого оно продолжается после сбоя */
+    String CHECKPOINT_FILE_NAME = "training.checkpoint";
+
+    /**
+     * Получатель сведений о ходе обучения
+     */
+    interface TrainingListener {
+        /**
+         * @param epoch номер завершённой эпохи
+         * @param totalEpochs общее число эпох, 0 если неизвестно
+         * @param loss значение функции потерь после эпохи
+         */
+        void progress(int epoch, int totalEpochs, double loss);
+    }
+
+    /**
+     * Обучает сети пользователя
+     * @param directoryPath директория пользователя
+     * @param fileName имя файла обучающей выборки в директории
+     * @return true, если сети созданы
+     */
+    boolean train(String directoryPath, String fileName);
+
+    /**
+     * Обучает сети пользователя, сообщая о ходе обучения. Реализация, поддерживающая контрольные точки,
+     * сохраняет промежуточное состояние в CHECKPOINT_FILE_NAME и продолжает с него, если файл уже есть.
+     * Реализация без контрольных точек после прерывания просто обучает сети заново
+     * @param directoryPath директория пользователя
+     * @param fileName имя файла обучающей выборки в директории
+     * @param listener получатель сведений о ходе обучения
+     * @return true, если сети созданы
+     */
+    default boolean train(String directoryPath, String fileName, TrainingListener listener) {
+        return train(directoryPath, fileName);
+    }
+
+    /**
+     * Шифрует файл на месте
+     * @param directoryPath директория пользователя с его сетями
+     * @param fileName имя файла в директории
+     * @return true при успехе
+     */
+    boolean encrypt(String directoryPath, String fileName);
+
+    /**
+     * Дешифрует файл на месте
+     * @param directoryPath директория пользователя с его сетями
+     * @param fileName имя файла в директории
+     * @return true при успехе
+     */
+    boolean decrypt(String directoryPath, String fileName);
+
+    /**
+     * @return true, если реализация пишет результат в новый файл и переименовывает его поверх исходного,
+     * не меняя сам исходный файл; тогда ей можно передать жёсткую ссылку на файл хранилища вместо копии.
+     * Про cryptoANN это не известно, поэтому по умолчанию - false
+     */
+    default boolean replacesFiles() {
+        return false;
+    }
+
+    /**
+     * @return true, если реализация обрабатывает блоки в памяти ({@link #encryptBlock}, {@link #decryptBlock});
+     * тогда поблочная обработка потока не пишет блоки на диск
+     */
+    default boolean processesBlocks() {
+        return false;
+    }
+
+    /**
+     * Шифрует блок в памяти
+     * @param directoryPath директория пользователя с его сетями
+     * @param block открытые данные от позиции до границы; буфер прочитывается целиком
+     * @return шифротекст в том же формате, что {@link #encrypt} даёт для файла с этими данными
+     * @throws IOException если блок не удалось зашифровать
+     * @throws UnsupportedOperationException если реализация обрабатывает только файлы
+     */
+    default ByteBuffer encryptBlock(String directoryPath, ByteBuffer block) throws IOException {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " processes files only");
+    }
+
+    /**
+     * Дешифрует блок в памяти
+     * @param directoryPath директория пользователя с его сетями
+     * @param block шифротекст от позиции до границы; буфер прочитывается целиком
+     * @return открытые данные
+     * @throws IOException если блок не удалось дешифровать
+     * @throws UnsupportedOperationException если реализация обрабатывает только файлы
+     */
+    default ByteBuffer decryptBlock(String directoryPath, ByteBuffer block) throws IOException {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " processes files only");
+    }
+
+    /**
+     * Освобождает ресурсы реализации; вызывается при остановке сервиса
+     */
+    void shutdown();
+}
@@ -0,0 +1,481 @@
+package edu.susu.crypto;
+
+import edu.susu.logging.LogManager;
+import edu.susu.logging.Logger;
+import edu.susu.metrics.MetricFamily;
+import edu.susu.metrics.MetricRegistry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+/**
+ * Хранилище файлов пользователя с адресацией по содержимому. Загруженные файлы хранятся один раз
+ * в .store/objects под своим SHA-256, а имя в директории пользователя - жёсткая ссылка на объект
+ * (копия, если файловая система ссылок не поддерживает). Каждое имя учитывается в таблице имён,
+ * объект удаляется, когда на него не остаётся имён.
+ * Результаты обработки запоминаются в .store/results по ключу (хеш входа, режим, версия сети),
+ * так что повторная обработка неизменного файла неизменной сетью не запускает сеть.
+ * Файлы хранилища неизменяемы: сеть обрабатывает личную копию входа, а готовый результат
+ * занимает имя переименованием, поэтому запись в файл по одному имени не затрагивает другие.
+ * Таблица имён живёт в памяти и хранится только для недавно использованных директорий;
+ * имена, записанные до перезапуска или вытесненные из памяти, не учитываются, и их объекты
+ * удаляет по возрасту {@link StorageManager}. Ему же хранилище сообщает об изменении объёма имён
+ * и о каждом созданном или повторно использованном файле. Операции над директорией исключают друг друга
+ * по блокировке, которая не зависит от экземпляра хранилища, поэтому вытеснение таблицы безопасно
+ */
+final class ContentStore {
+
+    private static final Logger log = LogManager.getLogger(ContentStore.class);
+
+    static final String DIRECTORY_NAME = ".store";
+    static final String OBJECTS_PATH = DIRECTORY_NAME + "/objects";
+    static final String RESULTS_PATH = DIRECTORY_NAME + "/results";
+    static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int HASH_BUFFER_SIZE = 1 << 16;
+    private static final int MAX_CACHED_STORES = 4096;
+    private static final int LOCK_STRIPES = 256;
+
+    // доступ - только под монитором stores; порядок - по последнему использованию
+    private static final Map<Path, ContentStore> stores = new LinkedHashMap<Path, ContentStore>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, ContentStore> eldest) {
+            return size() > MAX_CACHED_STORES;
+        }
+    };
+    private static final Object[] locks = new Object[LOCK_STRIPES];
+
+    static {
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+    }
+
+    private static final MetricFamily<LongAdder> uploads = MetricRegistry.getDefault().counter(
+            "cryptoann_storage_uploads_total", "Uploads by whether their content was already stored", "outcome");
+    private static final MetricFamily<LongAdder> results = MetricRegistry.getDefault().counter(
+            "cryptoann_result_cache_total", "Result cache lookups", "mode", "outcome");
+    private static final MetricFamily<LongAdder> collected = MetricRegistry.getDefault().counter(
+            "cryptoann_storage_collected_files_total", "Files deleted by the storage garbage collector", "kind");
+
+    /**
+     * Имя в директории пользователя: объект, на который оно ссылается, и хеш содержимого
+     * вместе с файлом, размером и временем изменения, при которых хеш был вычислен
+     */
+    private static final class Reference {
+        final String object;
+        final String digest;
+        final Object file;
+        final long size;
+        final long modified;
+
+        Reference(String object, String digest, BasicFileAttributes attributes) {
+            this.object = object;
+            this.digest = digest;
+            this.file = attributes.fileKey();
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime().toMillis();
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return Objects.equals(file, attributes.fileKey()) && size == attributes.size()
+                    && modified == attributes.lastModifiedTime().toMillis();
+        }
+    }
+
+    private final Path directory;
+    private final Path objects;
+    private final Path resultDirectory;
+    private final Object lock;
+    // доступ к полям ниже - только под монитором lock
+    private final Map<String, Reference> names = new HashMap<>();
+    private final Map<String, Integer> referenceCounts = new HashMap<>();
+
+    private ContentStore(Path directory) {
+        this.directory = directory;
+        this.objects = directory.resolve(OBJECTS_PATH);
+        this.resultDirectory = directory.resolve(RESULTS_PATH);
+        this.lock = locks[Math.floorMod(directory.hashCode(), LOCK_STRIPES)];
+    }
+
+    /**
+     * @param directory директория пользователя
+     * @return хранилище директории; таблица имён запоминается для MAX_CACHED_STORES последних директорий
+     */
+    static ContentStore of(Path directory) {
+        Path key = directory.toAbsolutePath().normalize();
+        synchronized (stores) {
+            return stores.computeIfAbsent(key, ContentStore::new);
+        }
+    }
+
+    /**
+     * Хранилище директории для сборщика мусора: запомненное, если есть, иначе временное с пустой таблицей имён,
+     * чтобы обход всех директорий не вытеснял таблицы тех, с которыми работают пользователи
+     */
+    static ContentStore peek(Path directory) {
+        Path key = directory.toAbsolutePath().normalize();
+        ContentStore store;
+        synchronized (stores) {
+            store = stores.get(key);
+        }
+        return (store != null) ? store : new ContentStore(key);
+    }
+
+    /**
+     * Забывает хранилище директории, перемещённой или оставленной пользователем;
+     * её имена с этого момента не учитываются, как после перезапуска
+     */
+    static void forget(Path directory) {
+        Path key = directory.toAbsolutePath().normalize();
+        synchronized (stores) {
+            stores.remove(key);
+        }
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // SHA-256 обязателен для любой JVM
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            hex[2 * i + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Помещает загруженный файл в хранилище и занимает им имя. Если такое содержимое уже есть,
+     * загруженная копия удаляется
+     * @param name имя в директории пользователя
+     * @param upload полностью записанный временный файл в директории пользователя
+     * @param digest хеш содержимого, вычисленный при записи
+     * @return путь по имени
+     */
+    Path put(String name, Path upload, String digest) throws IOException {
+        Path object = objects.resolve(digest);
+        synchronized (lock) {
+            if (Files.exists(object)) {
+                Files.delete(upload);
+                touch(object);
+                uploads.labels("deduplicated").increment();
+            } else {
+                Files.createDirectories(objects);
+                FileProcessor.moveReplacing(upload, object);
+                uploads.labels("stored").increment();
+            }
+            long previousSize = sizeOf(name);
+            Path path = link(name, object);
+            referenceCounts.merge(digest, 1, Integer::sum);
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            replace(name, new Reference(digest, digest, attributes));
+            written(name, attributes.size() - previousSize, OBJECTS_PATH + "/" + digest);
+            return path;
+        }
+    }
+
+    /**
+     * Обрабатывает файл по имени и заменяет его результатом. Сеть получает личное имя входа
+     * в директории пользователя: жёсткую ссылку, если обработка пишет результат в новый файл и переименовывает
+     * его поверх входа, иначе копию - файл хранилища может разделяться с другими именами и результатами.
+     * Успешный результат запоминается, если известна версия сети
+     * @param name имя в директории пользователя
+     * @param mode режим нейронной сети: encrypt, decrypt
+     * @param cacheResult искать и запоминать результат
+     * @param replacesInput обработка не меняет файл входа, а заменяет его новым файлом
+     * @param operation обработка файла на месте по директории и имени; возвращает null при ошибке
+     * @return путь по имени, null при ошибке
+     */
+    Path process(String name, String mode, boolean cacheResult, boolean replacesInput,
+                 BiFunction<String, String, Path> operation) throws IOException {
+        Path path = directory.resolve(name);
+        String key = null;
+        if (cacheResult) {
+            String version = networkVersion(mode);
+            if (version != null)
+                key = digestOf(name) + "-" + mode + "-" + version;
+        }
+        if (key != null) {
+            Path cached = resultDirectory.resolve(key);
+            synchronized (lock) {
+                if (Files.exists(cached)) {
+                    results.labels(mode, "hit").increment();
+                    touch(cached);
+                    long previousSize = sizeOf(name);
+                    link(name, cached);
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    replace(name, new Reference(null, null, attributes));
+                    written(name, attributes.size() - previousSize, RESULTS_PATH + "/" + key);
+                    return path;
+                }
+            }
+            results.labels(mode, "miss").increment();
+        }
+        Path work = temporaryPath("work");
+        try {
+            if (replacesInput)
+                linkOrCopy(path, work);
+            else
+                Files.copy(path, work);
+            if (operation.apply(directory.toString(), work.getFileName().toString()) == null)
+                return null;
+            synchronized (lock) {
+                long previousSize = sizeOf(name);
+                if (key != null) {
+                    Path result = resultDirectory.resolve(key);
+                    Files.createDirectories(resultDirectory);
+                    FileProcessor.moveReplacing(work, result);
+                    link(name, result);
+                } else {
+                    FileProcessor.moveReplacing(work, path);
+                }
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                replace(name, new Reference(null, null, attributes));
+                written(name, attributes.size() - previousSize, (key != null) ? RESULTS_PATH + "/" + key : null);
+            }
+            return path;
+        } finally {
+            Files.deleteIfExists(work);
+        }
+    }
+
+    /**
+     * Снимает имя с учёта после удаления файла; объект без имён удаляется
+     * @param name удалённое имя
+     * @param size размер удалённого файла
+     */
+    void removed(String name, long size) {
+        synchronized (lock) {
+            replace(name, null);
+        }
+        StorageManager storage = FileProcessor.getStorageManager();
+        if (storage != null)
+            storage.adjust(directory, -size);
+    }
+
+    /**
+     * Удаляет файл по имени и снимает его с учёта
+     */
+    void delete(String name) throws IOException {
+        synchronized (lock) {
+            long size = sizeOf(name);
+            if (Files.deleteIfExists(directory.resolve(name)))
+                removed(name, size);
+        }
+    }
+
+    /**
+     * Удаляет файл по решению сборщика мусора, если им не пользовались после cutoff
+     * @param relativePath имя в директории пользователя или путь файла хранилища
+     * @param cutoff время в мс: файл, изменённый или использованный позже, остаётся
+     * @return сколько байт освобождено; -1, если файл остался
+     */
+    long collect(String relativePath, long cutoff) throws IOException {
+        synchronized (lock) {
+            return collectLocked(relativePath, cutoff);
+        }
+    }
+
+    private long collectLocked(String relativePath, long cutoff) throws IOException {
+        Path path = directory.resolve(relativePath);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+        if (!attributes.isRegularFile())
+            return 0;
+        if (lastUsed(attributes) > cutoff)
+            return -1;
+        String kind;
+        if (relativePath.startsWith(OBJECTS_PATH + "/")) {
+            kind = "object";
+            referenceCounts.remove(relativePath.substring(OBJECTS_PATH.length() + 1));
+            Files.delete(path);
+        } else if (relativePath.startsWith(RESULTS_PATH + "/")) {
+            kind = "result";
+            Files.delete(path);
+        } else {
+            if (relativePath.indexOf('/') >= 0 || StorageManager.isPinned(relativePath))
+                return 0;
+            kind = "file";
+            delete(relativePath);
+        }
+        collected.labels(kind).increment();
+        return attributes.size();
+    }
+
+    /**
+     * Хеш текущего содержимого имени: из таблицы имён, если файл не менялся с момента вычисления,
+     * иначе файл хешируется заново
+     */
+    String digestOf(String name) throws IOException {
+        Path path = directory.resolve(name);
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        Reference reference;
+        synchronized (lock) {
+            reference = names.get(name);
+        }
+        if (reference != null && reference.digest != null && reference.matches(attributes))
+            return reference.digest;
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[HASH_BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(path)) {
+            int read;
+            while ((read = in.read(buffer)) >= 0)
+                digest.update(buffer, 0, read);
+        }
+        String hex = toHex(digest.digest());
+        synchronized (lock) {
+            if (names.get(name) == reference)
+                names.put(name, new Reference((reference != null) ? reference.object : null, hex, attributes));
+        }
+        return hex;
+    }
+
+    /**
+     * Сообщает учёту хранилища об изменении объёма имени и записывает в журнал имя и файл хранилища,
+     * на который оно ссылается
+     */
+    private void written(String name, long delta, String storePath) {
+        StorageManager storage = FileProcessor.getStorageManager();
+        if (storage == null)
+            return;
+        storage.adjust(directory, delta);
+        storage.record(directory, name);
+        if (storePath != null)
+            storage.record(directory, storePath);
+    }
+
+    private long sizeOf(String name) throws IOException {
+        try {
+            return Files.size(directory.resolve(name));
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Отмечает повторное использование файла хранилища, чтобы сборщик мусора отсчитывал возраст заново.
+     * Имена - жёсткие ссылки на файл, поэтому меняется время доступа, а не изменения:
+     * по времени изменения имён строятся ETag и Last-Modified
+     */
+    private static void touch(Path file) throws IOException {
+        Files.getFileAttributeView(file, BasicFileAttributeView.class)
+                .setTimes(null, FileTime.fromMillis(System.currentTimeMillis()), null);
+    }
+
+    /**
+     * Отмечает, что файл хранилища скачали, чтобы сборщик мусора не удалил файл, которым пользуются.
+     * Ошибка только пишется в журнал: скачивание от неё не зависит
+     * @param file путь к файлу в директории пользователя
+     */
+    static void used(Path file) {
+        try {
+            touch(file);
+        } catch (NoSuchFileException e) {
+            // файла нет - ответ скачивания сообщит об этом сам
+        } catch (IOException e) {
+            log.warn("Failed to mark {} as used: {}", file, e.toString());
+        }
+    }
+
+    /**
+     * @return время последнего изменения или использования файла в мс
+     */
+    static long lastUsed(BasicFileAttributes attributes) {
+        return Math.max(attributes.lastModifiedTime().toMillis(), attributes.lastAccessTime().toMillis());
+    }
+
+    /**
+     * Версия сети режима - хеш её файла; null, если сети нет
+     */
+    private String networkVersion(String mode) {
+        String network = mode.equals("encrypt") ? CipherEngine.ENCRYPTOR_FILE_NAME : CipherEngine.DECRYPTOR_FILE_NAME;
+        try {
+            return digestOf(network);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            log.warn("Failed to read network version of {}: {}", directory, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Занимает имя ссылкой на файл хранилища: ссылка создаётся под временным именем и переименовывается,
+     * так что по имени всегда лежит либо прежний файл, либо новый целиком
+     */
+    private Path link(String name, Path target) throws IOException {
+        Path temp = temporaryPath("link");
+        try {
+            linkOrCopy(target, temp);
+            Path path = directory.resolve(name);
+            FileProcessor.moveReplacing(temp, path);
+            return path;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Создаёт жёсткую ссылку на файл, а если файловая система их не поддерживает - копию
+     */
+    private static void linkOrCopy(Path target, Path link) throws IOException {
+        try {
+            Files.createLink(link, target);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            Files.copy(target, link, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Заменяет запись имени; объект, на который больше не ссылается ни одно имя, удаляется
+     */
+    private void replace(String name, Reference reference) {
+        Reference previous = (reference != null) ? names.put(name, reference) : names.remove(name);
+        if (previous == null || previous.object == null)
+            return;
+        Integer count = referenceCounts.get(previous.object);
+        if (count == null)
+            return;
+        if (count > 1) {
+            referenceCounts.put(previous.object, count - 1);
+            return;
+        }
+        referenceCounts.remove(previous.object);
+        try {
+            Files.deleteIfExists(objects.resolve(previous.object));
+        } catch (IOException e) {
+            log.warn("Failed to delete unreferenced object {}: {}", previous.object, e.toString());
+        }
+    }
+
+    private Path temporaryPath(String prefix) {
+        return directory.resolve(prefix + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".part");
+    }
+}
@@ -0,0 +1,189 @@
+package edu.susu.crypto;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import edu.susu.logging.LogManager;
+import edu.susu.logging.Logger;
+import edu.susu.metrics.MetricFamily;
+import edu.susu.metrics.MetricRegistry;
+
+/**
+ * Нейронная сеть во внешнем исполняемом файле cryptoANN: отдельный процесс на каждый файл
+ * или, если подключён пул, долгоживущие процессы из AnnWorkerPool
+ */
+public class ExternalProcessEngine implements CipherEngine {
+
+    private static final Logger log = LogManager.getLogger(ExternalProcessEngine.class);
+
+    static final String DEFAULT_EXECUTABLE_PATH = "D:/cryptoANN/cryptoANN.exe";
+    static final String CHECKPOINT_ENVIRONMENT_VARIABLE = "CRYPTOANN_CHECKPOINT";
+    private static final Pattern PROGRESS_LINE = Pattern.compile(
+            "(?i)epoch\\s*[:#=]?\\s*(\\d+)(?:\\s*/\\s*(\\d+))?.*?loss\\s*[:=]?\\s*([-+]?[0-9]*\\.?[0-9]+(?:[eE][-+]?[0-9]+)?)");
+    // вывод cryptoANN при обработке файла не нужен, но непрочитанный канал заполняется и останавливает процесс
+    private static final File NULL_DEVICE = new File(
+            System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null");
+    private static final MetricFamily<LongAdder> exitCodes = MetricRegistry.getDefault().counter(
+            "cryptoann_ann_exit_codes_total", "cryptoANN exit codes by command; -1 - failed to start or timed out", "command", "code");
+
+    private final String executablePath;
+    private final long timeoutMillis;
+    private final AnnWorkerPool workerPool;
+
+    /**
+     * @param executablePath путь к исполняемому файлу cryptoANN
+     * @param timeoutMillis время, после которого зависший процесс уничтожается; 0 - ждать без ограничения
+     * @param workerPool пул процессов для шифрования и дешифрования; null - процесс на каждый файл
+     */
+    public ExternalProcessEngine(String executablePath, long timeoutMillis, AnnWorkerPool workerPool) {
+        this.executablePath = executablePath;
+        this.timeoutMillis = timeoutMillis;
+        this.workerPool = workerPool;
+    }
+
+    public String getExecutablePath() {
+        return executablePath;
+    }
+
+    @Override
+    public boolean train(String directoryPath, String fileName) {
+        return train(directoryPath, fileName, (epoch, totalEpochs, loss) -> { });
+    }
+
+    /**
+     * Запускает обучение в cryptoANN. Вывод процесса читается построчно; строки вида
+     * {@code epoch 12/100 loss 0.0345} передаются получателю. Путь контрольной точки передаётся
+     * в переменной окружения CRYPTOANN_CHECKPOINT. Ни формат вывода, ни эта переменная не описаны
+     * в cryptoANN и только предполагаются: если cryptoANN их не поддерживает, о ходе обучения ничего
+     * не сообщается, а прерванное обучение после перезапуска начинается заново. Если поток прерван,
+     * процесс уничтожается, а контрольная точка, если она есть, остаётся для продолжения
+     */
+    @Override
+    public boolean train(String directoryPath, String fileName, TrainingListener listener) {
+        Process process = null;
+        try {
+            ProcessBuilder builder = new ProcessBuilder(executablePath, directoryPath, fileName, "train")
+                    .redirectErrorStream(true);
+            builder.environment().put(CHECKPOINT_ENVIRONMENT_VARIABLE,
+                    Paths.get(directoryPath, CHECKPOINT_FILE_NAME).toAbsolutePath().toString());
+            process = builder.start();
+            // вывод читается отдельным потоком: чтение из канала нельзя прервать, а ожидание процесса - можно
+            Process running = process;
+            Thread reader = new Thread(() -> readProgress(running, listener), "cryptoANN-training-output");
+            reader.setDaemon(true);
+            reader.start();
+            int returnValue = process.waitFor();
+            reader.join();
+            process = null;
+            recordExitCode("train", returnValue);
+            return (returnValue == 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (IOException e) {
+            log.error("Failed to start cryptoANN training in {}", directoryPath, e);
+            recordExitCode("train", -1);
+            return false;
+        } finally {
+            if (process != null)
+                process.destroyForcibly();
+            // процессы пула держат в памяти прежнюю сеть пользователя
+            if (workerPool != null)
+                workerPool.invalidate(directoryPath);
+        }
+    }
+
+    private static void readProgress(Process process, TrainingListener listener) {
+        try (BufferedReader output = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = output.readLine()) != null) {
+                Matcher matcher = PROGRESS_LINE.matcher(line);
+                if (!matcher.find())
+                    continue;
+                try {
+                    listener.progress(Integer.parseInt(matcher.group(1)),
+                            matcher.group(2) != null ? Integer.parseInt(matcher.group(2)) : 0,
+                            Double.parseDouble(matcher.group(3)));
+                } catch (NumberFormatException e) {
+                    // строка лишь похожа на сообщение о ходе обучения
+                }
+            }
+        } catch (IOException e) {
+            // процесс уничтожен, вывод закрыт
+        }
+    }
+
+    @Override
+    public boolean encrypt(String directoryPath, String fileName) {
+        return recordExitCode("encrypt", run(directoryPath, fileName, "encrypt")) == 0;
+    }
+
+    @Override
+    public boolean decrypt(String directoryPath, String fileName) {
+        if (JavaNetworkEngine.isOwnCiphertext(Paths.get(directoryPath, fileName))) {
+            log.error("{} was encrypted by the in-JVM engine, cryptoANN cannot decrypt it", fileName);
+            recordExitCode("decrypt", -1);
+            return false;
+        }
+        return recordExitCode("decrypt", run(directoryPath, fileName, "decrypt")) == 0;
+    }
+
+    private static int recordExitCode(String command, int exitCode) {
+        exitCodes.labels(command, Integer.toString(exitCode)).increment();
+        return exitCode;
+    }
+
+    @Override
+    public void shutdown() {
+        if (workerPool != null)
+            workerPool.shutdown();
+    }
+
+    /**
+     * Обрабатывает файл сетью пользователя: в процессе из пула, а если пул
+     * не настроен или процесс не удалось запустить - в отдельном процессе.
+     * Файл, на котором процесс из пула завис, в отдельном процессе не повторяется.
+     * Если поток прерван, отдельный процесс уничтожается
+     * @return код завершения cryptoANN, -1 при ошибке запуска или по таймауту
+     */
+    private int run(String directoryPath, String fileName, String mode) {
+        if (workerPool != null) {
+            try {
+                return workerPool.execute(directoryPath, mode, fileName);
+            } catch (IOException e) {
+                log.warn("cryptoANN worker failed to start, falling back to a dedicated process: {}", e.getMessage());
+            }
+        }
+        Process process;
+        try {
+            process = new ProcessBuilder(executablePath, directoryPath, fileName, mode)
+                    .redirectOutput(NULL_DEVICE)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+        } catch (IOException e) {
+            log.error("cryptoANN {} of {} failed", mode, fileName, e);
+            return -1;
+        }
+        try {
+            if (timeoutMillis > 0 && !process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                process.destroyForcibly();
+                log.warn("cryptoANN {} of {} timed out", mode, fileName);
+                return -1;
+            }
+            return process.waitFor();
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+}
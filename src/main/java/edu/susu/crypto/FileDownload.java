@@ -0,0 +1,323 @@
+package edu.susu.crypto;
+
+import javax.servlet.ServletRequest;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Формирует ответы на запросы скачивания файлов из хранилища: поддерживает
+ * условные запросы (ETag, Last-Modified) и частичную загрузку (Range, If-Range)
+ */
+final class FileDownload {
+
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+    private static final int TRANSFER_BUFFER_SIZE = 1 << 16;
+    private static final int ARCHIVE_BUFFER_SIZE = 1 << 16;
+    private static final int MAX_CRC_ATTEMPTS = 3;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private FileDownload() {
+    }
+
+    /**
+     * Формирует ответ с содержимым файла
+     * @param file путь к файлу в хранилище
+     * @param downloadName имя файла, предлагаемое клиенту
+     * @param request запрос, по которому проверяются условные заголовки
+     * @param range значение заголовка Range, может быть null
+     * @param ifRange значение заголовка If-Range, может быть null
+     * @return код 200 с файлом целиком; код 206 с запрошенным фрагментом;
+     * код 304, если у клиента актуальная копия; код 416, если диапазон вне файла;
+     * код 404, если файла нет
+     */
+    static Response build(Path file, String downloadName, Request request, String range, String ifRange) throws IOException {
+        if (!Files.isRegularFile(file))
+            return Response.status(Response.Status.NOT_FOUND).build();
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long length = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        // HTTP-даты имеют секундную точность
+        Date lastModified = new Date(modified - modified % 1000);
+        EntityTag etag = new EntityTag(Long.toHexString(length) + "-" + Long.toHexString(modified));
+
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(lastModified, etag);
+        if (notModified != null)
+            return notModified.tag(etag).lastModified(lastModified).build();
+
+        long start = 0, end = length - 1;
+        boolean partial = false;
+        if (range != null && isIfRangeSatisfied(ifRange, etag, lastModified)) {
+            long[] bounds = parseRange(range, length);
+            if (bounds == null)
+                return Response.status(416).header("Content-Range", "bytes */" + length).build();
+            if (bounds.length == 2) {
+                start = bounds[0];
+                end = bounds[1];
+                partial = true;
+            }
+        }
+        Response.ResponseBuilder response = partial ? Response.status(206) : Response.ok();
+        if (partial)
+            response.header("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        return response.entity(transfer(file, start, end - start + 1))
+                .type(MediaType.APPLICATION_OCTET_STREAM_TYPE)
+                .header("Content-Length", end - start + 1)
+                .header("Accept-Ranges", "bytes")
+                .header("Content-Disposition", contentDisposition(downloadName))
+                .tag(etag)
+                .lastModified(lastModified)
+                .build();
+    }
+
+    /**
+     * Формирует ответ с zip-архивом файлов. Архив пишется прямо в ответ по мере отправки, без временного
+     * файла: записи хранятся без сжатия (method STORED), поэтому зашифрованные данные не пережимаются,
+     * а память на запрос ограничена одним буфером независимо от размера файлов.
+     * Заголовок записи STORED содержит CRC-32 и размер, так что каждый файл читается дважды:
+     * сначала считается контрольная сумма, затем файл копируется в архив. Оба прохода идут по одному
+     * открытому каналу подряд - второй читает из кеша страниц, а файл, заменённый переименованием
+     * между проходами, не нарушает запись. Файл, который переписывают на месте, распознаётся по размеру
+     * и времени изменения после первого прохода и по контрольной сумме второго; если запись уже начата,
+     * соединение обрывается, чтобы клиент не принял испорченный архив за целый
+     * @param files пути к файлам в хранилище
+     * @param entryNames имена файлов в архиве, по одному на файл; повторяющиеся имена получают номер
+     * @param downloadName имя архива, предлагаемое клиенту
+     * @param request запрос, ответ на который обрывается при ошибке; null - запрос обрабатывается не контейнером сервлетов
+     * @return код 200 с архивом; код 404, если какого-либо файла нет
+     */
+    static Response archive(List<Path> files, List<String> entryNames, String downloadName, ServletRequest request) {
+        for (Path file : files)
+            if (!Files.isRegularFile(file))
+                return Response.status(Response.Status.NOT_FOUND).build();
+        StreamingOutput archive = output -> {
+            try {
+                ZipOutputStream zip = new ZipOutputStream(output);
+                zip.setMethod(ZipOutputStream.STORED);
+                byte[] buffer = new byte[ARCHIVE_BUFFER_SIZE];
+                Set<String> names = new HashSet<>();
+                for (int i = 0; i < files.size(); i++) {
+                    String name = entryNames.get(i);
+                    while (!names.add(name))
+                        name = i + "-" + name;
+                    writeStoredEntry(zip, name, files.get(i), buffer);
+                }
+                zip.finish();
+                output.flush();
+            } catch (IOException | RuntimeException e) {
+                StreamAbortFilter.abort(request, e);
+                throw e;
+            }
+        };
+        return Response.ok(archive, "application/zip")
+                .header("Content-Disposition", contentDisposition(downloadName))
+                .build();
+    }
+
+    /**
+     * Значение заголовка Content-Disposition для скачивания файла. Имя передаётся дважды:
+     * в filename - в кавычках, где символы вне печатного ASCII, кавычки и обратная косая черта
+     * заменены на _, и в filename* (RFC 5987) - целиком в UTF-8; клиенты, знающие filename*, берут его.
+     * Перевод строки в имени не может попасть в заголовок и дописать к ответу свои заголовки
+     * @param fileName имя файла, может быть null
+     * @return значение заголовка; без имени, если оно не задано
+     */
+    static String contentDisposition(String fileName) {
+        if (fileName == null || fileName.isEmpty())
+            return "attachment";
+        StringBuilder ascii = new StringBuilder(fileName.length());
+        for (int i = 0; i < fileName.length(); i++) {
+            char c = fileName.charAt(i);
+            ascii.append((c < 0x20 || c > 0x7e || c == '"' || c == '\\') ? '_' : c);
+        }
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : fileName.getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xff;
+            if (isAttrChar(c))
+                encoded.append((char) c);
+            else
+                encoded.append('%').append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xf]);
+        }
+        return "attachment; filename=\"" + ascii + "\"; filename*=UTF-8''" + encoded;
+    }
+
+    /**
+     * @return true, если байт допустим в filename* без кодирования (attr-char, RFC 5987)
+     */
+    private static boolean isAttrChar(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || "!#$&+-.^_`|~".indexOf(c) >= 0;
+    }
+
+    /**
+     * Пишет файл записью STORED: первый проход считает CRC-32, второй копирует столько же байт в архив.
+     * Если после первого прохода у файла другие размер или время изменения, контрольная сумма
+     * считается заново; второй проход считает её ещё раз и сверяет с записанной в заголовке
+     * @throws IOException если файл менялся во время копирования или не перестал меняться за MAX_CRC_ATTEMPTS проходов
+     */
+    private static void writeStoredEntry(ZipOutputStream zip, String name, Path file, byte[] buffer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            BasicFileAttributes before = Files.readAttributes(file, BasicFileAttributes.class);
+            long size;
+            long checksum;
+            for (int attempt = 1; ; attempt++) {
+                size = channel.size();
+                checksum = checksum(channel, wrapped, size, null);
+                BasicFileAttributes after = Files.readAttributes(file, BasicFileAttributes.class);
+                if (isSameVersion(before, after) && after.size() == size)
+                    break;
+                if (attempt == MAX_CRC_ATTEMPTS)
+                    throw new IOException("File " + file.getFileName() + " keeps changing while archiving");
+                before = after;
+            }
+            ZipEntry entry = new ZipEntry(name);
+            entry.setSize(size);
+            entry.setCompressedSize(size);
+            entry.setCrc(checksum);
+            entry.setTime(before.lastModifiedTime().toMillis());
+            zip.putNextEntry(entry);
+            long copied = checksum(channel, wrapped, size, zip);
+            if (copied != checksum || !isSameVersion(before, Files.readAttributes(file, BasicFileAttributes.class)))
+                throw new IOException("File " + file.getFileName() + " changed while archiving");
+            zip.closeEntry();
+        }
+    }
+
+    /**
+     * Читает size байт канала с начала и считает их CRC-32
+     * @param copy куда копировать прочитанное; null - только считать
+     */
+    private static long checksum(FileChannel channel, ByteBuffer buffer, long size, ZipOutputStream copy) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] bytes = buffer.array();
+        for (long position = 0; position < size; ) {
+            int read = readAt(channel, buffer, position, size);
+            crc.update(bytes, 0, read);
+            if (copy != null)
+                copy.write(bytes, 0, read);
+            position += read;
+        }
+        return crc.getValue();
+    }
+
+    private static boolean isSameVersion(BasicFileAttributes before, BasicFileAttributes after) {
+        return before.size() == after.size() && before.lastModifiedTime().equals(after.lastModifiedTime());
+    }
+
+    /**
+     * Читает в буфер очередной фрагмент файла, не заходя за size
+     * @throws IOException если файл укоротился после вычисления размера
+     */
+    private static int readAt(FileChannel channel, ByteBuffer buffer, long position, long size) throws IOException {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), size - position));
+        int read = channel.read(buffer, position);
+        if (read <= 0)
+            throw new IOException("File shrank while archiving");
+        return read;
+    }
+
+    /**
+     * Передаёт фрагмент файла в выходной поток. Поток сервлета - не канал, так что transferTo
+     * всё равно копировал бы через свой небольшой буфер; здесь один буфер побольше на весь фрагмент
+     */
+    private static StreamingOutput transfer(Path file, long position, long count) {
+        return output -> {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                byte[] buffer = new byte[(int) Math.min(TRANSFER_BUFFER_SIZE, Math.max(count, 1))];
+                ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+                long end = position + count;
+                for (long current = position; current < end; ) {
+                    wrapped.clear();
+                    wrapped.limit((int) Math.min(buffer.length, end - current));
+                    int read = channel.read(wrapped, current);
+                    if (read <= 0)
+                        break; // файл укоротился во время передачи
+                    output.write(buffer, 0, read);
+                    current += read;
+                }
+            }
+            output.flush();
+        };
+    }
+
+    /**
+     * Проверяет, относится ли запрошенный диапазон к текущей версии файла
+     * @return true, если If-Range не задан или совпадает с ETag / датой изменения файла
+     */
+    private static boolean isIfRangeSatisfied(String ifRange, EntityTag etag, Date lastModified) {
+        if (ifRange == null || ifRange.isEmpty())
+            return true;
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+            return ifRange.equals("\"" + etag.getValue() + "\"");
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(ifRange).getTime() == lastModified.getTime();
+        } catch (ParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Разбирает заголовок Range вида bytes=a-b, bytes=a- или bytes=-n
+     * @param range значение заголовка
+     * @param length длина файла
+     * @return границы {первый, последний байт}; пустой массив, если заголовок следует
+     * проигнорировать (несколько диапазонов, неизвестные единицы); null, если диапазон вне файла
+     */
+    private static long[] parseRange(String range, long length) {
+        range = range.trim();
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0)
+            return new long[0];
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0)
+            return new long[0];
+        long start, end;
+        try {
+            String first = spec.substring(0, dash).trim(), last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0)
+                    return null;
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? length - 1 : Long.parseLong(last);
+                if (end < start)
+                    return new long[0]; // синтаксически неверный диапазон игнорируется
+                end = Math.min(end, length - 1);
+            }
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+        if (start >= length)
+            return null;
+        return new long[]{start, end};
+    }
+}
@@ -2,25 +2,56 @@ package edu.susu.crypto;
 
 import edu.susu.database.User;
 import edu.susu.exception.IdleUpdateException;
+import edu.susu.exception.QuotaExceededException;
+import edu.susu.exception.UploadLimitExceededException;
+import edu.susu.logging.LogManager;
+import edu.susu.logging.Logger;
+import edu.susu.metrics.Histogram;
+import edu.susu.metrics.MetricFamily;
+import edu.susu.metrics.MetricRegistry;
 
 import javax.ws.rs.core.Response;
-import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
 
 /**
  * Инкапсулирует методы, отвечающие за сохранение пользовательских файлов и обработку их нейронной сетью
  */
 public class FileProcessor {
 
+    private static final Logger log = LogManager.getLogger(FileProcessor.class);
+
     static final String STORAGE_PATH = "D:/cryptoANN/storage/";
-    static final String ANN_EXECUTABLE_PATH = "D:/cryptoANN/cryptoANN.exe";
+    private static final int UPLOAD_BUFFER_SIZE = 1 << 20;
+
+    private static volatile long maxUploadSize = 0;
+    private static volatile CipherEngine cipherEngine =
+            new ExternalProcessEngine(ExternalProcessEngine.DEFAULT_EXECUTABLE_PATH, 0, null);
+    private static volatile ChunkedCipher chunkedCipher;
+    private static volatile boolean resultCacheEnabled = true;
+    private static volatile StorageManager storageManager;
+    private static volatile StorageLayout layout = StorageLayout.parse(null, StorageLayout.DEFAULT_SHARD_LEVELS);
+
+    private static final MetricFamily<Histogram> annDurations = MetricRegistry.getDefault().histogram(
+            "cryptoann_ann_duration_seconds", "Neural network operation time, including chunking", "operation");
+    private static final MetricFamily<LongAdder> annOutcomes = MetricRegistry.getDefault().counter(
+            "cryptoann_ann_operations_total", "Neural network operations by outcome", "operation", "outcome");
 
     //public enum NetworkMode { NONE, TRAIN, ENCRYPT, DECRYPT }
 
@@ -28,67 +59,387 @@ public class FileProcessor {
         if (user.getStoragePath() != null)
             return;
         try {
-            Path userDirectory = Files.createDirectories(Paths.get(STORAGE_PATH, user.getName()));
+            Path userDirectory = Files.createDirectories(layout.placeUser(user.getName()));
             WebInterfaceService.db.updateUserStoragePath(user.getName(), userDirectory.toAbsolutePath().toString());
             user.setStoragePath(userDirectory.toAbsolutePath().toString());
         } catch (IdleUpdateException e) {
-            e.printStackTrace();
+            log.error("Failed to save storage path of user {}", user.getName(), e);
         }
     }
 
-    public static Path saveFileInStorage(User user, InputStream file, String fileName) {
+    /**
+     * Сохраняет загружаемый файл в директорию пользователя. Данные пишутся во временный файл
+     * крупными блоками и одновременно хешируются; по окончании файл помещается в {@link ContentStore}:
+     * одинаковое содержимое хранится один раз, а имя атомарно начинает ссылаться на него,
+     * так что в хранилище никогда не оказывается недописанный файл
+     * @param user пользователь
+     * @param file поток загружаемого файла
+     * @param fileName имя файла в хранилище
+     * @return путь сохранённого файла, null при ошибке ввода-вывода
+     * @throws UploadLimitExceededException если размер файла превысил допустимый; чтение прерывается сразу
+     * @throws QuotaExceededException если файл не помещается в квоту пользователя; чтение прерывается сразу
+     */
+    public static Path saveFileInStorage(User user, InputStream file, String fileName) throws UploadLimitExceededException {
+        Path tempPath = null;
+        Path directory = null;
+        StorageManager storage = storageManager;
+        long reserved = 0;
         try {
             if (user.getStoragePath() == null)
                 createUserDirectory(user);
-            Path filePath = Paths.get(user.getStoragePath(), fileName);
-            if (filePath.toFile().exists())
-                Files.delete(filePath);
-            else Files.createFile(filePath);
-            FileOutputStream fos = new FileOutputStream(filePath.toFile());
-            int rByte;
-            while ((rByte = file.read()) >= 0)
-                fos.write(rByte);
-            fos.flush();
-            fos.close();
-            file.close();
+            directory = Paths.get(user.getStoragePath());
+            if (storage != null && storage.remainingQuota(directory) <= 0)
+                throw new QuotaExceededException("Storage quota of " + user.getName() + " is exhausted");
+            tempPath = Files.createTempFile(directory, "upload", ".part");
+            long limit = maxUploadSize;
+            MessageDigest digest = ContentStore.newDigest();
+            try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+                byte[] buffer = new byte[UPLOAD_BUFFER_SIZE];
+                ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+                long total = 0;
+                int read;
+                while ((read = file.read(buffer)) >= 0) {
+                    total += read;
+                    if (limit > 0 && total > limit)
+                        throw new UploadLimitExceededException("Upload exceeds " + limit + " bytes");
+                    // место занимается до записи: параллельные загрузки пользователя делят один остаток квоты
+                    if (storage != null && !storage.reserve(directory, read))
+                        throw new QuotaExceededException("Upload exceeds the storage quota of " + user.getName());
+                    reserved += read;
+                    digest.update(buffer, 0, read);
+                    wrapper.clear().limit(read);
+                    while (wrapper.hasRemaining())
+                        channel.write(wrapper);
+                }
+            }
+            Path filePath = ContentStore.of(directory).put(fileName, tempPath, ContentStore.toHex(digest.digest()));
+            tempPath = null;
             return filePath;
         } catch (IOException e) {
-            e.printStackTrace();
+            log.error("Failed to save upload {}", fileName, e);
             return null;
+        } finally {
+            // файл к этому моменту учтён в объёме директории, так что занятое место больше не нужно
+            if (storage != null)
+                storage.release(directory, reserved);
+            try {
+                file.close();
+                if (tempPath != null)
+                    Files.deleteIfExists(tempPath);
+            } catch (IOException e) {
+                log.warn("Failed to clean up upload {}", tempPath, e);
+            }
         }
     }
 
-    public static boolean trainNeuralNetwork(String directoryPath, String fileName) {
-        try {
-            Process process = new ProcessBuilder(ANN_EXECUTABLE_PATH, directoryPath, fileName, "train").start();
-            int returnValue = process.waitFor();
-            return (returnValue == 0);
-        } catch (InterruptedException | IOException e) {
-            e.printStackTrace();
+    /**
+     * Ограничивает загрузку, которая обрабатывается на лету, теми же пределами, что и сохраняемую:
+     * допустимым размером файла и квотой пользователя (с cryptoANN блоки такой загрузки временно лежат
+     * в его директории). Прочитанные байты занимают место в квоте, пока поток не закрыт.
+     * Поток бросает IOException, как только из него прочитано больше допустимого
+     * @param user пользователь с созданной директорией хранилища
+     * @param upload поток загружаемого файла
+     * @return ограниченный поток; его нужно закрыть, чтобы освободить занятое место
+     * @throws QuotaExceededException если квота пользователя уже исчерпана
+     */
+    public static InputStream limitUpload(User user, InputStream upload) throws QuotaExceededException {
+        StorageManager storage = storageManager;
+        Path directory = Paths.get(user.getStoragePath());
+        if (storage != null && storage.remainingQuota(directory) <= 0)
+            throw new QuotaExceededException("Storage quota of " + user.getName() + " is exhausted");
+        return new LimitedInputStream(upload, maxUploadSize, storage, directory);
+    }
+
+    /**
+     * Поток, который бросает IOException при попытке прочитать больше limit байт
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+        private final long limit;
+        private final StorageManager storage;
+        private final Path directory;
+        private long total;
+        private long reserved;
+
+        /**
+         * @param limit допустимый размер; 0 - без ограничения
+         * @param storage учёт места, в квоте которого занимаются прочитанные байты; null - без квоты
+         */
+        LimitedInputStream(InputStream in, long limit, StorageManager storage, Path directory) {
+            super(in);
+            this.limit = limit;
+            this.storage = storage;
+            this.directory = directory;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = in.read();
+            if (value >= 0)
+                count(1);
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = in.read(buffer, offset, length);
+            if (read > 0)
+                count(read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
             return false;
         }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (storage != null) {
+                    storage.release(directory, reserved);
+                    reserved = 0;
+                }
+            }
+        }
+
+        private void count(long bytes) throws IOException {
+            total += bytes;
+            if (limit > 0 && total > limit)
+                throw new IOException("Upload exceeds " + limit + " bytes allowed by the size limit");
+            if (storage != null) {
+                if (!storage.reserve(directory, bytes))
+                    throw new IOException("Upload exceeds the storage quota");
+                reserved += bytes;
+            }
+        }
+    }
+
+    /**
+     * Задаёт максимальный размер загружаемого файла
+     * @param bytes размер в байтах; 0 снимает ограничение
+     */
+    public static void setMaxUploadSize(long bytes) {
+        maxUploadSize = bytes;
+    }
+
+    public static boolean trainNeuralNetwork(String directoryPath, String fileName) {
+        long start = System.nanoTime();
+        boolean success = cipherEngine.train(directoryPath, fileName);
+        recordOperation("train", start, success);
+        return success;
+    }
+
+    public static boolean trainNeuralNetwork(String directoryPath, String fileName, CipherEngine.TrainingListener listener) {
+        long start = System.nanoTime();
+        boolean success = cipherEngine.train(directoryPath, fileName, listener);
+        recordOperation("train", start, success);
+        return success;
+    }
+
+    /**
+     * Включает учёт места и квоты; null - без учёта
+     */
+    public static void setStorageManager(StorageManager manager) {
+        storageManager = manager;
+    }
+
+    static StorageManager getStorageManager() {
+        return storageManager;
+    }
+
+    /**
+     * Задаёт корни хранилища и размещение в них директорий новых пользователей
+     */
+    public static void setStorageLayout(StorageLayout storageLayout) {
+        layout = storageLayout;
+    }
+
+    public static StorageLayout getStorageLayout() {
+        return layout;
+    }
+
+    /**
+     * Удаляет файл из директории пользователя и снимает его с учёта хранилища
+     */
+    static void deleteFromStorage(Path directory, String fileName) throws IOException {
+        ContentStore.of(directory).delete(fileName);
     }
 
+    /**
+     * Задаёт, запоминать ли результаты шифрования и дешифрования (см. {@link ContentStore}).
+     * Выключается, если сеть шифрует один и тот же файл каждый раз по-разному и это нужно сохранить
+     */
+    public static void setResultCacheEnabled(boolean enabled) {
+        resultCacheEnabled = enabled;
+    }
+
+    /**
+     * Шифрует файл сетью пользователя. Если включён поблочный режим и файл больше одного блока,
+     * файл заменяется контейнером ChunkedCipher, иначе обрабатывается целиком.
+     * Если этот файл уже шифровался той же сетью, подставляется запомненный результат
+     * @return путь зашифрованного файла, null при ошибке
+     */
     public static Path encryptFile(String directoryPath, String fileName) {
+        long start = System.nanoTime();
+        Path result = processStored(directoryPath, fileName, "encrypt", FileProcessor::encrypt);
+        recordOperation("encrypt", start, result != null);
+        return result;
+    }
+
+    /**
+     * Обрабатывает файл хранилища через {@link ContentStore#process}
+     */
+    private static Path processStored(String directoryPath, String fileName, String mode,
+                                      BiFunction<String, String, Path> operation) {
         try {
-            Process process = new ProcessBuilder(ANN_EXECUTABLE_PATH, directoryPath, fileName, "encrypt").start();
-            int returnValue = process.waitFor();
-            return (returnValue == 0) ? Paths.get(directoryPath, fileName) : null;
-        } catch (InterruptedException | IOException e) {
-            e.printStackTrace();
+            boolean replacesInput = replacesInput(Paths.get(directoryPath, fileName), mode);
+            return ContentStore.of(Paths.get(directoryPath)).process(fileName, mode, resultCacheEnabled, replacesInput, operation);
+        } catch (IOException e) {
+            log.error("Failed to {} {}", mode, fileName, e);
             return null;
         }
     }
 
-    public static Path decryptFile(String directoryPath, String fileName) {
+    /**
+     * Выбирает ту же обработку, что {@link #encrypt} и {@link #decrypt}
+     * @return true, если она запишет результат в новый файл, а файл входа не изменит:
+     * контейнеры ChunkedCipher всегда собираются во временном файле
+     */
+    private static boolean replacesInput(Path path, String mode) throws IOException {
+        if (cipherEngine.replacesFiles())
+            return true;
+        if (mode.equals("decrypt"))
+            return ChunkedCipher.isContainer(path);
+        ChunkedCipher chunked = chunkedCipher;
+        return chunked != null && Files.size(path) > chunked.getBlockSize();
+    }
+
+    private static Path encrypt(String directoryPath, String fileName) {
+        Path path = Paths.get(directoryPath, fileName);
+        ChunkedCipher chunked = chunkedCipher;
         try {
-            Process process = new ProcessBuilder(ANN_EXECUTABLE_PATH, directoryPath, fileName, "decrypt").start();
-            int returnValue = process.waitFor();
-            return (returnValue == 0) ? Paths.get(directoryPath, fileName) : null;
-        } catch (InterruptedException | IOException e) {
-            e.printStackTrace();
+            if (chunked != null && Files.size(path) > chunked.getBlockSize()) {
+                chunked.encrypt(directoryPath, fileName);
+                return path;
+            }
+        } catch (IOException e) {
+            log.error("Failed to encrypt {}", path, e);
             return null;
         }
+        return cipherEngine.encrypt(directoryPath, fileName) ? path : null;
+    }
+
+    /**
+     * Дешифрует файл сетью пользователя; контейнеры ChunkedCipher распознаются
+     * и дешифруются поблочно, даже если поблочный режим выключен.
+     * Как и при шифровании, запомненный результат подставляется без запуска сети
+     * @return путь расшифрованного файла, null при ошибке
+     */
+    public static Path decryptFile(String directoryPath, String fileName) {
+        long start = System.nanoTime();
+        Path result = processStored(directoryPath, fileName, "decrypt", FileProcessor::decrypt);
+        recordOperation("decrypt", start, result != null);
+        return result;
+    }
+
+    private static Path decrypt(String directoryPath, String fileName) {
+        Path path = Paths.get(directoryPath, fileName);
+        if (ChunkedCipher.isContainer(path)) {
+            ChunkedCipher chunked = chunkedCipher;
+            try {
+                (chunked != null ? chunked : ChunkedCipher.SEQUENTIAL).decrypt(directoryPath, fileName);
+                return path;
+            } catch (IOException e) {
+                log.error("Failed to decrypt {}", path, e);
+                return null;
+            }
+        }
+        return cipherEngine.decrypt(directoryPath, fileName) ? path : null;
+    }
+
+    public static CipherEngine getCipherEngine() {
+        return cipherEngine;
+    }
+
+    /**
+     * Задаёт реализацию нейронной сети, которой обрабатываются файлы
+     */
+    public static void setCipherEngine(CipherEngine engine) {
+        cipherEngine = engine;
+    }
+
+    /**
+     * Шифрует поток поблочно, не сохраняя его в хранилище; результат - контейнер ChunkedCipher
+     * @param directoryPath директория пользователя с его нейронной сетью
+     * @param source открытые данные
+     * @param target получатель контейнера
+     * @throws IOException при ошибке ввода-вывода или обработки блока
+     */
+    public static void encryptStream(String directoryPath, InputStream source, OutputStream target) throws IOException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            streamingCipher().encrypt(directoryPath, source, target);
+            success = true;
+        } finally {
+            recordOperation("encrypt_stream", start, success);
+        }
+    }
+
+    /**
+     * Дешифрует контейнер ChunkedCipher из потока, не сохраняя его в хранилище
+     * @param directoryPath директория пользователя с его нейронной сетью
+     * @param source контейнер
+     * @param target получатель открытых данных
+     * @throws IOException при ошибке ввода-вывода, повреждённом контейнере или ошибке обработки блока
+     */
+    public static void decryptStream(String directoryPath, InputStream source, OutputStream target) throws IOException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            streamingCipher().decrypt(directoryPath, source, target);
+            success = true;
+        } finally {
+            recordOperation("decrypt_stream", start, success);
+        }
+    }
+
+    private static void recordOperation(String operation, long startNanos, boolean success) {
+        annDurations.labels(operation).recordSince(startNanos);
+        annOutcomes.labels(operation, success ? "success" : "failure").increment();
+    }
+
+    private static ChunkedCipher streamingCipher() {
+        ChunkedCipher chunked = chunkedCipher;
+        return (chunked != null) ? chunked : ChunkedCipher.SEQUENTIAL;
+    }
+
+    /**
+     * Включает поблочную обработку больших файлов
+     * @param cipher обработчик блоков; null - всегда обрабатывать файл целиком
+     */
+    public static void setChunkedCipher(ChunkedCipher cipher) {
+        chunkedCipher = cipher;
+    }
+
+    /**
+     * Переносит готовый файл на место целевого, по возможности атомарно
+     */
+    static void moveReplacing(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
     }
 
 }
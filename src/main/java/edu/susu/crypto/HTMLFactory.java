@@ -1,8 +1,11 @@
 package edu.susu.crypto;
 
+import javax.ws.rs.core.EntityTag;
+import java.util.zip.CRC32;
+
 abstract class HTMLFactory {
-	
-	private static final String template = "<!DOCTYPE html>\n" +
+
+	private static final HtmlTemplate template = HtmlTemplate.compile("<!DOCTYPE html>\n" +
 			"<html>" +
 			"<head>" +
 			"<meta charset=\"UTF-8\">" +
@@ -15,9 +18,9 @@ abstract class HTMLFactory {
 			"<script src=\"/file-inputs.js\"></script>" +
 			"<script src=\"/loginForm.js\"></script>" +
 			"</body>" +
-			"</html>";
+			"</html>");
 
-	private static final String loginFormTemplate = "<div class=\"form-wrapper\">" +
+	private static final HtmlTemplate loginFormTemplate = HtmlTemplate.compile("<div class=\"form-wrapper\">" +
 			"<form action=\"\" method=\"post\" align=\"center\" id=\"loginForm\">" +
 			"<div class=\"imgcontainer\"><img src=\"/loginicondblue.png\" alt=\"Avatar\" class=\"avatar\"></div>" +
 			"<div class=\"message-line-red\"><font face=\"Arial\" color=\"white\"><b>$message</b></font></div>" +
@@ -28,9 +31,9 @@ abstract class HTMLFactory {
 			"<button type=\"button\" onclick=\"submitWithAction(\'$loginAction\');\">Sign in</button>" +
 			"</div>" +
 			"</form>" +
-			"</div>";
+			"</div>");
 
-	private static final String fileUploadFormTemplate = "<div class=\"$class\">" +
+	private static final HtmlTemplate fileUploadFormTemplate = HtmlTemplate.compile("<div class=\"$class\">" +
 			"<form action=\"$action\" enctype=\"multipart/form-data\" method=\"post\" align=\"center\">" +
 			"<div class=\"imgcontainer\"><img src=\"$avatar\" alt=\"Avatar\" class=\"avatar\"></div>" +
 			"<div class=\"message-line-$messageColor\">" +
@@ -44,65 +47,132 @@ abstract class HTMLFactory {
 			"<button type=\"submit\" style=\"width:100%\">$button</button>" +
 			"</div>" +
 			"</form>" +
-			"</div>";
-
-	private static final String fileUploadFormsTemplate = "<div align=\"center\">" +
-			fileUploadFormTemplate.replace("$action", "$encryptAction")
-					.replace("$class", "file-form-wrapper-inline")
-					.replace("$avatar", "/encLogo.png")
-					.replace("$messageColor", "blue")
-					.replace("$header", "File encryption")
-					.replace("$button", "Encrypt file") +
-			fileUploadFormTemplate.replace("$action", "$decryptAction")
-					.replace("$class", "file-form-wrapper-inline")
-					.replace("$avatar", "/decLogo.png")
-					.replace("$messageColor", "blue")
-					.replace("$header", "File decryption")
-					.replace("$button", "Decrypt file") +
-			"</div>";
-
-	private static final String trainUploadFormTemplate = fileUploadFormTemplate
-			.replace("$class", "train-form-wrapper")
-			.replace("$avatar", "/trainLogo.png")
-			.replace("$messageColor", "red")
-			.replace("$header", "Training set")
-			.replace("$button", "Create Artificial Neural Network");
+			"</div>");
+
+	private static final String uploadAction = Routes.ROOT + "/$username" + Routes.UPLOAD_POSTFIX + "?mode=";
+
+	private static final HtmlTemplate fileUploadFormsTemplate = HtmlTemplate.compile("<div align=\"center\">$encryptForm$decryptForm</div>")
+			.bind("encryptForm", fileUploadFormTemplate
+					.bind("action", uploadAction + "encrypt")
+					.bind("class", "file-form-wrapper-inline")
+					.bind("avatar", "/encLogo.png")
+					.bind("messageColor", "blue")
+					.bind("header", "File encryption")
+					.bind("button", "Encrypt file"))
+			.bind("decryptForm", fileUploadFormTemplate
+					.bind("action", uploadAction + "decrypt")
+					.bind("class", "file-form-wrapper-inline")
+					.bind("avatar", "/decLogo.png")
+					.bind("messageColor", "blue")
+					.bind("header", "File decryption")
+					.bind("button", "Decrypt file"));
+
+	private static final HtmlTemplate trainUploadFormTemplate = fileUploadFormTemplate
+			.bind("action", uploadAction + "train")
+			.bind("class", "train-form-wrapper")
+			.bind("avatar", "/trainLogo.png")
+			.bind("messageColor", "red")
+			.bind("header", "Training set")
+			.bind("button", "Create Artificial Neural Network");
 
 	private static final String logoutButton = "<button class=\"logout-button\" onclick=\"location.href='/rest/logout';\">Sign out</button>";
-	
-	public static String createLoginPage() {
-		return createLoginPage("Please fill the fields below to sign in or register");
+
+	private static final HtmlTemplate loginPage = template
+			.bind("content", loginFormTemplate
+					.bind("loginAction", Routes.LOGIN)
+					.bind("registerAction", Routes.REGISTER))
+			.withSlots("message");
+
+	private static final HtmlTemplate userPage = template
+			.bind("content", HtmlTemplate.compile("$forms" + logoutButton).bind("forms", fileUploadFormsTemplate))
+			.withSlots("username");
+
+	private static final HtmlTemplate annInitPage = template
+			.bind("content", HtmlTemplate.compile("<div class=\"text-wrapper\">$inner-content</div>")
+					.bind("inner-content", HtmlTemplate.compile("<h2>Welcome, $username</h2>" +
+							"<p>Since this is the first time you use our WebService, your personal Artificial Neural Network Encryptor should now be configured.</p>" +
+							"<p>Upload any file, some book perhaps, and we shall use it as a training set for your future Encryptor. " +
+							"Once we're done, the Neural Network will be bound to your account, ready to encrypt and decrypt any file you will give to it.</p>" +
+							"<p>Please choose the file you want to use as a training set:</p>" +
+							"$form" +
+							"<p><b>Note:</b> Depending on file size, network training could take a few minutes. Files under 10 MB are processed relatively fast.</p>" +
+							logoutButton)
+							.bind("form", trainUploadFormTemplate)))
+			.withSlots("username");
+
+	static final int JOB_PAGE_REFRESH_SECONDS = 2;
+
+	private static final HtmlTemplate jobPage = template
+			.bind("content", "<meta http-equiv=\"refresh\" content=\"$refresh\">" +
+					"<div class=\"text-wrapper\">" +
+					"<h2>$heading</h2>" +
+					"<p>This page refreshes automatically and will take you to the result once the Neural Network is done.</p>" +
+					"<p><a href=\"$statusLink\">Check status now</a></p>" +
+					"</div>" + logoutButton)
+			.withSlots("heading", "statusLink", "refresh");
+
+	private static final HtmlTemplate trainingPage = template
+			.bind("content", "<div class=\"text-wrapper\">" +
+					"<h2>Your Neural Network is being trained</h2>" +
+					"<p>Training runs in the background: you may close this page or sign out, it will go on and resume after a server restart.</p>" +
+					"<p id=\"training-progress\" data-events=\"$eventsLink\" data-done=\"$doneLink\">Waiting for the first epoch...</p>" +
+					"<p><a href=\"$statusLink\">Check status now</a></p>" +
+					"</div>" + logoutButton +
+					"<script src=\"/training-progress.js\"></script>")
+			.withSlots("eventsLink", "doneLink", "statusLink");
+
+	private static final String defaultLoginMessage = "Please fill the fields below to sign in or register";
+	private static final byte[] defaultLoginPage = loginPage.render(defaultLoginMessage);
+	private static final EntityTag defaultLoginPageTag = createTag(defaultLoginPage);
+
+	/**
+	 * @return страница логина с приглашением по умолчанию; формируется один раз
+	 */
+	public static byte[] createLoginPage() {
+		return defaultLoginPage;
+	}
+
+	/**
+	 * @return ETag страницы, возвращаемой createLoginPage()
+	 */
+	public static EntityTag getLoginPageTag() {
+		return defaultLoginPageTag;
 	}
 
-	public static String createLoginPage(String errorExplanation) {
-		String loginForm = loginFormTemplate
-				.replace("$loginAction", Routes.LOGIN)
-				.replace("$registerAction", Routes.REGISTER)
-				.replace("$message", errorExplanation);
-		return template.replace("$content", loginForm);
+	public static byte[] createLoginPage(String errorExplanation) {
+		return loginPage.render(errorExplanation);
 	}
 
-	public static String createUserPage(String username) {
-		String encUploadForm = fileUploadFormsTemplate
-				.replace("$encryptAction", Routes.ROOT + "/" + username + Routes.UPLOAD_POSTFIX + "?mode=encrypt")
-				.replace("$decryptAction", Routes.ROOT + "/" + username + Routes.UPLOAD_POSTFIX + "?mode=decrypt");
-		String page = template.replace("$content", encUploadForm + logoutButton);
-		return page;
+	public static byte[] createUserPage(String username) {
+		return userPage.render(username);
 	}
-	
-	public static String createANNInitPage(String username) {
-	    String fileUploadForm = trainUploadFormTemplate
-				.replace("$action", Routes.ROOT + "/" + username + Routes.UPLOAD_POSTFIX + "?mode=train");
-	    String content = ("<div class=\"text-wrapper\">" + "$inner-content" + "</div>")
-				.replace("$inner-content", "<h2>Welcome, " + username + "</h2>" +
-				"<p>Since this is the first time you use our WebService, your personal Artificial Neural Network Encryptor should now be configured.</p>" +
-				"<p>Upload any file, some book perhaps, and we shall use it as a training set for your future Encryptor. " +
-				"Once we're done, the Neural Network will be bound to your account, ready to encrypt and decrypt any file you will give to it.</p>" +
-				"<p>Please choose the file you want to use as a training set:</p>" +
-				fileUploadForm +
-				"<p><b>Note:</b> Depending on file size, network training could take a few minutes. Files under 10 MB are processed relatively fast.</p>" +
-				logoutButton);
-		return template.replace("$content", content);
+
+	public static byte[] createANNInitPage(String username) {
+		return annInitPage.render(username);
     }
 
+	public static byte[] createJobPage(String username, String jobId, boolean queued) {
+		return jobPage.render(queued ? "Your file is waiting in the queue" : "Your file is being processed",
+				Routes.jobStatus(username, jobId).toString(), createJobPageRefresh(username, jobId));
+	}
+
+	/**
+	 * @return значение заголовка Refresh страницы задания: через несколько секунд запросить состояние задания
+	 */
+	public static String createJobPageRefresh(String username, String jobId) {
+		return JOB_PAGE_REFRESH_SECONDS + "; url=" + Routes.jobStatus(username, jobId);
+	}
+
+	public static byte[] createTrainingPage(String username) {
+		return trainingPage.render(Routes.trainingEvents(username).toString(),
+				Routes.personalPage(username).toString(),
+				Routes.trainingStatus(username).toString());
+	}
+
+	private static EntityTag createTag(byte[] page) {
+		CRC32 crc = new CRC32();
+		crc.update(page);
+		return new EntityTag(Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(page.length));
+	}
+
 }
@@ -0,0 +1,218 @@
+package edu.susu.crypto;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Шаблон html-страницы, разобранный один раз на последовательность фрагментов:
+ * готовых байтов UTF-8 и слотов вида $name. Вложенные шаблоны подставляются заранее (bind),
+ * а значения оставшихся слотов при выводе экранируются и пишутся прямо в буфер потока
+ */
+final class HtmlTemplate {
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    private static final ThreadLocal<PageBuffer> BUFFERS = ThreadLocal.withInitial(PageBuffer::new);
+
+    // элементы - byte[] (готовый фрагмент) или String (имя слота)
+    private final Object[] segments;
+    // для каждого сегмента-слота - номер значения при выводе
+    private final int[] slotIndexes;
+    private final String[] slotNames;
+
+    private HtmlTemplate(Object[] segments, String[] slotNames) {
+        this.segments = segments;
+        this.slotNames = slotNames;
+        this.slotIndexes = new int[segments.length];
+        for (int i = 0; i < segments.length; i++)
+            slotIndexes[i] = (segments[i] instanceof String) ? Arrays.asList(slotNames).indexOf(segments[i]) : -1;
+    }
+
+    /**
+     * Разбирает текст шаблона; слот - символ $ и следующие за ним буквы, цифры и дефисы
+     * @param text текст шаблона
+     * @return шаблон, слоты которого нумеруются в порядке первого появления
+     */
+    static HtmlTemplate compile(String text) {
+        List<Object> segments = new ArrayList<>();
+        List<String> slots = new ArrayList<>();
+        int literalStart = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) != '$')
+                continue;
+            int end = i + 1;
+            while (end < text.length() && (Character.isLetterOrDigit(text.charAt(end)) || text.charAt(end) == '-'))
+                end++;
+            if (end == i + 1)
+                continue;
+            if (i > literalStart)
+                segments.add(text.substring(literalStart, i).getBytes(StandardCharsets.UTF_8));
+            String slot = text.substring(i + 1, end);
+            segments.add(slot);
+            if (!slots.contains(slot))
+                slots.add(slot);
+            literalStart = end;
+            i = end - 1;
+        }
+        if (literalStart < text.length())
+            segments.add(text.substring(literalStart).getBytes(StandardCharsets.UTF_8));
+        return new HtmlTemplate(segments.toArray(), slots.toArray(new String[0]));
+    }
+
+    /**
+     * Подставляет в слот вложенный шаблон; его слоты становятся слотами результата
+     * @param slot имя слота
+     * @param inner вложенный шаблон
+     * @return новый шаблон
+     */
+    HtmlTemplate bind(String slot, HtmlTemplate inner) {
+        List<Object> result = new ArrayList<>();
+        for (Object segment : segments) {
+            if (slot.equals(segment))
+                result.addAll(Arrays.asList(inner.segments));
+            else
+                result.add(segment);
+        }
+        return merge(result);
+    }
+
+    /**
+     * Подставляет в слот готовый html-фрагмент без экранирования
+     * @param slot имя слота
+     * @param html фрагмент разметки (может сам содержать слоты)
+     * @return новый шаблон
+     */
+    HtmlTemplate bind(String slot, String html) {
+        return bind(slot, compile(html));
+    }
+
+    /**
+     * Закрепляет порядок значений, передаваемых в render
+     * @param names имена всех оставшихся слотов в нужном порядке
+     * @return новый шаблон
+     * @throws IllegalStateException если набор имён не совпадает со слотами шаблона
+     */
+    HtmlTemplate withSlots(String... names) {
+        if (names.length != slotNames.length || !Arrays.asList(names).containsAll(Arrays.asList(slotNames)))
+            throw new IllegalStateException("Template slots " + Arrays.toString(slotNames)
+                    + " do not match " + Arrays.toString(names));
+        return new HtmlTemplate(segments, names.clone());
+    }
+
+    /**
+     * Выводит страницу в байты UTF-8
+     * @param values значения слотов в порядке withSlots (или первого появления); экранируются
+     * @return готовая страница
+     */
+    byte[] render(String... values) {
+        if (values.length != slotNames.length)
+            throw new IllegalArgumentException("Expected values for " + Arrays.toString(slotNames));
+        PageBuffer buffer = BUFFERS.get();
+        buffer.reset();
+        for (int i = 0; i < segments.length; i++) {
+            if (slotIndexes[i] < 0)
+                buffer.write((byte[]) segments[i]);
+            else
+                buffer.writeEscaped(values[slotIndexes[i]]);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Склеивает соседние готовые фрагменты после подстановки
+     */
+    private static HtmlTemplate merge(List<Object> segments) {
+        List<Object> merged = new ArrayList<>();
+        List<String> slots = new ArrayList<>();
+        PageBuffer literal = new PageBuffer();
+        for (Object segment : segments) {
+            if (segment instanceof byte[]) {
+                literal.write((byte[]) segment);
+                continue;
+            }
+            if (literal.size > 0) {
+                merged.add(literal.toByteArray());
+                literal.reset();
+            }
+            merged.add(segment);
+            if (!slots.contains(segment))
+                slots.add((String) segment);
+        }
+        if (literal.size > 0)
+            merged.add(literal.toByteArray());
+        return new HtmlTemplate(merged.toArray(), slots.toArray(new String[0]));
+    }
+
+    /**
+     * Растущий буфер страницы, переиспользуемый потоком между запросами
+     */
+    private static final class PageBuffer {
+        private byte[] bytes = new byte[INITIAL_BUFFER_SIZE];
+        private int size = 0;
+
+        void reset() {
+            size = 0;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        void write(byte[] chunk) {
+            ensureCapacity(chunk.length);
+            System.arraycopy(chunk, 0, bytes, size, chunk.length);
+            size += chunk.length;
+        }
+
+        /**
+         * Пишет строку в UTF-8, заменяя символы разметки html-сущностями
+         */
+        void writeEscaped(String value) {
+            if (value == null)
+                return;
+            // худший случай - сущность &quot; (6 байт) на каждый символ
+            ensureCapacity(value.length() * 6);
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '&': writeAscii("&amp;"); break;
+                    case '<': writeAscii("&lt;"); break;
+                    case '>': writeAscii("&gt;"); break;
+                    case '"': writeAscii("&quot;"); break;
+                    case '\'': writeAscii("&#39;"); break;
+                    default:
+                        if (c < 0x80) {
+                            bytes[size++] = (byte) c;
+                        } else if (c < 0x800) {
+                            bytes[size++] = (byte) (0xC0 | (c >> 6));
+                            bytes[size++] = (byte) (0x80 | (c & 0x3F));
+                        } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                                && Character.isLowSurrogate(value.charAt(i + 1))) {
+                            int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                            bytes[size++] = (byte) (0xF0 | (codePoint >> 18));
+                            bytes[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                            bytes[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                            bytes[size++] = (byte) (0x80 | (codePoint & 0x3F));
+                        } else if (Character.isSurrogate(c)) {
+                            bytes[size++] = '?'; // одиночный суррогат не кодируется
+                        } else {
+                            bytes[size++] = (byte) (0xE0 | (c >> 12));
+                            bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                            bytes[size++] = (byte) (0x80 | (c & 0x3F));
+                        }
+                }
+            }
+        }
+
+        private void writeAscii(String entity) {
+            for (int i = 0; i < entity.length(); i++)
+                bytes[size++] = (byte) entity.charAt(i);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+        }
+    }
+}
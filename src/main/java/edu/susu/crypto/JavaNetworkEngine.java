@@ -0,0 +1,309 @@
+package edu.susu.crypto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import edu.susu.logging.LogManager;
+import edu.susu.logging.Logger;
+
+/**
+ * Нейронная сеть, исполняемая внутри JVM: сети пользователя загружаются из encryptor.net и decryptor.net
+ * в общий NetworkCache и применяются к файлу кадрами через ByteBuffer, без запуска процессов.
+ * Обучение выполняет внешняя реализация (cryptoANN), после него сети пользователя удаляются из кеша.
+ * <p>
+ * Экспериментальная реализация: формат .net описан в {@link NeuralNetwork} по предположению,
+ * и совпадение с тем, что пишет cryptoANN, не проверено на настоящей сети. Поэтому она включается
+ * только явным флагом, а её шифротекст несовместим с шифротекстом cryptoANN и помечен заголовком:
+ * int сигнатура "CJNE", int версия формата, long длина открытого файла, затем кадры шифросети.
+ * Последний кадр открытого файла дополняется нулями, при дешифровании дополнение отбрасывается.
+ * Файл без заголовка этой реализацией не дешифруется, а {@link ExternalProcessEngine} отказывается
+ * дешифровать файл с заголовком - вместо мусора на выходе ошибка.
+ * <p>
+ * Большие файлы читаются и пишутся через отображение в память (MappedByteBuffer) окнами,
+ * сдвигающимися по файлу: данные не копируются в кучу, работу выполняет страничный кеш ОС.
+ * Для небольших файлов отображение обходится дороже копирования, они читаются потоком.
+ * Блоки потока (см. {@link ChunkedCipher}) обрабатываются прямо в памяти, без временных файлов
+ */
+public class JavaNetworkEngine implements CipherEngine {
+
+    private static final Logger log = LogManager.getLogger(JavaNetworkEngine.class);
+
+    /** Сигнатура шифротекста, "CJNE" */
+    static final int CIPHERTEXT_MAGIC = 0x434A4E45;
+    static final int CIPHERTEXT_VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    /** Размер окна отображения файла в память */
+    private static final int MAP_WINDOW_BYTES = 64 * 1024 * 1024;
+    public static final long DEFAULT_MAP_THRESHOLD = 256L * 1024 * 1024;
+    public static final long DEFAULT_CACHE_BYTES = 256L * 1024 * 1024;
+    public static final long DEFAULT_CACHE_REVALIDATE_MILLIS = 10 * 1000;
+
+    private final CipherEngine trainer;
+    private final long mapThreshold;
+    private final NetworkCache networks;
+
+    /**
+     * @param trainer реализация, которой поручается обучение сетей
+     */
+    public JavaNetworkEngine(CipherEngine trainer) {
+        this(trainer, DEFAULT_MAP_THRESHOLD, new NetworkCache(DEFAULT_CACHE_BYTES, DEFAULT_CACHE_REVALIDATE_MILLIS));
+    }
+
+    /**
+     * @param trainer реализация, которой поручается обучение сетей
+     * @param mapThreshold файлы от этого размера (байт) обрабатываются через отображение в память; 0 - никогда
+     * @param networks кеш загруженных сетей
+     */
+    public JavaNetworkEngine(CipherEngine trainer, long mapThreshold, NetworkCache networks) {
+        this.trainer = trainer;
+        this.mapThreshold = mapThreshold;
+        this.networks = networks;
+    }
+
+    public NetworkCache getNetworkCache() {
+        return networks;
+    }
+
+    @Override
+    public boolean train(String directoryPath, String fileName) {
+        return train(directoryPath, fileName, (epoch, totalEpochs, loss) -> { });
+    }
+
+    @Override
+    public boolean train(String directoryPath, String fileName, TrainingListener listener) {
+        try {
+            return trainer.train(directoryPath, fileName, listener);
+        } finally {
+            networks.invalidate(Paths.get(directoryPath));
+        }
+    }
+
+    @Override
+    public boolean encrypt(String directoryPath, String fileName) {
+        Path source = Paths.get(directoryPath, fileName);
+        Path result = null;
+        try {
+            NeuralNetwork network = networks.get(Paths.get(directoryPath, ENCRYPTOR_FILE_NAME));
+            result = Files.createTempFile(source.getParent(), "cipher", ".part");
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(result, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(CIPHERTEXT_MAGIC).putInt(CIPHERTEXT_VERSION).putLong(in.size()).flip();
+                writeFully(out, header);
+                transform(network, in, out, Long.MAX_VALUE);
+            }
+            FileProcessor.moveReplacing(result, source);
+            return true;
+        } catch (IOException e) {
+            log.error("Failed to encrypt {}", source, e);
+            deleteQuietly(result);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean decrypt(String directoryPath, String fileName) {
+        Path source = Paths.get(directoryPath, fileName);
+        Path result = null;
+        try {
+            NeuralNetwork network = networks.get(Paths.get(directoryPath, DECRYPTOR_FILE_NAME));
+            result = Files.createTempFile(source.getParent(), "plain", ".part");
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(result, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                fill(in, header);
+                header.flip();
+                long plainLength = readHeader(header, in.size() - HEADER_SIZE, network, source);
+                transform(network, in, out, plainLength);
+            }
+            FileProcessor.moveReplacing(result, source);
+            return true;
+        } catch (IOException e) {
+            log.error("Failed to decrypt {}", source, e);
+            deleteQuietly(result);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean replacesFiles() {
+        return true;
+    }
+
+    @Override
+    public boolean processesBlocks() {
+        return true;
+    }
+
+    @Override
+    public ByteBuffer encryptBlock(String directoryPath, ByteBuffer block) throws IOException {
+        NeuralNetwork network = networks.get(Paths.get(directoryPath, ENCRYPTOR_FILE_NAME));
+        int frameSize = network.getFrameSize();
+        long plainLength = block.remaining();
+        long cipherLength = HEADER_SIZE + framesCeil(plainLength, frameSize) * frameSize;
+        if (cipherLength > Integer.MAX_VALUE - 8)
+            throw new IOException("Block of " + plainLength + " bytes is too large to encrypt in memory");
+        ByteBuffer result = ByteBuffer.allocate((int) cipherLength);
+        result.putInt(CIPHERTEXT_MAGIC).putInt(CIPHERTEXT_VERSION).putLong(plainLength);
+        network.transform(block, result);
+        result.flip();
+        return result;
+    }
+
+    @Override
+    public ByteBuffer decryptBlock(String directoryPath, ByteBuffer block) throws IOException {
+        NeuralNetwork network = networks.get(Paths.get(directoryPath, DECRYPTOR_FILE_NAME));
+        long plainLength = readHeader(block, block.remaining() - HEADER_SIZE, network, "block");
+        ByteBuffer result = ByteBuffer.allocate(block.remaining());
+        network.transform(block, result);
+        result.flip().limit((int) plainLength);
+        return result;
+    }
+
+    /**
+     * Читает и проверяет заголовок шифротекста
+     * @param header буфер, позиция которого стоит на заголовке; сдвигается за него
+     * @param framesLength длина кадров после заголовка
+     * @param source что дешифруется, для сообщений об ошибке
+     * @return длина открытых данных
+     * @throws IOException если заголовка нет или он не согласуется с длиной и сетью
+     */
+    private static long readHeader(ByteBuffer header, long framesLength, NeuralNetwork network, Object source)
+            throws IOException {
+        if (header.remaining() < HEADER_SIZE || header.getInt() != CIPHERTEXT_MAGIC)
+            throw new IOException(source + " was not encrypted by the in-JVM engine");
+        int version = header.getInt();
+        if (version != CIPHERTEXT_VERSION)
+            throw new IOException("Unsupported ciphertext version " + version + " in " + source);
+        long plainLength = header.getLong();
+        if (plainLength < 0 || plainLength > framesLength || framesLength % network.getFrameSize() != 0)
+            throw new IOException("Ciphertext " + source + " does not match the network");
+        return plainLength;
+    }
+
+    /**
+     * @return true, если файл начинается с заголовка шифротекста этой реализации
+     */
+    static boolean isOwnCiphertext(Path path) {
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            return fill(in, magic) == 4 && ((ByteBuffer) magic.flip()).getInt() == CIPHERTEXT_MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        networks.clear();
+        trainer.shutdown();
+    }
+
+    /**
+     * Пропускает через сеть остаток входного канала (с его текущей позиции) кадрами
+     * и пишет результат в выходной канал с его текущей позиции
+     * @param limit сколько байт результата записать; остальное отбрасывается
+     */
+    private void transform(NeuralNetwork network, FileChannel in, FileChannel out, long limit) throws IOException {
+        long inputLength = in.size() - in.position();
+        if (mapThreshold > 0 && inputLength >= mapThreshold)
+            transformMapped(network, in, out, inputLength, limit);
+        else
+            transformStreamed(network, in, out, limit);
+    }
+
+    private static void transformStreamed(NeuralNetwork network, FileChannel in, FileChannel out, long limit)
+            throws IOException {
+        int frameSize = network.getFrameSize();
+        int batch = network.getBatchFrames() * frameSize;
+        ByteBuffer input = ByteBuffer.allocate(batch);
+        ByteBuffer output = ByteBuffer.allocate(batch);
+        long remaining = limit;
+        int read;
+        while (remaining > 0 && (read = fill(in, input)) > 0) {
+            input.flip();
+            output.clear();
+            network.transform(input, output);
+            output.flip();
+            if (output.remaining() > remaining)
+                output.limit((int) remaining);
+            remaining -= output.remaining();
+            writeFully(out, output);
+            input.clear();
+        }
+    }
+
+    /**
+     * Обрабатывает файл окнами отображения: окно входа и соответствующее ему окно выхода
+     * передаются сети напрямую. Кадр, результат которого урезан до limit, обрабатывается
+     * через небольшой буфер в куче, чтобы не отображать область за концом результата
+     */
+    private static void transformMapped(NeuralNetwork network, FileChannel in, FileChannel out,
+                                        long inputLength, long limit) throws IOException {
+        int frameSize = network.getFrameSize();
+        long inputStart = in.position();
+        long outputStart = out.position();
+        long outputLength = Math.min(limit, framesCeil(inputLength, frameSize) * frameSize);
+        long window = (MAP_WINDOW_BYTES / frameSize) * (long) frameSize;
+        long produced = 0;
+        for (long consumed = 0; consumed < inputLength && produced < outputLength; consumed += window) {
+            long inLength = Math.min(window, inputLength - consumed);
+            long outLength = Math.min(framesCeil(inLength, frameSize) * frameSize, outputLength - produced);
+            MappedByteBuffer source = in.map(FileChannel.MapMode.READ_ONLY, inputStart + consumed, inLength);
+            MappedByteBuffer target = out.map(FileChannel.MapMode.READ_WRITE, outputStart + produced, outLength);
+            int wholeFrames = (int) (outLength / frameSize);
+            source.limit((int) Math.min(inLength, (long) wholeFrames * frameSize));
+            network.transform(source, target);
+            int tail = target.remaining();
+            if (tail > 0) {
+                ByteBuffer frame = ByteBuffer.allocate(frameSize);
+                source.limit((int) Math.min(inLength, source.position() + frameSize));
+                network.transform(source, frame);
+                frame.flip().limit(tail);
+                target.put(frame);
+            }
+            produced += outLength;
+        }
+        out.position(outputStart + produced);
+    }
+
+    private static long framesCeil(long bytes, int frameSize) {
+        return (bytes + frameSize - 1) / frameSize;
+    }
+
+    /**
+     * Читает из канала, пока буфер не заполнится или канал не закончится
+     * @return число прочитанных байт
+     */
+    private static int fill(FileChannel channel, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer);
+            if (read < 0)
+                break;
+            total += read;
+        }
+        return total;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null)
+            return;
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Failed to delete {}", path, e);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package edu.susu.crypto;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+
+import edu.susu.logging.LogContext;
+import edu.susu.logging.LogManager;
+import edu.susu.logging.Logger;
+
+/**
+ * Фоновое задание обработки файла нейронной сетью (обучение, шифрование, дешифрование)
+ */
+public class Job {
+
+    private static final Logger log = LogManager.getLogger(Job.class);
+
+    /** CANCELLED - задание отброшено из очереди при остановке сервиса, не начавшись */
+    public enum Status { QUEUED, RUNNING, DONE, FAILED, CANCELLED }
+
+    /** Приоритет коротких заданий (шифрование, дешифрование) */
+    public static final int PRIORITY_HIGH = 0;
+    /** Приоритет длительных заданий (обучение сети) */
+    public static final int PRIORITY_LOW = 1;
+
+    private final String id;
+    private final String owner;
+    private final int priority;
+    private final long sequence;
+    private final Callable<URI> task;
+    private volatile Status status = Status.QUEUED;
+    private volatile URI result;
+    private volatile long finishTime;
+    private final List<Consumer<Job>> completionListeners = new ArrayList<>();
+
+    Job(String id, String owner, int priority, long sequence, Callable<URI> task) {
+        this.id = id;
+        this.owner = owner;
+        this.priority = priority;
+        this.sequence = sequence;
+        this.task = task;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isFinished() {
+        return status == Status.DONE || status == Status.FAILED || status == Status.CANCELLED;
+    }
+
+    /**
+     * @return адрес страницы результата, null если задание не завершено или завершилось ошибкой
+     */
+    public URI getResult() {
+        return result;
+    }
+
+    long getFinishTime() {
+        return finishTime;
+    }
+
+    /**
+     * Регистрирует обработчик завершения задания. Если задание уже завершено, обработчик вызывается сразу
+     * @param listener обработчик, получающий завершённое задание
+     */
+    public void onCompletion(Consumer<Job> listener) {
+        synchronized (completionListeners) {
+            if (!isFinished()) {
+                completionListeners.add(listener);
+                return;
+            }
+        }
+        listener.accept(this);
+    }
+
+    /**
+     * Выполняет задание в текущем потоке и оповещает обработчики завершения
+     */
+    void run() {
+        status = Status.RUNNING;
+        LogContext.put("job", id);
+        LogContext.put("user", owner);
+        URI uri = null;
+        try {
+            uri = task.call();
+        } catch (Exception e) {
+            log.error("Job failed", e);
+        } finally {
+            LogContext.clear();
+        }
+        finish(uri, (uri != null) ? Status.DONE : Status.FAILED);
+    }
+
+    /**
+     * Отменяет задание, которое так и не начало выполняться, и оповещает обработчики завершения
+     */
+    void cancel() {
+        finish(null, Status.CANCELLED);
+    }
+
+    private void finish(URI uri, Status finalStatus) {
+        List<Consumer<Job>> listeners;
+        synchronized (completionListeners) {
+            result = uri;
+            finishTime = System.currentTimeMillis();
+            status = finalStatus;
+            listeners = new ArrayList<>(completionListeners);
+            completionListeners.clear();
+        }
+        for (Consumer<Job> listener : listeners)
+            listener.accept(this);
+    }
+}
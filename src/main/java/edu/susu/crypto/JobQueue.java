@@ -0,0 +1,174 @@
+package edu.susu.crypto;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Ограниченная очередь фоновых заданий с фиксированным числом рабочих потоков.
+ * Задания одного пользователя упорядочены по приоритету, а пользователи обслуживаются по кругу,
+ * поэтому длинная серия заданий одного пользователя не задерживает остальных
+ */
+public class JobQueue {
+
+    private static final long FINISHED_JOB_RETENTION_MILLIS = 30 * 60 * 1000;
+    private static final Comparator<Job> JOB_ORDER =
+            Comparator.comparingInt(Job::getPriority).thenComparingLong(Job::getSequence);
+
+    private final int capacity;
+    private final Thread[] workers;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    // доступ к полям ниже - только под монитором this
+    private final Map<String, PriorityQueue<Job>> pendingByUser = new HashMap<>();
+    private final ArrayDeque<String> userRotation = new ArrayDeque<>();
+    // завершённые задания в порядке завершения: устаревшие всегда в начале
+    private final ArrayDeque<Job> finishedJobs = new ArrayDeque<>();
+    private int pendingCount = 0;
+    private long sequence = 0;
+    private boolean shutdown = false;
+
+    /**
+     * Создаёт очередь и запускает рабочие потоки
+     * @param workerCount число рабочих потоков; если не больше нуля, берётся число ядер процессора
+     * @param capacity максимальное число ожидающих заданий
+     */
+    public JobQueue(int workerCount, int capacity) {
+        if (workerCount <= 0)
+            workerCount = Runtime.getRuntime().availableProcessors();
+        this.capacity = capacity;
+        this.workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(this::workLoop, "ann-job-worker-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Ставит задание в очередь
+     * @param owner имя пользователя, которому принадлежит задание
+     * @param priority приоритет (меньше - важнее), см. Job.PRIORITY_*
+     * @param task действие, возвращающее адрес страницы результата или null при ошибке
+     * @return поставленное в очередь задание
+     * @throws RejectedExecutionException если очередь переполнена или остановлена
+     */
+    public Job submit(String owner, int priority, Callable<URI> task) {
+        Job job;
+        synchronized (this) {
+            purgeFinished();
+            if (shutdown)
+                throw new RejectedExecutionException("Job queue is shut down");
+            if (pendingCount >= capacity)
+                throw new RejectedExecutionException("Job queue is full");
+            job = new Job(UUID.randomUUID().toString(), owner, priority, sequence++, task);
+            PriorityQueue<Job> userJobs = pendingByUser.get(owner);
+            if (userJobs == null) {
+                userJobs = new PriorityQueue<>(JOB_ORDER);
+                pendingByUser.put(owner, userJobs);
+                userRotation.addLast(owner);
+            }
+            userJobs.add(job);
+            pendingCount++;
+            jobs.put(job.getId(), job);
+            notify();
+        }
+        UserActivity.started(owner);
+        job.onCompletion(finished -> {
+            UserActivity.finished(finished.getOwner());
+            retire(finished);
+        });
+        return job;
+    }
+
+    /**
+     * Возвращает задание по идентификатору
+     * @param id идентификатор задания
+     * @return задание, null если такого нет или оно давно завершено
+     */
+    public Job getJob(String id) {
+        return (id == null) ? null : jobs.get(id);
+    }
+
+    /**
+     * @return число заданий, ожидающих выполнения
+     */
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Останавливает рабочие потоки; ожидающие задания отменяются, так что ожидающие их клиенты получают ответ сразу
+     */
+    public void shutdown() {
+        List<Job> dropped = new ArrayList<>();
+        synchronized (this) {
+            shutdown = true;
+            for (PriorityQueue<Job> userJobs : pendingByUser.values())
+                dropped.addAll(userJobs);
+            pendingByUser.clear();
+            userRotation.clear();
+            pendingCount = 0;
+            notifyAll();
+        }
+        for (Thread worker : workers)
+            worker.interrupt();
+        for (Job job : dropped)
+            job.cancel();
+    }
+
+    private void workLoop() {
+        while (true) {
+            Job job;
+            try {
+                job = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (job == null)
+                return;
+            job.run();
+        }
+    }
+
+    /**
+     * Извлекает следующее задание: берёт пользователя из начала круга
+     * и, если у него остались задания, возвращает его в конец
+     */
+    private synchronized Job take() throws InterruptedException {
+        while (!shutdown && pendingCount == 0)
+            wait();
+        if (shutdown)
+            return null;
+        String owner = userRotation.pollFirst();
+        PriorityQueue<Job> userJobs = pendingByUser.get(owner);
+        Job job = userJobs.poll();
+        if (userJobs.isEmpty())
+            pendingByUser.remove(owner);
+        else
+            userRotation.addLast(owner);
+        pendingCount--;
+        return job;
+    }
+
+    private synchronized void retire(Job job) {
+        finishedJobs.addLast(job);
+    }
+
+    /**
+     * Забывает задания, завершённые раньше срока хранения; просматривает только устаревшие
+     */
+    private synchronized void purgeFinished() {
+        long threshold = System.currentTimeMillis() - FINISHED_JOB_RETENTION_MILLIS;
+        while (!finishedJobs.isEmpty() && finishedJobs.peekFirst().getFinishTime() < threshold)
+            jobs.remove(finishedJobs.pollFirst().getId());
+    }
+}
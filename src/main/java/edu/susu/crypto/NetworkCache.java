@@ -0,0 +1,161 @@
+package edu.susu.crypto;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Общий для всех сеансов кеш загруженных сетей пользователей (encryptor.net, decryptor.net).
+ * Объём кеша ограничен суммарным размером весов, первыми вытесняются давно не использовавшиеся сети.
+ * Запись привязана к времени изменения файла; пока запись свежее периода перепроверки,
+ * сеть выдаётся без обращения к диску. При переобучении записи директории удаляются явно
+ */
+public class NetworkCache {
+
+    private static class CacheEntry {
+        final NeuralNetwork network;
+        final FileTime modified;
+        final long weightBytes;
+        volatile long checkedAt;
+
+        CacheEntry(NeuralNetwork network, FileTime modified, long checkedAt) {
+            this.network = network;
+            this.modified = modified;
+            this.weightBytes = network.getWeightBytes();
+            this.checkedAt = checkedAt;
+        }
+    }
+
+    private final long maxBytes;
+    private final long revalidateNanos;
+    // доступ к полям ниже - только под монитором this
+    private final LinkedHashMap<Path, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+    private long generation = 0;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+
+    /**
+     * @param maxBytes предельный суммарный размер весов в кеше, байт
+     * @param revalidateMillis как долго запись выдаётся без проверки времени изменения файла, мс
+     */
+    public NetworkCache(long maxBytes, long revalidateMillis) {
+        this.maxBytes = maxBytes;
+        this.revalidateNanos = TimeUnit.MILLISECONDS.toNanos(revalidateMillis);
+    }
+
+    /**
+     * Возвращает сеть из кеша, загружая её с диска при отсутствии или после изменения файла
+     * @param path путь к файлу сети
+     * @return загруженная сеть
+     * @throws IOException если файл не удалось прочитать
+     */
+    NeuralNetwork get(Path path) throws IOException {
+        long now = System.nanoTime();
+        CacheEntry entry;
+        long stamp;
+        synchronized (this) {
+            entry = entries.get(path);
+            stamp = generation;
+        }
+        if (entry != null) {
+            if (now - entry.checkedAt < revalidateNanos) {
+                hitCount.increment();
+                return entry.network;
+            }
+            if (Files.getLastModifiedTime(path).equals(entry.modified)) {
+                entry.checkedAt = now;
+                hitCount.increment();
+                return entry.network;
+            }
+        }
+        missCount.increment();
+        FileTime modified = Files.getLastModifiedTime(path);
+        long start = System.nanoTime();
+        NeuralNetwork network = NeuralNetwork.load(path);
+        loadNanos.add(System.nanoTime() - start);
+        put(path, new CacheEntry(network, modified, start), stamp);
+        return network;
+    }
+
+    /**
+     * Удаляет сети пользователя; вызывается, когда они переобучаются
+     * @param directory директория пользователя
+     */
+    synchronized void invalidate(Path directory) {
+        generation++;
+        Iterator<Map.Entry<Path, CacheEntry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, CacheEntry> entry = iterator.next();
+            if (directory.equals(entry.getKey().getParent())) {
+                totalBytes -= entry.getValue().weightBytes;
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    /**
+     * Помещает загруженную сеть в кеш, вытесняя давно не использовавшиеся. Запись отбрасывается,
+     * если кеш инвалидировался после начала загрузки или сеть сама больше всего кеша
+     */
+    private synchronized void put(Path path, CacheEntry entry, long loadStamp) {
+        if (loadStamp != generation || entry.weightBytes > maxBytes)
+            return;
+        CacheEntry previous = entries.put(path, entry);
+        if (previous != null)
+            totalBytes -= previous.weightBytes;
+        totalBytes += entry.weightBytes;
+        Iterator<CacheEntry> eldest = entries.values().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            CacheEntry evicted = eldest.next();
+            eldest.remove();
+            totalBytes -= evicted.weightBytes;
+            evictionCount.increment();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return суммарный размер весов сетей в кеше, байт
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /**
+     * @return суммарное время загрузки сетей с диска, нс
+     */
+    public long getLoadNanos() {
+        return loadNanos.sum();
+    }
+}
@@ -0,0 +1,179 @@
+package edu.susu.crypto;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Полносвязная сеть прямого распространения, загруженная из файла .net.
+ * Сеть отображает кадр из frameSize байт в кадр той же длины: байты входа нормируются в [0, 1],
+ * все слои используют сигмоиду, выход последнего слоя переводится обратно в байты.
+ * <p>
+ * Формат файла (целые и вещественные числа - big-endian). Это предполагаемый формат: с файлами,
+ * которые пишет cryptoANN, он не сверен, поэтому {@link JavaNetworkEngine} включается только явно:
+ * <pre>
+ * int frameSize, int число слоёв
+ * для каждого слоя: int число выходов n, float[n][m] веса по строкам, float[n] смещения
+ * </pre>
+ * где m - число выходов предыдущего слоя (для первого - frameSize); у последнего слоя n = frameSize
+ * <p>
+ * Веса слоя хранятся одним массивом float, транспонированными (по строке на вход),
+ * и сеть применяется сразу к пачке кадров: внутренний цикл прибавляет к выходам кадра
+ * строку весов, умноженную на один вход, - такой цикл JIT векторизует. Промежуточные
+ * активации лежат в переиспользуемых массивах потока, так что обработка кадров не создаёт объектов
+ */
+final class NeuralNetwork {
+
+    private static final int MAX_LAYER_SIZE = 1 << 16;
+    /** Предел размера буфера активаций пачки, в числах float */
+    private static final int MAX_BATCH_FLOATS = 1 << 20;
+    private static final int MAX_BATCH_FRAMES = 4096;
+
+    private static final ThreadLocal<float[][]> ACTIVATIONS = ThreadLocal.withInitial(() -> new float[2][0]);
+
+    private final int frameSize;
+    private final int[] layerSizes; // layerSizes[0] = frameSize, далее - выходы слоёв
+    private final float[][] weights; // weights[l][i * outputs + o] - вес входа i для выхода o
+    private final float[][] biases;
+    private final int batchFrames;
+
+    private NeuralNetwork(int[] layerSizes, float[][] weights, float[][] biases) {
+        this.frameSize = layerSizes[0];
+        this.layerSizes = layerSizes;
+        this.weights = weights;
+        this.biases = biases;
+        int maxWidth = 0;
+        for (int size : layerSizes)
+            maxWidth = Math.max(maxWidth, size);
+        this.batchFrames = Math.max(1, Math.min(MAX_BATCH_FRAMES, MAX_BATCH_FLOATS / maxWidth));
+    }
+
+    /**
+     * Загружает сеть из файла
+     * @param path путь к файлу .net
+     * @return сеть
+     * @throws IOException при ошибке чтения или неверном формате файла
+     */
+    static NeuralNetwork load(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            int frameSize = in.readInt();
+            int layerCount = in.readInt();
+            if (frameSize <= 0 || frameSize > MAX_LAYER_SIZE || layerCount <= 0 || layerCount > 64)
+                throw new IOException("Invalid network header in " + path);
+            int[] layerSizes = new int[layerCount + 1];
+            layerSizes[0] = frameSize;
+            float[][] weights = new float[layerCount][];
+            float[][] biases = new float[layerCount][];
+            for (int layer = 0; layer < layerCount; layer++) {
+                int inputs = layerSizes[layer];
+                int outputs = in.readInt();
+                if (outputs <= 0 || outputs > MAX_LAYER_SIZE)
+                    throw new IOException("Invalid size of layer " + layer + " in " + path);
+                layerSizes[layer + 1] = outputs;
+                float[] layerWeights = new float[inputs * outputs];
+                for (int o = 0; o < outputs; o++)
+                    for (int i = 0; i < inputs; i++)
+                        layerWeights[i * outputs + o] = in.readFloat();
+                weights[layer] = layerWeights;
+                biases[layer] = new float[outputs];
+                for (int o = 0; o < outputs; o++)
+                    biases[layer][o] = in.readFloat();
+            }
+            if (layerSizes[layerCount] != frameSize)
+                throw new IOException("Output layer of " + path + " does not match frame size");
+            return new NeuralNetwork(layerSizes, weights, biases);
+        }
+    }
+
+    int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * @return сколько кадров выгодно передавать в transform за один вызов
+     */
+    int getBatchFrames() {
+        return batchFrames;
+    }
+
+    /**
+     * @return объём весов и смещений в байтах
+     */
+    long getWeightBytes() {
+        long floats = 0;
+        for (int layer = 0; layer < weights.length; layer++)
+            floats += weights[layer].length + biases[layer].length;
+        return floats * Float.BYTES;
+    }
+
+    /**
+     * Пропускает через сеть все оставшиеся в источнике кадры, пачками по getBatchFrames()
+     * @param in источник; неполный последний кадр дополняется нулями
+     * @param out получатель; должен вмещать столько же полных кадров
+     */
+    void transform(ByteBuffer in, ByteBuffer out) {
+        while (in.hasRemaining()) {
+            int frames = Math.min(batchFrames, (in.remaining() + frameSize - 1) / frameSize);
+            transformBatch(in, out, frames);
+        }
+    }
+
+    private void transformBatch(ByteBuffer in, ByteBuffer out, int frames) {
+        float[][] buffers = activationBuffers(frames);
+        float[] current = buffers[0];
+        float[] next = buffers[1];
+        int inputBytes = Math.min(in.remaining(), frames * frameSize);
+        for (int k = 0; k < inputBytes; k++)
+            current[k] = (in.get() & 0xFF) / 255f;
+        for (int k = inputBytes; k < frames * frameSize; k++)
+            current[k] = 0f;
+
+        for (int layer = 0; layer < weights.length; layer++) {
+            int inputs = layerSizes[layer];
+            int outputs = layerSizes[layer + 1];
+            float[] layerWeights = weights[layer];
+            float[] layerBiases = biases[layer];
+            for (int f = 0; f < frames; f++) {
+                int inOffset = f * inputs;
+                int outOffset = f * outputs;
+                System.arraycopy(layerBiases, 0, next, outOffset, outputs);
+                for (int i = 0; i < inputs; i++) {
+                    float a = current[inOffset + i];
+                    int row = i * outputs;
+                    for (int o = 0; o < outputs; o++)
+                        next[outOffset + o] += layerWeights[row + o] * a;
+                }
+                for (int o = outOffset; o < outOffset + outputs; o++)
+                    next[o] = sigmoid(next[o]);
+            }
+            float[] swap = current;
+            current = next;
+            next = swap;
+        }
+
+        for (int k = 0; k < frames * frameSize; k++)
+            out.put((byte) Math.round(current[k] * 255f));
+    }
+
+    /**
+     * Возвращает массивы активаций потока, увеличивая их при необходимости
+     */
+    private float[][] activationBuffers(int frames) {
+        float[][] buffers = ACTIVATIONS.get();
+        int needed = 0;
+        for (int size : layerSizes)
+            needed = Math.max(needed, size * frames);
+        if (buffers[0].length < needed) {
+            buffers[0] = new float[needed];
+            buffers[1] = new float[needed];
+        }
+        return buffers;
+    }
+
+    private static float sigmoid(float x) {
+        return (float) (1.0 / (1.0 + Math.exp(-x)));
+    }
+}
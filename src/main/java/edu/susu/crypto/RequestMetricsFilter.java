@@ -0,0 +1,168 @@
+package edu.susu.crypto;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.ws.rs.Path;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import edu.susu.metrics.Histogram;
+import edu.susu.metrics.MetricFamily;
+import edu.susu.metrics.MetricRegistry;
+
+/**
+ * Замеряет время обработки запросов по маршрутам, считает ответы по классам кодов
+ * и байты тел запросов и ответов. Гистограмма маршрута находится один раз на метод ресурса,
+ * дальше запись - это чтение времени и несколько неблокирующих сложений
+ */
+@Provider
+@PreMatching
+public class RequestMetricsFilter implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
+
+    /** Свойство запроса со значением System.nanoTime() на момент его поступления */
+    static final String START_PROPERTY = RequestMetricsFilter.class.getName() + ".start";
+    private static final String UNMATCHED_ROUTE = "unmatched";
+
+    private static final MetricFamily<Histogram> requestDurations = MetricRegistry.getDefault().histogram(
+            "cryptoann_http_request_duration_seconds", "Time from request arrival to response headers, by route", "method", "route");
+    private static final MetricFamily<LongAdder> responses = MetricRegistry.getDefault().counter(
+            "cryptoann_http_responses_total", "Responses by status class", "status");
+    private static final LongAdder requestBytes = MetricRegistry.getDefault().counter(
+            "cryptoann_http_request_bytes_total", "Bytes read from request bodies").get();
+    private static final LongAdder responseBytes = MetricRegistry.getDefault().counter(
+            "cryptoann_http_response_bytes_total", "Bytes written to response bodies").get();
+    private static final LongAdder[] responsesByClass = new LongAdder[6];
+
+    static {
+        for (int i = 1; i < responsesByClass.length; i++)
+            responsesByClass[i] = responses.labels(i + "xx");
+        responsesByClass[0] = responses.labels("other");
+    }
+
+    private static final Map<Method, Histogram> routeDurations = new ConcurrentHashMap<>();
+
+    @Context
+    private ResourceInfo resourceInfo;
+
+    @Override
+    public void filter(ContainerRequestContext request) {
+        request.setProperty(START_PROPERTY, System.nanoTime());
+        if (request.hasEntity())
+            request.setEntityStream(new CountingInputStream(request.getEntityStream()));
+    }
+
+    @Override
+    public void filter(ContainerRequestContext request, ContainerResponseContext response) {
+        Object start = request.getProperty(START_PROPERTY);
+        if (start != null)
+            routeHistogram(request.getMethod()).recordSince((Long) start);
+        int statusClass = response.getStatus() / 100;
+        responsesByClass[(statusClass > 0 && statusClass < responsesByClass.length) ? statusClass : 0].increment();
+    }
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        context.setOutputStream(new CountingOutputStream(context.getOutputStream()));
+        context.proceed();
+    }
+
+    private Histogram routeHistogram(String httpMethod) {
+        Method method = (resourceInfo != null) ? resourceInfo.getResourceMethod() : null;
+        if (method == null)
+            return requestDurations.labels(httpMethod, UNMATCHED_ROUTE);
+        Histogram histogram = routeDurations.get(method);
+        if (histogram == null)
+            histogram = routeDurations.computeIfAbsent(method,
+                    m -> requestDurations.labels(httpMethod, route(resourceInfo.getResourceClass(), m)));
+        return histogram;
+    }
+
+    /**
+     * @return шаблон маршрута метода ресурса, например /{usr}/upload
+     */
+    static String route(Class<?> resourceClass, Method method) {
+        String route = "";
+        if (resourceClass != null && resourceClass.isAnnotationPresent(Path.class))
+            route = trimSlashes(resourceClass.getAnnotation(Path.class).value());
+        if (method.isAnnotationPresent(Path.class)) {
+            String methodPath = trimSlashes(method.getAnnotation(Path.class).value());
+            route = route.isEmpty() ? methodPath : route + "/" + methodPath;
+        }
+        return "/" + route;
+    }
+
+    private static String trimSlashes(String path) {
+        int begin = 0, end = path.length();
+        while (begin < end && path.charAt(begin) == '/')
+            begin++;
+        while (end > begin && path.charAt(end - 1) == '/')
+            end--;
+        return path.substring(begin, end);
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                requestBytes.increment();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = in.read(buffer, offset, length);
+            if (read > 0)
+                requestBytes.add(read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            if (skipped > 0)
+                requestBytes.add(skipped);
+            return skipped;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            responseBytes.increment();
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            responseBytes.add(length);
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package edu.susu.crypto;
 
 import edu.susu.database.User;
+import edu.susu.logging.LogManager;
+import edu.susu.logging.Logger;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
@@ -16,12 +18,18 @@ public interface Routes {
 	public static final String LOGOUT_POSTFIX = "/logout";
 	public static final String UPLOAD_POSTFIX = "/upload";
 	public static final String DOWNLOAD_POSTFIX = "/download";
+	public static final String JOBS_POSTFIX = "/jobs";
+	public static final String JOB_RESULT_POSTFIX = "/result";
+	public static final String TRAINING_POSTFIX = "/training";
+	public static final String TRAINING_EVENTS_POSTFIX = "/events";
+
+	Logger log = LogManager.getLogger(Routes.class);
 
 	public static URI personalPage(String userName) {
 		try {
 			return new URI(ROOT + "/" + URLEncoder.encode(userName, "UTF-8"));
 		} catch (UnsupportedEncodingException | URISyntaxException e) {
-			e.printStackTrace(); // never fires
+			log.error("Failed to build URI", e); // never fires
 			return null;
 		}
 	}
@@ -30,7 +38,7 @@ public interface Routes {
 		try {
 			return new URI(ROOT + "/" + URLEncoder.encode(userName, "UTF-8") + NETWORK_INIT_POSTFIX);
 		} catch (URISyntaxException | UnsupportedEncodingException e) {
-			e.printStackTrace();
+			log.error("Failed to build URI", e);
 			return null;
 		}
 	}
@@ -39,7 +47,7 @@ public interface Routes {
 		try {
 			return new URI(HOME);
 		} catch (URISyntaxException e) {
-			e.printStackTrace();
+			log.error("Failed to build URI", e);
 			return null;
 		}
 	}
@@ -48,29 +56,73 @@ public interface Routes {
 		try {
 			return new URI(HOME + "?cause=" + causeQueryParam);
 		} catch (URISyntaxException e) {
-			e.printStackTrace();
+			log.error("Failed to build URI", e);
 			return null;
 		}
 	}
 
-	public static URI downloadLink(String username, String storedFileName, String initialFileName, String annMode) {
-		String niceFileName = initialFileName;
+	/**
+	 * @param initialFileName имя загруженного файла
+	 * @param annMode режим нейронной сети: encrypt, decrypt
+	 * @return имя, под которым результат обработки предлагается сохранить
+	 */
+	public static String outputFileName(String initialFileName, String annMode) {
 		if (annMode.equals("encrypt"))
-			niceFileName += ".crypto";
+			return initialFileName + ".crypto";
 		else if (initialFileName.endsWith(".crypto"))
-			niceFileName = niceFileName.substring(0, niceFileName.length() - 7);
-		else niceFileName += ".decrypted";
+			return initialFileName.substring(0, initialFileName.length() - 7);
+		else return initialFileName + ".decrypted";
+	}
+
+	public static URI downloadLink(String username, String storedFileName, String initialFileName, String annMode) {
+		String niceFileName = outputFileName(initialFileName, annMode);
 		try {
 			niceFileName = URLEncoder.encode(niceFileName, "UTF-8");
 		} catch (UnsupportedEncodingException e) {
 			// never fires
-			e.printStackTrace();
+			log.error("Failed to build URI", e);
 			return null;
 		}
 		try {
 			return new URI(Routes.ROOT + "/" + username + "/download?file=" + storedFileName + "&name=" + niceFileName);
 		} catch (URISyntaxException e) {
-			e.printStackTrace();
+			log.error("Failed to build URI", e);
+			return null;
+		}
+	}
+
+	public static URI jobStatus(String username, String jobId) {
+		try {
+			return new URI(ROOT + "/" + URLEncoder.encode(username, "UTF-8") + JOBS_POSTFIX + "/" + jobId);
+		} catch (URISyntaxException | UnsupportedEncodingException e) {
+			log.error("Failed to build URI", e);
+			return null;
+		}
+	}
+
+	public static URI jobResult(String username, String jobId) {
+		try {
+			return new URI(ROOT + "/" + URLEncoder.encode(username, "UTF-8") + JOBS_POSTFIX + "/" + jobId + JOB_RESULT_POSTFIX);
+		} catch (URISyntaxException | UnsupportedEncodingException e) {
+			log.error("Failed to build URI", e);
+			return null;
+		}
+	}
+
+	public static URI trainingStatus(String username) {
+		try {
+			return new URI(ROOT + "/" + URLEncoder.encode(username, "UTF-8") + TRAINING_POSTFIX);
+		} catch (URISyntaxException | UnsupportedEncodingException e) {
+			log.error("Failed to build URI", e);
+			return null;
+		}
+	}
+
+	public static URI trainingEvents(String username) {
+		try {
+			return new URI(ROOT + "/" + URLEncoder.encode(username, "UTF-8") + TRAINING_POSTFIX + TRAINING_EVENTS_POSTFIX);
+		} catch (URISyntaxException | UnsupportedEncodingException e) {
+			log.error("Failed to build URI", e);
 			return null;
 		}
 	}
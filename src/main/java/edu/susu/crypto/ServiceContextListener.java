@@ -1,41 +1,343 @@
 package edu.susu.crypto;
 
+import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
+import edu.susu.database.ConnectionPool;
 import edu.susu.database.DatabaseConnector;
+import edu.susu.logging.Level;
+import edu.susu.logging.LogManager;
+import edu.susu.logging.Logger;
+import edu.susu.metrics.MetricRegistry;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Обработчик, запускающийся перед веб-сервисом. Инициализирует подключение к базе данных
  */
 public class ServiceContextListener implements ServletContextListener {
 
+	private static final Logger log = LogManager.getLogger(ServiceContextListener.class);
+
+	private CipherEngine cipherEngine;
+	private ScheduledExecutorService sessionSweeper;
+	private ChunkedCipher chunkedCipher;
+	private Path sessionSnapshot;
+	private StorageManager storageManager;
+	private ScheduledExecutorService storageCollector;
+
 	@Override
 	public void contextDestroyed(ServletContextEvent arg0) {
-		System.out.println("Closing sessions and cleaning up storage space");
-		WebInterfaceService.sessions.closeAllSessions();
-		System.out.println("Closing database connection");
+		log.info("Stopping job queue");
+		WebInterfaceService.jobs.shutdown();
+		log.info("Stopping network training");
+		WebInterfaceService.trainings.shutdown();
+		WebInterfaceService.batches.shutdown();
+		if (chunkedCipher != null) {
+			FileProcessor.setChunkedCipher(null);
+			chunkedCipher.shutdown();
+		}
+		log.info("Stopping cipher engine");
+		cipherEngine.shutdown();
+		sessionSweeper.shutdownNow();
+		storageCollector.shutdownNow();
+		if (sessionSnapshot != null)
+			log.info("Saving sessions to {}", sessionSnapshot);
+		if (sessionSnapshot == null || !saveSessions()) {
+			log.info("Closing sessions and cleaning up storage space");
+			WebInterfaceService.sessions.closeAllSessions();
+		}
+		storageManager.close();
+		log.info("Closing database connection");
 		WebInterfaceService.db.close();
-		System.out.println("ServletContextListener destroyed");
+		log.info("ServletContextListener destroyed");
+		LogManager.shutdown();
 	}
 
 	//Run this before web application is started
 	@Override
 	public void contextInitialized(ServletContextEvent arg0) {
-		System.out.println("ServletContextListener started");
+		ServletContext context = arg0.getServletContext();
+		configureLogging(context);
+		log.info("ServletContextListener started");
 		try {
-			System.out.println("Registering database driver");
+			log.info("Registering database driver");
 			WebInterfaceService.db = new DatabaseConnector(DatabaseConnector.EMBEDDED_DERBY_DRIVER,
 					DatabaseConnector.DERBY_PROTOCOL, "CryptoANN");
-			System.out.println("Opening database connection");
-			WebInterfaceService.db.connect();
+			WebInterfaceService.db.configureUserCache(
+					getIntParameter(context, "users.cacheSize", DatabaseConnector.DEFAULT_USER_CACHE_SIZE),
+					getLongParameter(context, "users.cacheTtlSeconds", DatabaseConnector.DEFAULT_USER_CACHE_TTL_MILLIS / 1000) * 1000);
+			log.info("Opening database connection");
+			WebInterfaceService.db.connect(getIntParameter(context, "db.poolSize", DatabaseConnector.DEFAULT_POOL_SIZE),
+					getLongParameter(context, "db.borrowTimeoutMillis", DatabaseConnector.DEFAULT_BORROW_TIMEOUT_MILLIS));
 		} catch (Exception e) {
-			System.out.println("Failed to connect to database!");
-			e.printStackTrace();
+			log.error("Failed to connect to database!", e);
+		}
+		log.info("Opening session pool");
+		WebInterfaceService.sessions = new SessionPool(getIntParameter(context, "sessions.max", 100000));
+		String snapshotFile = context.getInitParameter("sessions.snapshotFile");
+		if (snapshotFile != null && !snapshotFile.trim().isEmpty()) {
+			sessionSnapshot = Paths.get(snapshotFile.trim());
+			loadSessions();
+		}
+		long sweepPeriod = getLongParameter(context, "sessions.sweepSeconds", 60);
+		sessionSweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "session-sweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		sessionSweeper.scheduleWithFixedDelay(() -> {
+			try {
+				WebInterfaceService.sessions.cleanExpired();
+			} catch (RuntimeException e) {
+				log.error("Session sweep failed", e); // исключение отменило бы все последующие запуски
+			}
+		}, sweepPeriod, sweepPeriod, TimeUnit.SECONDS);
+		long snapshotPeriod = getLongParameter(context, "sessions.snapshotSeconds", 60);
+		if (sessionSnapshot != null && snapshotPeriod > 0)
+			sessionSweeper.scheduleWithFixedDelay(this::saveSessions, snapshotPeriod, snapshotPeriod, TimeUnit.SECONDS);
+		FileProcessor.setMaxUploadSize(getLongParameter(context, "upload.maxSize", 0));
+		String resultCache = context.getInitParameter("storage.resultCache");
+		FileProcessor.setResultCacheEnabled(resultCache == null || !resultCache.trim().equalsIgnoreCase("false"));
+		WebInterfaceService.trainings = new TrainingManager(getIntParameter(context, "training.maxConcurrent", 1));
+		startStorageManager(context);
+		cipherEngine = createCipherEngine(context);
+		FileProcessor.setCipherEngine(cipherEngine);
+		int blockSize = getIntParameter(context, "chunks.blockSize", 0);
+		if (blockSize > 0) {
+			chunkedCipher = new ChunkedCipher(blockSize, getIntParameter(context, "chunks.parallelism", 0));
+			FileProcessor.setChunkedCipher(chunkedCipher);
+		}
+		log.info("Starting job queue");
+		WebInterfaceService.jobs = new JobQueue(getIntParameter(context, "jobs.workers", 0),
+				getIntParameter(context, "jobs.capacity", 256));
+		WebInterfaceService.batches = new BatchProcessor(getIntParameter(context, "batch.parallelism", 0),
+				getIntParameter(context, "batch.maxFiles", BatchProcessor.DEFAULT_MAX_FILES));
+		int resumed = WebInterfaceService.trainings.resumePending();
+		if (resumed > 0)
+			log.info("Resumed {} interrupted network training(s)", resumed);
+		String metricsToken = context.getInitParameter("metrics.token");
+		WebInterfaceService.metricsToken = (metricsToken == null || metricsToken.trim().isEmpty()) ? null : metricsToken.trim();
+		registerMetrics(MetricRegistry.getDefault());
+	}
+
+	/**
+	 * Строит учёт места по содержимому хранилища и запускает сборщик мусора по параметрам storage.*
+	 */
+	private void startStorageManager(ServletContext context) {
+		StorageLayout layout = StorageLayout.parse(context.getInitParameter("storage.roots"),
+				getIntParameter(context, "storage.shardLevels", StorageLayout.DEFAULT_SHARD_LEVELS));
+		FileProcessor.setStorageLayout(layout);
+		log.info("Storage roots {}, {} shard level(s)", layout.getRoots(), layout.getShardLevels());
+		// сеансы из снимка загружены раньше, чем стало известно размещение
+		WebInterfaceService.sessions.locateDirectories(layout);
+		storageManager = new StorageManager(layout,
+				getLongParameter(context, "storage.quotaBytes", 0),
+				getLongParameter(context, "storage.maxAgeMinutes", StorageManager.DEFAULT_MAX_AGE_MILLIS / 60000) * 60000);
+		long start = System.nanoTime();
+		try {
+			// тот же обход находит прерванные обучения; они запускаются, когда готов движок шифрования
+			int scanned = storageManager.rebuild(getIntParameter(context, "storage.scanThreads", 0),
+					WebInterfaceService.trainings::inspect);
+			log.info("Indexed {} storage directories ({} bytes) in {} ms", scanned, storageManager.getTotalUsage(),
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		} catch (IOException e) {
+			log.error("Failed to index storage, quotas start from zero", e);
+		}
+		FileProcessor.setStorageManager(storageManager);
+		storageCollector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "storage-collector");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = getLongParameter(context, "storage.collectSeconds", 600);
+		if (period > 0)
+			storageCollector.scheduleWithFixedDelay(() -> {
+				try {
+					storageManager.collect();
+				} catch (RuntimeException e) {
+					log.error("Storage collection failed", e); // исключение отменило бы все последующие запуски
+				}
+			}, period, period, TimeUnit.SECONDS);
+		String migrate = context.getInitParameter("storage.migrate");
+		if (migrate != null && migrate.trim().equalsIgnoreCase("true"))
+			scheduleMigration(new StorageMigration(layout, storageManager, getIntParameter(context, "storage.migrateBatch", 0)),
+					getLongParameter(context, "storage.migrateSeconds", 60));
+	}
+
+	/**
+	 * Запускает перенос директорий пользователей в потоке сборщика: проходы повторяются,
+	 * пока не останется директорий, которые нужно перенести
+	 */
+	private void scheduleMigration(StorageMigration migration, long periodSeconds) {
+		storageCollector.schedule(() -> {
+			int remaining;
+			try {
+				remaining = migration.migrate();
+			} catch (RuntimeException e) {
+				log.error("Storage migration failed", e);
+				remaining = -1;
+			}
+			if (remaining != 0)
+				scheduleMigration(migration, periodSeconds);
+			else
+				log.info("Storage migration finished");
+		}, Math.max(periodSeconds, 1), TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Восстанавливает сеансы, сохранённые перед остановкой сервиса
+	 */
+	private void loadSessions() {
+		long start = System.nanoTime();
+		try {
+			int loaded = WebInterfaceService.sessions.loadSnapshot(sessionSnapshot);
+			log.info("Restored {} session(s) in {} ms", loaded, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		} catch (IOException | RuntimeException e) {
+			log.error("Failed to restore sessions from {}", sessionSnapshot, e);
+		}
+	}
+
+	/**
+	 * Сохраняет снимок сеансов
+	 * @return false, если снимок сохранить не удалось
+	 */
+	private boolean saveSessions() {
+		try {
+			int saved = WebInterfaceService.sessions.saveSnapshot(sessionSnapshot);
+			log.debug("Saved {} session(s)", saved);
+			return true;
+		} catch (IOException | RuntimeException e) {
+			log.error("Failed to save sessions to {}", sessionSnapshot, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Настраивает журнал по параметрам log.* и журнал доступа по параметрам access.*:
+	 * без log.directory журнал выводится в консоль
+	 */
+	private static void configureLogging(ServletContext context) {
+		String levelName = context.getInitParameter("log.level");
+		Level level = Level.parse(levelName, Level.INFO);
+		int bufferSize = getIntParameter(context, "log.bufferSize", LogManager.DEFAULT_BUFFER_SIZE);
+		String directory = context.getInitParameter("log.directory");
+		if (directory != null && !directory.trim().isEmpty()) {
+			try {
+				LogManager.configureFiles(level, Paths.get(directory.trim()),
+						getLongParameter(context, "log.maxFileBytes", 0), getIntParameter(context, "log.maxFiles", 0), bufferSize);
+			} catch (IOException e) {
+				LogManager.configureConsole(level, bufferSize);
+				log.error("Failed to open log directory {}, logging to console", directory, e);
+			}
+		} else {
+			LogManager.configureConsole(level, bufferSize);
+		}
+		if (levelName != null && !levelName.trim().isEmpty() && Level.parse(levelName, null) == null)
+			log.warn("Unknown log level {}, using {}", levelName, level);
+		AccessLogFilter.configure(getIntParameter(context, "access.sampleRate", 1),
+				getLongParameter(context, "access.slowMillis", 1000));
+	}
+
+	/**
+	 * Создаёт реализацию нейронной сети по параметру cipher.engine: process - внешний cryptoANN,
+	 * java - сеть внутри JVM (обучение по-прежнему выполняет cryptoANN). Сеть внутри JVM экспериментальная
+	 * и включается, только если задан ещё и cipher.javaEngineEnabled
+	 */
+	private static CipherEngine createCipherEngine(ServletContext context) {
+		String annExecutable = context.getInitParameter("ann.executable");
+		if (annExecutable == null || annExecutable.trim().isEmpty())
+			annExecutable = ExternalProcessEngine.DEFAULT_EXECUTABLE_PATH;
+		long annTimeout = getLongParameter(context, "ann.timeoutSeconds", 0) * 1000;
+		String engine = context.getInitParameter("cipher.engine");
+		boolean inJvm = engine != null && engine.trim().equalsIgnoreCase("java");
+		String javaEngineEnabled = context.getInitParameter("cipher.javaEngineEnabled");
+		if (inJvm && (javaEngineEnabled == null || !javaEngineEnabled.trim().equalsIgnoreCase("true"))) {
+			log.warn("In-JVM neural network engine is experimental and disabled, using cryptoANN processes");
+			inJvm = false;
+		}
+		AnnWorkerPool annWorkerPool = null;
+		int annWorkers = getIntParameter(context, "ann.workers", 0);
+		if (annWorkers > 0 && !inJvm) {
+			log.info("Starting cryptoANN worker pool");
+			annWorkerPool = new AnnWorkerPool(annExecutable.trim(),
+					annWorkers, getIntParameter(context, "ann.jobsPerWorker", 1000),
+					annTimeout > 0 ? annTimeout : 10 * 60 * 1000);
+		}
+		ExternalProcessEngine external = new ExternalProcessEngine(annExecutable.trim(), annTimeout, annWorkerPool);
+		if (inJvm) {
+			log.info("Using in-JVM neural network engine");
+			NetworkCache networks = new NetworkCache(
+					getLongParameter(context, "networks.cacheBytes", JavaNetworkEngine.DEFAULT_CACHE_BYTES),
+					getLongParameter(context, "networks.revalidateSeconds", JavaNetworkEngine.DEFAULT_CACHE_REVALIDATE_MILLIS / 1000) * 1000);
+			return new JavaNetworkEngine(external,
+					getLongParameter(context, "io.mapThresholdBytes", JavaNetworkEngine.DEFAULT_MAP_THRESHOLD), networks);
+		}
+		if (engine != null && !engine.trim().equalsIgnoreCase("process") && !engine.trim().equalsIgnoreCase("java"))
+			log.warn("Unknown cipher engine {}, using cryptoANN processes", engine);
+		return external;
+	}
+
+	/**
+	 * Регистрирует показатели компонентов, которые те ведут сами: размеры пулов, очередей и кешей
+	 */
+	private void registerMetrics(MetricRegistry metrics) {
+		metrics.gauge("cryptoann_sessions", "Open sessions", () -> WebInterfaceService.sessions.size());
+		metrics.gauge("cryptoann_jobs_pending", "Jobs waiting in the queue", () -> WebInterfaceService.jobs.getPendingCount());
+		metrics.gauge("cryptoann_trainings_active", "Network trainings queued or running", () -> WebInterfaceService.trainings.getActiveCount());
+		metrics.gauge("cryptoann_storage_bytes", "Bytes in user directories", storageManager::getTotalUsage);
+		metrics.counterFunction("cryptoann_log_events_dropped_total", "Log events dropped because the log buffer was full", LogManager::getDroppedCount);
+		DatabaseConnector db = WebInterfaceService.db;
+		if (db != null) {
+			metrics.gauge("cryptoann_user_cache_size", "Users in the cache", () -> db.getUserCache().size());
+			metrics.counterFunction("cryptoann_user_cache_hits_total", "User cache hits", () -> db.getUserCache().getHitCount());
+			metrics.counterFunction("cryptoann_user_cache_misses_total", "User cache misses", () -> db.getUserCache().getMissCount());
+			ConnectionPool pool = db.getConnectionPool();
+			if (pool != null) {
+				metrics.gauge("cryptoann_db_connections_open", "Open database connections", pool::getOpenCount);
+				metrics.gauge("cryptoann_db_connections_idle", "Idle database connections", pool::getIdleCount);
+				metrics.counterFunction("cryptoann_db_connection_borrows_total", "Connections taken from the pool", pool::getBorrowCount);
+				metrics.counterFunction("cryptoann_db_connection_waits_total", "Borrows that waited for a free connection", pool::getWaitCount);
+				metrics.counterFunction("cryptoann_db_connection_timeouts_total", "Borrows that timed out", pool::getTimeoutCount);
+			}
+		}
+		if (cipherEngine instanceof JavaNetworkEngine) {
+			NetworkCache networks = ((JavaNetworkEngine) cipherEngine).getNetworkCache();
+			metrics.gauge("cryptoann_network_cache_size", "Networks in the cache", networks::size);
+			metrics.gauge("cryptoann_network_cache_bytes", "Weight bytes held by the network cache", networks::getTotalBytes);
+			metrics.counterFunction("cryptoann_network_cache_hits_total", "Network cache hits", networks::getHitCount);
+			metrics.counterFunction("cryptoann_network_cache_misses_total", "Network cache misses", networks::getMissCount);
+			metrics.counterFunction("cryptoann_network_cache_evictions_total", "Networks evicted from the cache", networks::getEvictionCount);
+		}
+	}
+
+	private static int getIntParameter(ServletContext context, String name, int defaultValue) {
+		return (int) getLongParameter(context, name, defaultValue);
+	}
+
+	/**
+	 * Читает целочисленный параметр контекста из web.xml
+	 * @param context контекст веб-приложения
+	 * @param name имя параметра
+	 * @param defaultValue значение, если параметр не задан или некорректен
+	 * @return значение параметра
+	 */
+	private static long getLongParameter(ServletContext context, String name, long defaultValue) {
+		String value = context.getInitParameter(name);
+		if (value == null || value.trim().isEmpty())
+			return defaultValue;
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			log.warn("Invalid value of parameter {}: {}", name, value);
+			return defaultValue;
 		}
-		System.out.println("Opening session pool");
-		WebInterfaceService.sessions = new SessionPool();
 	}
 }
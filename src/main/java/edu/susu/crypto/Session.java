@@ -6,8 +6,6 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
 
 public class Session {
@@ -16,7 +14,7 @@ public class Session {
     public int tokenUsageCount;
     private final int tokenUsageLimit = 5;
     private LocalDateTime creationTime;
-    private LocalDateTime expireTime;
+    private volatile LocalDateTime expireTime;
 
     public Session(User user, long timeToLiveMinutes) {
         this.user = user;
@@ -26,6 +24,17 @@ public class Session {
         updateToken();
     }
 
+    /**
+     * Восстанавливает сеанс из снимка
+     */
+    Session(User user, String token, int tokenUsageCount, LocalDateTime creationTime, LocalDateTime expireTime) {
+        this.user = user;
+        this.token = token;
+        this.tokenUsageCount = tokenUsageCount;
+        this.creationTime = creationTime;
+        this.expireTime = expireTime;
+    }
+
     public User getUser() {
         return user;
     }
@@ -34,6 +43,10 @@ public class Session {
         return creationTime;
     }
 
+    public LocalDateTime getExpireTime() {
+        return expireTime;
+    }
+
     public boolean isExpired() {
        LocalDateTime currentTime = LocalDateTime.now();
        return currentTime.isAfter(expireTime);
@@ -51,32 +64,47 @@ public class Session {
         return token;
     }
 
+    /**
+     * @return текущий токен, без учёта счётчика использований и без его смены
+     */
+    String peekToken() {
+        return token;
+    }
+
     public void updateToken() {
-        try {
-            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
-            byte[] bytes = (user.getName() + LocalDateTime.now().toString()).getBytes();
-            byte[] hash = messageDigest.digest(bytes);
-            StringBuilder sb = new StringBuilder();
-            for(byte b : hash)
-                sb.append(String.format("%02x", b));
-            token = sb.toString();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
+        token = SessionTokens.next();
     }
 
-    public void close() {
+    /**
+     * Удаляет временные файлы пользователя: загрузки и результаты. Вызывается {@link SessionPool},
+     * когда закрыт последний сеанс пользователя и с его файлами не работают задания и пакеты.
+     * Сети, файлы обучения и недописанные файлы (.part) остаются
+     */
+    static void deleteTemporaryFiles(User user) {
         if (user.getStoragePath() != null) {
             File userStorage = Paths.get(user.getStoragePath()).toFile();
             File[] tempFiles = userStorage.listFiles(new FilenameFilter() {
                 @Override
                 public boolean accept(File dir, String name) {
-                    return !name.equals("encryptor.net") && !name.equals("decryptor.net");
+                    // файлы обучения нужны, чтобы продолжить его после выхода пользователя или перезапуска;
+                    // недописанные файлы принадлежат записи, которая ещё идёт
+                    return !name.equals("encryptor.net") && !name.equals("decryptor.net")
+                            && !name.startsWith(TrainingManager.FILE_NAME_PREFIX)
+                            && !name.equals(ContentStore.DIRECTORY_NAME)
+                            && !name.endsWith(".part");
                 }
             });
 
-            for (File file : tempFiles)
-                file.delete();
+            if (tempFiles == null)
+                return; // директории уже нет
+            ContentStore store = ContentStore.of(userStorage.toPath());
+            for (File file : tempFiles) {
+                long size = file.length();
+                if (file.delete())
+                    store.removed(file.getName(), size);
+            }
+            // пользователь ушёл: таблицу имён незачем держать в памяти
+            ContentStore.forget(userStorage.toPath());
         }
     }
 }
@@ -2,14 +2,67 @@ package edu.susu.crypto;
 
 import edu.susu.database.User;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
 
 /**
- * Массив сеансов пользователей
+ * Массив сеансов пользователей. Безопасен для одновременного доступа из потоков обработки запросов.
+ * Помимо самих сеансов хранит очередь сроков их истечения, так что очистка
+ * просматривает только истекшие (или продлённые с момента прошлой проверки) сеансы.
+ * Сеансы можно сохранить в двоичный снимок и загрузить из него после перезапуска сервиса.
+ * Временные файлы пользователя удаляются при закрытии его последнего сеанса, если с ними
+ * не работают задания и пакеты ({@link UserActivity}); иначе их позже удалит сборщик мусора хранилища
  */
 public class SessionPool {
-    Map<String, Session> sessions = new HashMap<String, Session>();
+    Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+    private final PriorityBlockingQueue<ExpiryEntry> expiryQueue = new PriorityBlockingQueue<ExpiryEntry>();
+    // число открытых сеансов по именам пользователей в нижнем регистре
+    private final ConcurrentHashMap<String, Integer> sessionsByUser = new ConcurrentHashMap<String, Integer>();
+    private final Object sweepLock = new Object();
+    private final Object snapshotLock = new Object();
+    private final int maxSessions;
+
+    /**
+     * Элемент очереди сроков: ключ сессии и срок, известный на момент постановки в очередь
+     */
+    private static class ExpiryEntry implements Comparable<ExpiryEntry> {
+        final String key;
+        final Session session;
+        final LocalDateTime expireTime;
+
+        ExpiryEntry(String key, Session session) {
+            this.key = key;
+            this.session = session;
+            this.expireTime = session.getExpireTime();
+        }
+
+        @Override
+        public int compareTo(ExpiryEntry that) {
+            return expireTime.compareTo(that.expireTime);
+        }
+    }
+
+    public SessionPool() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxSessions максимальное число одновременно открытых сеансов;
+     * при превышении закрываются сеансы, которые истекают раньше остальных
+     */
+    public SessionPool(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
 
     /**
      * Открывает новую сессию для пользователя
@@ -19,21 +72,108 @@ public class SessionPool {
      */
     public String openSession(User user, long timeToLiveMinutes) {
         Session session = new Session(user, timeToLiveMinutes);
-        String key = generateSessionKey(session);
+        String key = generateSessionKey();
         sessions.put(key, session);
+        opened(session);
+        expiryQueue.add(new ExpiryEntry(key, session));
+        evictOverflow();
         return key;
     }
 
     public void closeSession(String sessionKey) {
-        Session session = sessions.get(sessionKey);
-        if (session != null)
-            session.close();
-        sessions.remove(sessionKey);
+        Session session = sessions.remove(sessionKey);
+        if (session == null)
+            return;
+        synchronized (sweepLock) {
+            expiryQueue.removeIf(entry -> entry.session == session);
+        }
+        closed(session);
     }
 
     public void closeAllSessions() {
-        for (String sessionKey : sessions.keySet())
-            closeSession(sessionKey);
+        for (String sessionKey : sessions.keySet()) {
+            Session session = sessions.remove(sessionKey);
+            if (session != null)
+                closed(session);
+        }
+        expiryQueue.clear();
+    }
+
+    /**
+     * Сохраняет открытые сеансы в файл снимка
+     * @param file файл снимка
+     * @return число сохранённых сеансов
+     */
+    public int saveSnapshot(Path file) throws IOException {
+        synchronized (snapshotLock) {
+            return SessionSnapshot.write(sessions, file);
+        }
+    }
+
+    /**
+     * Загружает сеансы из снимка, сохранённого {@link #saveSnapshot}. Истекшие сеансы пропускаются,
+     * а их временные файлы удаляются, если у пользователя не осталось действующих сеансов
+     * @param file файл снимка; если его нет, ничего не загружается
+     * @return число загруженных сеансов
+     * @throws IOException если снимок не читается или записан в неизвестном формате
+     */
+    public int loadSnapshot(Path file) throws IOException {
+        if (!Files.isRegularFile(file))
+            return 0;
+        LocalDateTime now = LocalDateTime.now();
+        List<ExpiryEntry> loaded = new ArrayList<ExpiryEntry>();
+        // сеансы одного пользователя в снимке разделяют представление пользователя
+        Set<User> activeUsers = new HashSet<User>();
+        Map<User, Session> expiredByUser = new HashMap<User, Session>();
+        SessionSnapshot.read(file, (key, session) -> {
+            if (session.getExpireTime().isBefore(now)) {
+                expiredByUser.put(session.getUser(), session);
+            } else if (sessions.putIfAbsent(key, session) == null) {
+                opened(session);
+                loaded.add(new ExpiryEntry(key, session));
+                activeUsers.add(session.getUser());
+            }
+        });
+        expiryQueue.addAll(loaded);
+        expiredByUser.keySet().removeAll(activeUsers);
+        for (Session session : expiredByUser.values())
+            cleanUp(session.getUser());
+        evictOverflow();
+        return loaded.size();
+    }
+
+    /**
+     * Сверяет директории пользователей открытых сеансов с размещением хранилища. Сеансы из снимка хранят
+     * путь на момент сохранения, а директорию с тех пор мог перенести {@link StorageMigration};
+     * вызывается один раз после загрузки снимка, когда размещение уже известно
+     * @param layout размещение директорий пользователей
+     */
+    public void locateDirectories(StorageLayout layout) {
+        Set<User> users = new HashSet<User>();
+        for (Session session : sessions.values()) {
+            User user = session.getUser();
+            if (!users.add(user))
+                continue;
+            String current = layout.locate(user.getName(), user.getStoragePath());
+            if (current != null && !current.equals(user.getStoragePath()))
+                user.setStoragePath(current);
+        }
+    }
+
+    /**
+     * Сообщает сеансам пользователя новый путь его директории. {@link StorageMigration} не переносит
+     * директории пользователей с сеансами, так что сеансы здесь находятся, только если открылись во время переноса
+     * @param username имя пользователя
+     * @param storagePath новый путь директории
+     */
+    void relocated(String username, String storagePath) {
+        if (!hasSessions(username))
+            return;
+        for (Session session : sessions.values()) {
+            User user = session.getUser();
+            if (user.getName().equalsIgnoreCase(username))
+                user.setStoragePath(storagePath);
+        }
     }
 
     /**
@@ -46,18 +186,89 @@ public class SessionPool {
     }
 
     /**
-     * Закрывает все сеансы с истекшим сроком
+     * @param username имя пользователя
+     * @return true, если у пользователя есть открытый сеанс
+     */
+    public boolean hasSessions(String username) {
+        return sessionsByUser.containsKey(username.toLowerCase());
+    }
+
+    /**
+     * @return число открытых сеансов
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Закрывает все сеансы с истекшим сроком. Продлённые сеансы возвращаются в очередь с новым сроком
      */
     public void cleanExpired() {
-        for (String key : sessions.keySet())
-            if (sessions.get(key).isExpired())
-                sessions.remove(key);
+        LocalDateTime now = LocalDateTime.now();
+        List<ExpiryEntry> extended = new ArrayList<ExpiryEntry>();
+        synchronized (sweepLock) {
+            // извлекается не позже подсмотренного элемента, так что тоже истёк
+            while (expiryQueue.peek() != null && expiryQueue.peek().expireTime.isBefore(now)) {
+                ExpiryEntry entry = expiryQueue.poll();
+                if (sessions.get(entry.key) != entry.session)
+                    continue; // сессия уже закрыта
+                if (entry.session.isExpired())
+                    closeSession(entry.key, entry.session);
+                else
+                    extended.add(new ExpiryEntry(entry.key, entry.session));
+            }
+            expiryQueue.addAll(extended);
+        }
+    }
+
+    /**
+     * Закрывает сеансы, которые истекают раньше других, пока их число превышает допустимое
+     */
+    private void evictOverflow() {
+        if (sessions.size() <= maxSessions)
+            return;
+        synchronized (sweepLock) {
+            while (sessions.size() > maxSessions) {
+                ExpiryEntry entry = expiryQueue.poll();
+                if (entry == null)
+                    return;
+                if (sessions.get(entry.key) != entry.session)
+                    continue;
+                if (entry.session.getExpireTime().isAfter(entry.expireTime))
+                    expiryQueue.add(new ExpiryEntry(entry.key, entry.session)); // сеанс продлён - он не самый старый
+                else
+                    closeSession(entry.key, entry.session);
+            }
+        }
+    }
+
+    private void closeSession(String key, Session session) {
+        if (sessions.remove(key, session))
+            closed(session);
+    }
+
+    private void opened(Session session) {
+        sessionsByUser.merge(session.getUser().getName().toLowerCase(), 1, Integer::sum);
+    }
+
+    /**
+     * Учитывает закрытие сеанса и, если он был последним у пользователя, удаляет временные файлы пользователя
+     */
+    private void closed(Session session) {
+        String name = session.getUser().getName().toLowerCase();
+        boolean last = sessionsByUser.computeIfPresent(name, (user, count) -> (count > 1) ? count - 1 : null) == null;
+        if (last)
+            cleanUp(session.getUser());
+    }
+
+    private static void cleanUp(User user) {
+        if (!UserActivity.isActive(user.getName()))
+            Session.deleteTemporaryFiles(user);
     }
 
-    private String generateSessionKey(Session session) {
-        // вероятно, один и тот же юзер не сможет залогиниться два раза в один момент времени
-        int userHash = session.getUser().hashCode();
-        int timeHash = session.getCreationTime().hashCode();
-        return Integer.toHexString(userHash) + Integer.toHexString(timeHash);
+    private String generateSessionKey() {
+        // ключ - случайный, а не производный от пользователя и времени: его нельзя угадать,
+        // и два входа одного пользователя в один момент не получат одинаковый ключ
+        return SessionTokens.next();
     }
 }
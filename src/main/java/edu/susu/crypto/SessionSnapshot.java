@@ -0,0 +1,167 @@
+package edu.susu.crypto;
+
+import edu.susu.database.User;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Двоичный снимок сеансов. Запись сеанса: ключ, имя и директория пользователя, токен, счётчик использований
+ * токена, время создания и истечения. Хеш пароля сеансу не нужен и в снимок не попадает.
+ * Время хранится в местном времени без часового пояса (секунды и наносекунды), как его хранит сеанс.
+ * Строки - длина и байты UTF-8. Файл читается целиком и разбирается из массива без промежуточных коллекций:
+ * на десятки тысяч сеансов это несколько мегабайт
+ */
+final class SessionSnapshot {
+
+    /** Сигнатура файла снимка, "CSNS" */
+    private static final int MAGIC = 0x43534E53;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+    private SessionSnapshot() {
+    }
+
+    /**
+     * Сохраняет действующие сеансы. Снимок пишется во временный файл рядом с целевым и заменяет его
+     * одним переименованием, так что прерванная запись не портит прежний снимок.
+     * Снимок содержит ключи и токены сеансов и должен быть доступен только сервису
+     * @param sessions сеансы по ключам
+     * @param file файл снимка
+     * @return число сохранённых сеансов
+     */
+    static int write(Map<String, Session> sessions, Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".part");
+        int written = 0;
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp), BUFFER_SIZE))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+                    Session session = entry.getValue();
+                    if (session.isExpired())
+                        continue;
+                    User user = session.getUser();
+                    out.writeBoolean(true);
+                    writeString(out, entry.getKey());
+                    writeString(out, user.getName());
+                    writeString(out, user.getStoragePath());
+                    writeString(out, session.peekToken());
+                    out.writeInt(session.tokenUsageCount);
+                    writeTime(out, session.getCreationTime());
+                    writeTime(out, session.getExpireTime());
+                    written++;
+                }
+                out.writeBoolean(false);
+            }
+            FileProcessor.moveReplacing(temp, file);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        return written;
+    }
+
+    /**
+     * Читает все сеансы снимка, в том числе успевшие истечь, и передаёт их получателю в порядке записи.
+     * Сеансы одного пользователя получают общее представление пользователя
+     * @param file файл снимка
+     * @param consumer получатель ключа и сеанса
+     * @throws IOException если снимок не читается, обрезан или записан в неизвестном формате
+     */
+    static void read(Path file, BiConsumer<String, Session> consumer) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != VERSION)
+                throw new IOException("Unsupported session snapshot format: " + file);
+            Map<String, User> users = new HashMap<>();
+            TimeReader times = new TimeReader();
+            while (in.get() != 0) {
+                String key = readString(in);
+                String name = readString(in);
+                String storagePath = readString(in);
+                User user = users.get(name);
+                if (user == null) {
+                    user = new User();
+                    user.setName(name);
+                    user.setStoragePath(storagePath);
+                    users.put(name, user);
+                }
+                String token = readString(in);
+                int tokenUsageCount = in.getInt();
+                LocalDateTime creationTime = times.read(in);
+                LocalDateTime expireTime = times.read(in);
+                consumer.accept(key, new Session(user, token, tokenUsageCount, creationTime, expireTime));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated session snapshot: " + file);
+        }
+    }
+
+    /**
+     * Пишет строку как длину в байтах и байты UTF-8; null - длина -1
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0)
+            return null;
+        if (length > in.remaining())
+            throw new BufferUnderflowException();
+        String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static void writeTime(DataOutputStream out, LocalDateTime time) throws IOException {
+        out.writeLong(time.toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(time.getNano());
+    }
+
+    /**
+     * Читает время, записанное {@link #writeTime}. Сроки сеансов укладываются в несколько суток,
+     * поэтому дата последних прочитанных суток запоминается и не вычисляется заново
+     */
+    private static final class TimeReader {
+        private long day = Long.MIN_VALUE;
+        private LocalDate date;
+
+        LocalDateTime read(ByteBuffer in) {
+            long seconds = in.getLong();
+            int nanos = in.getInt();
+            long epochDay = Math.floorDiv(seconds, SECONDS_PER_DAY);
+            if (epochDay != day) {
+                date = LocalDate.ofEpochDay(epochDay);
+                day = epochDay;
+            }
+            long nanoOfDay = Math.floorMod(seconds, SECONDS_PER_DAY) * 1_000_000_000L + nanos;
+            return LocalDateTime.of(date, LocalTime.ofNanoOfDay(nanoOfDay));
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package edu.susu.crypto;
+
+import java.security.SecureRandom;
+
+/**
+ * Генератор токенов и ключей сессий: случайные байты из SecureRandom, закодированные в base64url без дополнения.
+ * У каждого потока свой SecureRandom и свои буферы, поэтому генерация не блокируется
+ * и не создаёт промежуточных объектов, кроме самой строки токена
+ */
+final class SessionTokens {
+
+    /** Число случайных байт в токене (256 бит) */
+    static final int TOKEN_BYTES = 32;
+    /** Длина токена в символах */
+    static final int TOKEN_LENGTH = (TOKEN_BYTES * 4 + 2) / 3;
+
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private static final ThreadLocal<SessionTokens> GENERATORS = ThreadLocal.withInitial(SessionTokens::new);
+
+    private final SecureRandom random = new SecureRandom();
+    private final byte[] bytes = new byte[TOKEN_BYTES];
+    private final char[] chars = new char[TOKEN_LENGTH];
+
+    private SessionTokens() {
+    }
+
+    /**
+     * @return новый непредсказуемый токен из символов [A-Za-z0-9_-], допустимых в cookie и url
+     */
+    static String next() {
+        return GENERATORS.get().generate();
+    }
+
+    private String generate() {
+        random.nextBytes(bytes);
+        int c = 0;
+        int i = 0;
+        for (; i + 3 <= bytes.length; i += 3) {
+            int bits = (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF);
+            chars[c++] = ALPHABET[bits >>> 18];
+            chars[c++] = ALPHABET[(bits >>> 12) & 0x3F];
+            chars[c++] = ALPHABET[(bits >>> 6) & 0x3F];
+            chars[c++] = ALPHABET[bits & 0x3F];
+        }
+        // хвост из одного или двух байт
+        if (i < bytes.length) {
+            int bits = (bytes[i] & 0xFF) << 16 | (i + 1 < bytes.length ? (bytes[i + 1] & 0xFF) << 8 : 0);
+            chars[c++] = ALPHABET[bits >>> 18];
+            chars[c++] = ALPHABET[(bits >>> 12) & 0x3F];
+            if (i + 1 < bytes.length)
+                chars[c++] = ALPHABET[(bits >>> 6) & 0x3F];
+        }
+        return new String(chars, 0, c);
+    }
+}
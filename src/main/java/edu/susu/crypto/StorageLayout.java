@@ -0,0 +1,213 @@
+package edu.susu.crypto;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Размещение директорий пользователей в хранилище. Корней может быть несколько (например, по одному
+ * на диск); новый пользователь получает директорию в корне с наибольшим свободным местом.
+ * Внутри корня директории разложены по уровням вложенности, названным парами шестнадцатеричных цифр
+ * SHA-256 имени пользователя: корень/3f/a2/имя. Так ни одна директория не содержит больше 256 записей
+ * на уровень, сколько бы ни было пользователей. Путь пользователя хранится в базе данных, поэтому
+ * смена настроек касается только новых пользователей; прежние плоские директории корень/имя
+ * продолжают работать и переносятся {@link StorageMigration}
+ */
+public class StorageLayout {
+
+    public static final int DEFAULT_SHARD_LEVELS = 2;
+    public static final int MAX_SHARD_LEVELS = 4;
+
+    private final List<Path> roots;
+    private final int shardLevels;
+
+    /**
+     * @param roots корни хранилища, хотя бы один
+     * @param shardLevels число уровней вложенности, от 0 (плоское размещение) до MAX_SHARD_LEVELS
+     */
+    public StorageLayout(List<Path> roots, int shardLevels) {
+        if (roots.isEmpty())
+            throw new IllegalArgumentException("No storage roots");
+        List<Path> normalized = new ArrayList<>(roots.size());
+        for (Path root : roots)
+            normalized.add(root.toAbsolutePath().normalize());
+        this.roots = Collections.unmodifiableList(normalized);
+        this.shardLevels = Math.max(0, Math.min(shardLevels, MAX_SHARD_LEVELS));
+    }
+
+    /**
+     * @param roots корни через точку с запятой или с новой строки; пустая строка - корень по умолчанию
+     * @param shardLevels число уровней вложенности
+     */
+    public static StorageLayout parse(String roots, int shardLevels) {
+        List<Path> paths = new ArrayList<>();
+        if (roots != null)
+            for (String root : roots.split("[;\\r\\n]+"))
+                if (!root.trim().isEmpty())
+                    paths.add(Paths.get(root.trim()));
+        if (paths.isEmpty())
+            paths.add(Paths.get(FileProcessor.STORAGE_PATH));
+        return new StorageLayout(paths, shardLevels);
+    }
+
+    public List<Path> getRoots() {
+        return roots;
+    }
+
+    public int getShardLevels() {
+        return shardLevels;
+    }
+
+    /**
+     * Выбирает директорию для нового пользователя: корень с наибольшим свободным местом
+     * @param username имя пользователя
+     * @return путь директории; сама директория не создаётся
+     */
+    public Path placeUser(String username) throws IOException {
+        Path best = null;
+        long bestSpace = -1;
+        for (Path root : roots) {
+            Files.createDirectories(root);
+            long space = Files.getFileStore(root).getUsableSpace();
+            if (space > bestSpace) {
+                best = root;
+                bestSpace = space;
+            }
+        }
+        return userDirectory(best, username);
+    }
+
+    /**
+     * @return директория пользователя в корне при текущем числе уровней
+     */
+    Path userDirectory(Path root, String username) {
+        Path directory = root;
+        String hash = ContentStore.toHex(ContentStore.newDigest().digest(
+                username.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8)));
+        for (int level = 0; level < shardLevels; level++)
+            directory = directory.resolve(hash.substring(2 * level, 2 * level + 2));
+        return directory.resolve(username);
+    }
+
+    /**
+     * Находит текущую директорию пользователя. Путь в базе данных меняется, когда {@link StorageMigration}
+     * переносит директорию, а сеансы, восстановленные из снимка, хранят прежний путь
+     * (см. {@link SessionPool#locateDirectories})
+     * @param username имя пользователя
+     * @param storagePath известный путь директории
+     * @return путь директории: прежний, если она на месте или вне хранилища, иначе путь в текущем размещении
+     */
+    public String locate(String username, String storagePath) {
+        if (storagePath == null)
+            return null;
+        Path directory = Paths.get(storagePath).toAbsolutePath().normalize();
+        if (Files.isDirectory(directory))
+            return storagePath;
+        Path root = rootOf(directory);
+        if (root == null)
+            return storagePath;
+        Path current = userDirectory(root, username);
+        return Files.isDirectory(current) ? current.toString() : storagePath;
+    }
+
+    /**
+     * @return корень, в котором лежит директория; null, если директория вне хранилища
+     */
+    Path rootOf(Path directory) {
+        Path normalized = directory.toAbsolutePath().normalize();
+        Path found = null;
+        for (Path root : roots)
+            if (normalized.startsWith(root) && !normalized.equals(root)
+                    && (found == null || root.getNameCount() > found.getNameCount()))
+                found = root;
+        return found;
+    }
+
+    /**
+     * Перечисляет директории первого уровня корня: пользователей плоского размещения и верхние уровни вложенности
+     */
+    List<Path> topLevel(Path root) throws IOException {
+        List<Path> entries = new ArrayList<>();
+        if (!Files.isDirectory(root))
+            return entries;
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path child : children)
+                if (!child.getFileName().toString().equals(StorageManager.INDEX_DIRECTORY_NAME))
+                    entries.add(child);
+        }
+        return entries;
+    }
+
+    /**
+     * Находит директории пользователей под директорией первого уровня корня
+     * @param entry директория из {@link #topLevel}
+     * @param users получатель директорий пользователей
+     */
+    void collectUsers(Path entry, List<Path> users) throws IOException {
+        if (shardLevels > 0 && isShardName(entry.getFileName().toString())) {
+            List<Path> found = new ArrayList<>();
+            if (collectShard(entry.getParent(), entry, 0, found)) {
+                users.addAll(found);
+                return;
+            }
+        }
+        users.add(entry);
+    }
+
+    /**
+     * Обходит директорию, названную как уровень вложенности. Пользователь плоского размещения может
+     * называться так же, поэтому уровнем она считается, только если под ней лежит директория пользователя
+     * на своём месте; иначе это директория пользователя, и в неё (например, в хранилище .store) обход не заходит
+     * @return true, если директория - уровень вложенности
+     */
+    private boolean collectShard(Path root, Path shard, int depth, List<Path> users) throws IOException {
+        List<Path> subdirectories = new ArrayList<>();
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(shard)) {
+            for (Path child : children) {
+                if (Files.isRegularFile(child))
+                    return false;
+                if (Files.isDirectory(child))
+                    subdirectories.add(child);
+            }
+        }
+        boolean laidOut = false;
+        for (Path child : subdirectories) {
+            String name = child.getFileName().toString();
+            if (depth + 1 == shardLevels) {
+                laidOut |= child.equals(userDirectory(root, name));
+                users.add(child);
+                continue;
+            }
+            List<Path> found = new ArrayList<>();
+            if (isShardName(name) && collectShard(root, child, depth + 1, found)) {
+                laidOut = true;
+                users.addAll(found);
+            } else {
+                users.add(child);
+            }
+        }
+        return laidOut;
+    }
+
+    /**
+     * @return все директории пользователей корня
+     */
+    List<Path> userDirectories(Path root) throws IOException {
+        List<Path> users = new ArrayList<>();
+        for (Path entry : topLevel(root))
+            collectUsers(entry, users);
+        return users;
+    }
+
+    private static boolean isShardName(String name) {
+        return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0 && Character.digit(name.charAt(1), 16) >= 0
+                && name.equals(name.toLowerCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,469 @@
+package edu.susu.crypto;
+
+import edu.susu.logging.LogManager;
+import edu.susu.logging.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Учёт места в хранилище и сборка мусора. Объём файлов каждого пользователя ведётся в памяти
+ * и меняется при каждой записи и удалении, так что квота проверяется без обхода директории.
+ * Созданные и повторно использованные файлы записываются в журнал в директории .index своего корня хранилища;
+ * журнал разбит на отрезки по времени записи, и сборщик читает только отрезки старше допустимого
+ * возраста файлов. Возраст отсчитывается от последнего изменения или использования файла
+ * (см. {@link ContentStore#lastUsed}): использованием считаются повторная загрузка того же содержимого,
+ * результат из кеша и скачивание. Файл, которым с тех пор пользовались, переносится в текущий отрезок,
+ * остальные удаляются.
+ * Сети и файлы обучения сборщик не трогает.
+ * При запуске учёт и журнал строятся заново по содержимому диска, директории пользователей
+ * обходятся параллельно: журнал прошлого запуска мог не дописаться
+ */
+public class StorageManager {
+
+    private static final Logger log = LogManager.getLogger(StorageManager.class);
+
+    public static final long DEFAULT_MAX_AGE_MILLIS = 24 * 60 * 60 * 1000;
+    static final String INDEX_DIRECTORY_NAME = ".index";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final long SEGMENT_MILLIS = 10 * 60 * 1000;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final StorageLayout layout;
+    private final Map<Path, Journal> journals = new HashMap<>();
+    private final long quotaBytes;
+    private final long maxAgeMillis;
+    private final ConcurrentHashMap<Path, AtomicLong> usage = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Path, AtomicLong> reserved = new ConcurrentHashMap<>();
+
+    /**
+     * Журнал корня хранилища; запись и смена отрезка - под монитором журнала
+     */
+    private static final class Journal {
+        final Path root;
+        final Path index;
+        long segmentEnd;
+        DataOutputStream segment;
+
+        Journal(Path root) {
+            this.root = root;
+            this.index = root.resolve(INDEX_DIRECTORY_NAME);
+        }
+    }
+
+    /**
+     * @param layout размещение директорий пользователей
+     * @param quotaBytes сколько байт может занимать директория пользователя; 0 - без ограничения
+     * @param maxAgeMillis через сколько после последнего использования файл удаляется сборщиком
+     */
+    public StorageManager(StorageLayout layout, long quotaBytes, long maxAgeMillis) {
+        this.layout = layout;
+        for (Path root : layout.getRoots())
+            journals.put(root, new Journal(root));
+        this.quotaBytes = quotaBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Строит учёт и журналы заново по содержимому директорий пользователей. Корни и их директории
+     * первого уровня обходятся параллельно, каждая вместе со всеми вложенными директориями пользователей
+     * @param parallelism сколько директорий обходится одновременно; если не больше нуля, берётся число ядер процессора
+     * @return число обойдённых директорий пользователей
+     * @throws IOException если корень или журнал недоступны
+     */
+    public int rebuild(int parallelism) throws IOException {
+        return rebuild(parallelism, directory -> { });
+    }
+
+    /**
+     * Строит учёт заново, показывая каждую директорию пользователя получателю до того, как она учтена,
+     * чтобы другим проверкам на запуске не приходилось обходить хранилище ещё раз
+     * @param visitor получатель директорий пользователей; вызывается из потоков обхода
+     */
+    public int rebuild(int parallelism, Consumer<Path> visitor) throws IOException {
+        if (parallelism <= 0)
+            parallelism = Runtime.getRuntime().availableProcessors();
+        for (Journal journal : journals.values()) {
+            Files.createDirectories(journal.index);
+            synchronized (journal) {
+                closeSegment(journal);
+                try (DirectoryStream<Path> segments = Files.newDirectoryStream(journal.index, "*" + SEGMENT_SUFFIX)) {
+                    for (Path old : segments)
+                        Files.delete(old);
+                }
+            }
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService scanners = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "storage-scan-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        usage.clear();
+        int scanned = 0;
+        try {
+            for (Journal journal : journals.values()) {
+                List<Future<List<DirectoryScan>>> scans = new ArrayList<>();
+                for (Path entry : layout.topLevel(journal.root))
+                    scans.add(scanners.submit(() -> {
+                        List<Path> users = new ArrayList<>();
+                        layout.collectUsers(entry, users);
+                        List<DirectoryScan> results = new ArrayList<>(users.size());
+                        for (Path user : users) {
+                            visitor.accept(user);
+                            results.add(scan(user));
+                        }
+                        return results;
+                    }));
+                Map<Long, List<String[]>> buckets = new HashMap<>();
+                for (Future<List<DirectoryScan>> future : scans)
+                    for (DirectoryScan scan : future.get()) {
+                        usage.put(key(scan.directory), new AtomicLong(scan.bytes));
+                        String directoryName = directoryName(journal, scan.directory);
+                        for (int i = 0; i < scan.paths.size(); i++)
+                            buckets.computeIfAbsent(segmentEnd(scan.modified.get(i)), end -> new ArrayList<>())
+                                    .add(new String[] {directoryName, scan.paths.get(i)});
+                        scanned++;
+                    }
+                for (Map.Entry<Long, List<String[]>> bucket : buckets.entrySet())
+                    try (DataOutputStream out = openSegment(journal, bucket.getKey())) {
+                        for (String[] record : bucket.getValue())
+                            writeRecord(out, record[0], record[1]);
+                    }
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to scan storage", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Storage scan interrupted");
+        } finally {
+            scanners.shutdownNow();
+        }
+        return scanned;
+    }
+
+    /**
+     * Переносит учёт директории, перемещённой целиком: объём пересчитывается по новому месту,
+     * а её файлы записываются в журнал заново - записи со старым путём сборщик пропустит
+     */
+    void relocated(Path from, Path to) throws IOException {
+        usage.remove(key(from));
+        DirectoryScan scan = scan(to);
+        adjust(to, scan.bytes);
+        for (String path : scan.paths)
+            record(to, path);
+    }
+
+    /**
+     * @return сколько байт занимают файлы директории пользователя
+     */
+    public long getUsage(Path directory) {
+        AtomicLong bytes = usage.get(key(directory));
+        return (bytes != null) ? bytes.get() : 0;
+    }
+
+    /**
+     * @return сколько байт занимают файлы всех пользователей
+     */
+    public long getTotalUsage() {
+        long total = 0;
+        for (AtomicLong bytes : usage.values())
+            total += bytes.get();
+        return total;
+    }
+
+    /**
+     * @return сколько байт ещё можно записать в директорию пользователя с учётом занятого под незавершённые
+     * загрузки; Long.MAX_VALUE, если квоты нет
+     */
+    long remainingQuota(Path directory) {
+        return (quotaBytes > 0) ? quotaBytes - getUsage(directory) - getReserved(directory) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Занимает место в квоте под данные, которые ещё пишутся. Проверка и занятие атомарны,
+     * поэтому параллельные загрузки одного пользователя вместе не превысят квоту.
+     * Записанный файл учитывается через {@link #adjust}, и только после этого место освобождается
+     * через {@link #release}, чтобы объём на мгновение не оказался учтён ни там, ни там
+     * @param directory директория пользователя
+     * @param bytes сколько байт занять
+     * @return true, если место занято; false, если данные не помещаются в квоту
+     */
+    boolean reserve(Path directory, long bytes) {
+        if (quotaBytes <= 0 || bytes <= 0)
+            return true;
+        AtomicLong pending = reserved.computeIfAbsent(key(directory), k -> new AtomicLong());
+        while (true) {
+            long current = pending.get();
+            if (getUsage(directory) + current + bytes > quotaBytes)
+                return false;
+            if (pending.compareAndSet(current, current + bytes))
+                return true;
+        }
+    }
+
+    /**
+     * Освобождает место, занятое {@link #reserve}: данные учтены или загрузка прервана
+     */
+    void release(Path directory, long bytes) {
+        if (quotaBytes > 0 && bytes > 0)
+            reserved.computeIfAbsent(key(directory), k -> new AtomicLong()).addAndGet(-bytes);
+    }
+
+    private long getReserved(Path directory) {
+        AtomicLong bytes = reserved.get(key(directory));
+        return (bytes != null) ? bytes.get() : 0;
+    }
+
+    /**
+     * Учитывает изменение объёма файлов директории пользователя
+     */
+    void adjust(Path directory, long delta) {
+        if (delta != 0)
+            usage.computeIfAbsent(key(directory), k -> new AtomicLong()).addAndGet(delta);
+    }
+
+    /**
+     * Записывает в журнал, что файл создан или использован сейчас
+     * @param directory директория пользователя
+     * @param relativePath путь файла относительно директории, через /
+     */
+    void record(Path directory, String relativePath) {
+        Path root = layout.rootOf(directory);
+        if (root == null)
+            return; // директория вне хранилища сборщику не видна
+        Journal journal = journals.get(root);
+        String directoryName = directoryName(journal, directory);
+        synchronized (journal) {
+            append(journal, directoryName, relativePath);
+        }
+    }
+
+    /**
+     * Удаляет файлы, которыми не пользовались дольше допустимого возраста
+     * @return сколько байт освобождено в директориях пользователей и в их хранилищах
+     */
+    public long collect() {
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        long freed = 0;
+        for (Journal journal : journals.values())
+            freed += collect(journal, cutoff);
+        return freed;
+    }
+
+    private long collect(Journal journal, long cutoff) {
+        List<Long> due = new ArrayList<>();
+        synchronized (journal) {
+            try {
+                if (journal.segment != null)
+                    journal.segment.flush();
+                try (DirectoryStream<Path> segments = Files.newDirectoryStream(journal.index, "*" + SEGMENT_SUFFIX)) {
+                    for (Path file : segments) {
+                        String name = file.getFileName().toString();
+                        long end = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                        if (end <= cutoff)
+                            due.add(end);
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                log.error("Failed to list storage index in {}", journal.root, e);
+                return 0;
+            }
+        }
+        due.sort(null);
+        long freed = 0;
+        int carried = 0;
+        for (long end : due) {
+            Path file = journal.index.resolve(end + SEGMENT_SUFFIX);
+            Set<String> seen = new HashSet<>();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE))) {
+                while (true) {
+                    String directoryName, relativePath;
+                    try {
+                        directoryName = in.readUTF();
+                        relativePath = in.readUTF();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (!seen.add(directoryName + '/' + relativePath))
+                        continue;
+                    long bytes = ContentStore.peek(journal.root.resolve(directoryName)).collect(relativePath, cutoff);
+                    if (bytes >= 0) {
+                        freed += bytes;
+                    } else {
+                        synchronized (journal) {
+                            append(journal, directoryName, relativePath);
+                        }
+                        carried++;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to collect storage index segment {}", file, e);
+            }
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn("Failed to delete storage index segment {}: {}", file, e.toString());
+            }
+        }
+        if (!due.isEmpty())
+            log.info("Storage collection in {} freed {} bytes, {} file(s) still in use", journal.root, freed, carried);
+        return freed;
+    }
+
+    /**
+     * Дописывает журнал на диск; вызывается при остановке сервиса
+     */
+    public void close() {
+        for (Journal journal : journals.values())
+            synchronized (journal) {
+                closeSegment(journal);
+            }
+    }
+
+    /**
+     * Файлы сетей и обучения нужны пользователю, пока он не переобучит сеть
+     */
+    static boolean isPinned(String fileName) {
+        return fileName.equals(CipherEngine.ENCRYPTOR_FILE_NAME) || fileName.equals(CipherEngine.DECRYPTOR_FILE_NAME)
+                || fileName.startsWith(TrainingManager.FILE_NAME_PREFIX);
+    }
+
+    /**
+     * Результат обхода директории пользователя: объём файлов и файлы, которые может удалить сборщик
+     */
+    private static final class DirectoryScan {
+        final Path directory;
+        long bytes;
+        final List<String> paths = new ArrayList<>();
+        final List<Long> modified = new ArrayList<>();
+
+        DirectoryScan(Path directory) {
+            this.directory = directory;
+        }
+
+        void add(String path, BasicFileAttributes attributes) {
+            paths.add(path);
+            modified.add(ContentStore.lastUsed(attributes));
+        }
+    }
+
+    private static DirectoryScan scan(Path directory) throws IOException {
+        DirectoryScan scan = new DirectoryScan(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    continue; // удалён во время обхода
+                }
+                if (attributes.isRegularFile()) {
+                    scan.bytes += attributes.size();
+                    if (!isPinned(name))
+                        scan.add(name, attributes);
+                } else if (attributes.isDirectory() && name.equals(ContentStore.DIRECTORY_NAME)) {
+                    scanStore(scan, ContentStore.OBJECTS_PATH);
+                    scanStore(scan, ContentStore.RESULTS_PATH);
+                }
+            }
+        }
+        return scan;
+    }
+
+    /**
+     * Файлы хранилища ContentStore не входят в объём пользователя: имена в его директории - ссылки на них
+     */
+    private static void scanStore(DirectoryScan scan, String storePath) throws IOException {
+        Path directory = scan.directory.resolve(storePath);
+        if (!Files.isDirectory(directory))
+            return;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                try {
+                    scan.add(storePath + "/" + file.getFileName(), Files.readAttributes(file, BasicFileAttributes.class));
+                } catch (NoSuchFileException e) {
+                    // удалён во время обхода
+                }
+            }
+        }
+    }
+
+    private static void append(Journal journal, String directoryName, String relativePath) {
+        try {
+            long end = segmentEnd(System.currentTimeMillis());
+            if (journal.segment == null || end != journal.segmentEnd) {
+                closeSegment(journal);
+                journal.segment = openSegment(journal, end);
+                journal.segmentEnd = end;
+            }
+            writeRecord(journal.segment, directoryName, relativePath);
+        } catch (IOException e) {
+            // файл останется на диске до следующего запуска, когда журнал будет построен заново
+            log.warn("Failed to write storage index: {}", e.toString());
+            closeSegment(journal);
+        }
+    }
+
+    private static DataOutputStream openSegment(Journal journal, long end) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(journal.index.resolve(end + SEGMENT_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), BUFFER_SIZE));
+    }
+
+    private static void closeSegment(Journal journal) {
+        if (journal.segment == null)
+            return;
+        try {
+            journal.segment.close();
+        } catch (IOException e) {
+            log.warn("Failed to close storage index segment: {}", e.toString());
+        }
+        journal.segment = null;
+    }
+
+    private static void writeRecord(DataOutputStream out, String directoryName, String relativePath) throws IOException {
+        out.writeUTF(directoryName);
+        out.writeUTF(relativePath);
+    }
+
+    /**
+     * Отрезок журнала, в который попадает запись времени time: отрезки называются временем своего конца
+     */
+    private static long segmentEnd(long time) {
+        return (Math.floorDiv(time, SEGMENT_MILLIS) + 1) * SEGMENT_MILLIS;
+    }
+
+    private static String directoryName(Journal journal, Path directory) {
+        return journal.root.relativize(key(directory)).toString().replace(File.separatorChar, '/');
+    }
+
+    private static Path key(Path directory) {
+        return directory.toAbsolutePath().normalize();
+    }
+}
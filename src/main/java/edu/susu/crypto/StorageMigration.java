@@ -0,0 +1,134 @@
+package edu.susu.crypto;
+
+import edu.susu.database.User;
+import edu.susu.exception.IdleUpdateException;
+import edu.susu.logging.LogManager;
+import edu.susu.logging.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Перенос директорий пользователей в размещение {@link StorageLayout} без остановки сервиса.
+ * Директория переносится одним переименованием внутри своего корня, после чего в базе данных
+ * меняется путь пользователя. Пользователи с открытыми сеансами, заданиями в очереди, пакетами
+ * или незавершённым обучением пропускаются и переносятся на следующих проходах; сеансам, открытым
+ * во время переноса, новый путь сообщается сразу ({@link SessionPool#relocated}).
+ * Между корнями директории не переносятся: переименование там невозможно, а копирование занятого
+ * пользователя не атомарно
+ */
+public class StorageMigration {
+
+    private static final Logger log = LogManager.getLogger(StorageMigration.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final StorageLayout layout;
+    private final StorageManager storage;
+    private final int batchSize;
+
+    /**
+     * @param layout целевое размещение
+     * @param storage учёт места; null - без учёта
+     * @param batchSize сколько директорий переносится за проход; если не больше нуля - DEFAULT_BATCH_SIZE
+     */
+    public StorageMigration(StorageLayout layout, StorageManager storage, int batchSize) {
+        this.layout = layout;
+        this.storage = storage;
+        this.batchSize = (batchSize > 0) ? batchSize : DEFAULT_BATCH_SIZE;
+    }
+
+    /**
+     * Переносит очередную часть директорий, лежащих не на своём месте
+     * @return сколько директорий осталось перенести
+     */
+    public int migrate() {
+        int moved = 0;
+        int remaining = 0;
+        for (Path root : layout.getRoots()) {
+            List<Path> directories;
+            try {
+                directories = layout.userDirectories(root);
+            } catch (IOException e) {
+                log.error("Failed to list storage root {}", root, e);
+                continue;
+            }
+            for (Path directory : directories) {
+                String name = directory.getFileName().toString();
+                Path target = layout.userDirectory(root, name);
+                if (directory.equals(target))
+                    continue;
+                User user = WebInterfaceService.db.getUser(name);
+                if (user == null || user.getStoragePath() == null
+                        || !Paths.get(user.getStoragePath()).toAbsolutePath().normalize().equals(directory)) {
+                    // пустой уровень вложенности или посторонняя директория: переносить нечего
+                    log.debug("Skipping {}: not the storage directory of a user", directory);
+                    continue;
+                }
+                if (moved >= batchSize || isBusy(name) || !move(user, directory, target))
+                    remaining++;
+                else
+                    moved++;
+            }
+        }
+        if (moved > 0)
+            log.info("Moved {} user directories, {} left", moved, remaining);
+        return remaining;
+    }
+
+    /**
+     * @return true, если пользователь работает с директорией: у него есть сеанс, задание или пакет в работе, обучение
+     */
+    private static boolean isBusy(String name) {
+        if (WebInterfaceService.sessions.hasSessions(name) || UserActivity.isActive(name))
+            return true;
+        TrainingRun run = WebInterfaceService.trainings.getRun(name);
+        return run != null && !run.isFinished();
+    }
+
+    private boolean move(User user, Path directory, Path target) {
+        String name = user.getName();
+        try {
+            if (Files.exists(target)) {
+                log.warn("Skipping {}: {} already exists", directory, target);
+                return false;
+            }
+            Files.createDirectories(target.getParent());
+            Files.move(directory, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Failed to move {} to {}", directory, target, e);
+            return false;
+        }
+        boolean saved;
+        try {
+            WebInterfaceService.db.updateUserStoragePath(user.getName(), target.toString());
+            // ошибка SQL только пишется в журнал, поэтому путь перечитывается
+            User updated = WebInterfaceService.db.getUser(name);
+            saved = updated != null && target.toString().equals(updated.getStoragePath());
+        } catch (IdleUpdateException | RuntimeException e) {
+            saved = false;
+        }
+        if (!saved) {
+            log.error("Failed to save storage path of user {}, moving the directory back", name);
+            try {
+                Files.move(target, directory, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException moveBack) {
+                log.error("Failed to move {} back to {}", target, directory, moveBack);
+            }
+            return false;
+        }
+        WebInterfaceService.sessions.relocated(name, target.toString());
+        ContentStore.forget(directory);
+        if (storage != null)
+            try {
+                storage.relocated(directory, target);
+            } catch (IOException e) {
+                log.warn("Failed to account moved directory {}: {}", target, e.toString());
+            }
+        return true;
+    }
+}
@@ -0,0 +1,49 @@
+package edu.susu.crypto;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * Обрывает соединение, если ответ, отдаваемый на лету, не удалось дописать. Jersey после начала ответа
+ * только записывает ошибку в журнал и завершает ответ как обычно, и клиент получил бы обрезанный файл
+ * с кодом 200. Поэтому тело ответа отмечает ошибку в атрибуте запроса, а фильтр после обработки
+ * запроса бросает исключение: контейнер сервлетов закрывает соединение, не завершая ответ,
+ * и клиент видит оборванную передачу
+ */
+public class StreamAbortFilter implements Filter {
+
+    private static final String FAILURE_ATTRIBUTE = StreamAbortFilter.class.getName() + ".failure";
+
+    /**
+     * Отмечает, что ответ на запрос нужно оборвать
+     * @param request запрос; null - запрос обрабатывается не контейнером сервлетов
+     * @param failure причина
+     */
+    static void abort(ServletRequest request, Throwable failure) {
+        if (request != null)
+            request.setAttribute(FAILURE_ATTRIBUTE, failure);
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        chain.doFilter(request, response);
+        Object failure = request.getAttribute(FAILURE_ATTRIBUTE);
+        if (failure instanceof Throwable)
+            throw new ServletException("Response aborted", (Throwable) failure);
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
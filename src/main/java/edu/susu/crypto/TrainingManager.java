@@ -0,0 +1,265 @@
+package edu.susu.crypto;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.susu.logging.LogContext;
+import edu.susu.logging.LogManager;
+import edu.susu.logging.Logger;
+
+/**
+ * Фоновое обучение сетей пользователей. Одновременно обучается не больше заданного числа сетей,
+ * остальные ждут в очереди. Пока обучение не завершено, в директории пользователя лежит отметка
+ * с именем обучающей выборки: если сервис остановится посреди обучения, при следующем запуске
+ * оно будет поставлено в очередь снова и продолжится с контрольной точки, если cryptoANN её сохранил
+ */
+public class TrainingManager {
+
+    private static final Logger log = LogManager.getLogger(TrainingManager.class);
+
+    /** Имя, под которым в директории пользователя сохраняется обучающая выборка */
+    public static final String TRAINING_SET_FILE_NAME = "training.set";
+    /** Отметка незавершённого обучения; содержит имя обучающей выборки */
+    static final String PENDING_FILE_NAME = "training.pending";
+    /** Префикс файлов обучения, которые не удаляются при закрытии сеанса */
+    static final String FILE_NAME_PREFIX = "training.";
+
+    private static final long FINISHED_RUN_RETENTION_MILLIS = 30 * 60 * 1000;
+
+    private final ExecutorService executor;
+    private final Map<String, TrainingRun> runs = new ConcurrentHashMap<>();
+    private final List<TrainingRun> interrupted = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean shutdown = false;
+
+    /**
+     * @param maxConcurrent сколько сетей может обучаться одновременно; если не больше нуля - одна
+     */
+    public TrainingManager(int maxConcurrent) {
+        if (maxConcurrent <= 0)
+            maxConcurrent = 1;
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(maxConcurrent, runnable -> {
+            Thread thread = new Thread(runnable, "ann-training-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Занимает обучение пользователя до того, как сохранена обучающая выборка: проверка, что пользователь
+     * не обучает сеть, и занятие выполняются одним шагом, так что вторая загрузка не перезапишет
+     * выборку, которую читает cryptoANN. Занятое обучение нужно запустить {@link #start} или отменить {@link #cancel}
+     * @param owner имя пользователя
+     * @param directoryPath директория пользователя
+     * @param fileName имя обучающей выборки в директории
+     * @return занятое обучение, null если пользователь уже обучает сеть
+     * @throws RejectedExecutionException если сервис останавливается
+     */
+    public TrainingRun reserve(String owner, String directoryPath, String fileName) {
+        purgeFinished();
+        String key = owner.toLowerCase();
+        TrainingRun run = new TrainingRun(owner, directoryPath, fileName);
+        synchronized (this) {
+            if (shutdown)
+                throw new RejectedExecutionException("Training manager is shut down");
+            TrainingRun current = runs.get(key);
+            if (current != null && !current.isFinished())
+                return null;
+            runs.put(key, run);
+        }
+        return run;
+    }
+
+    /**
+     * Ставит занятое обучение в очередь
+     * @param run обучение, полученное от {@link #reserve}
+     * @param resume продолжить с контрольной точки прерванного обучения; иначе контрольная точка,
+     * оставшаяся от прежней выборки, удаляется
+     * @throws RejectedExecutionException если сервис останавливается
+     * @throws IOException если не удалось сохранить отметку обучения
+     */
+    public void start(TrainingRun run, boolean resume) throws IOException {
+        Path directory = Paths.get(run.getDirectoryPath());
+        try {
+            if (!resume)
+                Files.deleteIfExists(directory.resolve(CipherEngine.CHECKPOINT_FILE_NAME));
+            Files.write(directory.resolve(PENDING_FILE_NAME), run.getFileName().getBytes(StandardCharsets.UTF_8));
+            executor.execute(() -> train(run));
+        } catch (IOException | RuntimeException e) {
+            cancel(run);
+            throw e;
+        }
+    }
+
+    /**
+     * Отменяет занятое обучение, которое не удалось запустить
+     */
+    public void cancel(TrainingRun run) {
+        run.finished(false);
+    }
+
+    /**
+     * @param owner имя пользователя
+     * @return последнее обучение пользователя, null если его не было или оно давно завершено
+     */
+    public TrainingRun getRun(String owner) {
+        return (owner == null) ? null : runs.get(owner.toLowerCase());
+    }
+
+    /**
+     * @return число обучений в очереди и в работе
+     */
+    public int getActiveCount() {
+        int count = 0;
+        for (TrainingRun run : runs.values())
+            if (!run.isFinished())
+                count++;
+        return count;
+    }
+
+    /**
+     * Проверяет директорию пользователя при обходе хранилища на запуске: занимает обучение, прерванное
+     * остановкой сервиса, и удаляет обучающую выборку и контрольную точку, оставшиеся без обучения.
+     * Может вызываться из нескольких потоков обхода; занятые обучения запускает {@link #resumePending}
+     * @param directory директория пользователя, названная его именем
+     */
+    public void inspect(Path directory) {
+        Path pending = directory.resolve(PENDING_FILE_NAME);
+        if (!Files.isRegularFile(pending)) {
+            deleteLeftovers(directory);
+            return;
+        }
+        try {
+            String fileName = new String(Files.readAllBytes(pending), StandardCharsets.UTF_8).trim();
+            if (fileName.isEmpty() || !Files.isRegularFile(directory.resolve(fileName))) {
+                Files.delete(pending);
+                deleteLeftovers(directory);
+                return;
+            }
+            TrainingRun run = reserve(directory.getFileName().toString(), directory.toAbsolutePath().toString(), fileName);
+            if (run != null)
+                interrupted.add(run);
+        } catch (IOException e) {
+            log.error("Failed to resume training in {}", directory, e);
+        }
+    }
+
+    /**
+     * Ставит в очередь обучения, найденные {@link #inspect}; они продолжаются с контрольной точки
+     * @return число возобновлённых обучений
+     */
+    public int resumePending() {
+        List<TrainingRun> found;
+        synchronized (interrupted) {
+            found = new ArrayList<>(interrupted);
+            interrupted.clear();
+        }
+        int resumed = 0;
+        for (TrainingRun run : found)
+            try {
+                start(run, true);
+                resumed++;
+            } catch (IOException e) {
+                log.error("Failed to resume training in {}", run.getDirectoryPath(), e);
+            }
+        return resumed;
+    }
+
+    private static void deleteLeftovers(Path directory) {
+        try {
+            Files.deleteIfExists(directory.resolve(CipherEngine.CHECKPOINT_FILE_NAME));
+            if (Files.exists(directory.resolve(TRAINING_SET_FILE_NAME)))
+                FileProcessor.deleteFromStorage(directory, TRAINING_SET_FILE_NAME);
+        } catch (IOException e) {
+            log.warn("Failed to delete training files in {}: {}", directory, e.toString());
+        }
+    }
+
+    /**
+     * Останавливает обучение; прерванные обучения продолжатся при следующем запуске
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+        }
+        executor.shutdownNow();
+    }
+
+    private void train(TrainingRun run) {
+        LogContext.put("user", run.getOwner());
+        try {
+            train(run, Paths.get(run.getDirectoryPath()));
+        } finally {
+            LogContext.clear();
+        }
+    }
+
+    private void train(TrainingRun run, Path directory) {
+        run.started();
+        log.info("Training started on {}", run.getFileName());
+        long networkBytes = networkBytes(directory);
+        boolean success = false;
+        try {
+            success = FileProcessor.trainNeuralNetwork(run.getDirectoryPath(), run.getFileName(), run::progress);
+        } catch (RuntimeException e) {
+            log.error("Training failed", e);
+        }
+        if (!success && (shutdown || Thread.currentThread().isInterrupted())) {
+            // отметка и контрольная точка остаются: обучение продолжится после перезапуска
+            accountNetworks(directory, networkBytes);
+            log.info("Training interrupted at epoch {}", run.getEpoch());
+            run.finished(false);
+            return;
+        }
+        // неудачное обучение не продолжается: его контрольная точка сбила бы обучение на следующей выборке
+        try {
+            Files.deleteIfExists(directory.resolve(PENDING_FILE_NAME));
+            Files.deleteIfExists(directory.resolve(CipherEngine.CHECKPOINT_FILE_NAME));
+            FileProcessor.deleteFromStorage(directory, run.getFileName());
+        } catch (IOException e) {
+            log.warn("Failed to clean up training files in {}", directory, e);
+        }
+        accountNetworks(directory, networkBytes);
+        log.info("Training {}", success ? "finished" : "failed");
+        run.finished(success);
+    }
+
+    /**
+     * Сети и контрольную точку пишет cryptoANN, поэтому их объём учитывается по разнице до и после обучения
+     */
+    private static void accountNetworks(Path directory, long bytesBefore) {
+        StorageManager storage = FileProcessor.getStorageManager();
+        if (storage != null)
+            storage.adjust(directory, networkBytes(directory) - bytesBefore);
+    }
+
+    private static long networkBytes(Path directory) {
+        long bytes = 0;
+        for (String name : new String[] {CipherEngine.ENCRYPTOR_FILE_NAME, CipherEngine.DECRYPTOR_FILE_NAME, CipherEngine.CHECKPOINT_FILE_NAME})
+            bytes += directory.resolve(name).toFile().length();
+        return bytes;
+    }
+
+    private void purgeFinished() {
+        long threshold = System.currentTimeMillis() - FINISHED_RUN_RETENTION_MILLIS;
+        Iterator<TrainingRun> iterator = runs.values().iterator();
+        while (iterator.hasNext()) {
+            TrainingRun run = iterator.next();
+            if (run.isFinished() && run.getFinishTime() < threshold)
+                iterator.remove();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package edu.susu.crypto;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Фоновое обучение сетей одного пользователя и его ход
+ */
+public class TrainingRun {
+
+    public enum Status { QUEUED, RUNNING, DONE, FAILED }
+
+    private final String owner;
+    private final String directoryPath;
+    private final String fileName;
+    private volatile Status status = Status.QUEUED;
+    private volatile int epoch = 0;
+    private volatile int totalEpochs = 0;
+    private volatile double loss = Double.NaN;
+    private volatile long finishTime;
+    private final List<Consumer<TrainingRun>> listeners = new ArrayList<>();
+
+    TrainingRun(String owner, String directoryPath, String fileName) {
+        this.owner = owner;
+        this.directoryPath = directoryPath;
+        this.fileName = fileName;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    String getDirectoryPath() {
+        return directoryPath;
+    }
+
+    String getFileName() {
+        return fileName;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isFinished() {
+        return status == Status.DONE || status == Status.FAILED;
+    }
+
+    /**
+     * @return номер последней завершённой эпохи, 0 если о ходе обучения ещё не сообщалось
+     */
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return общее число эпох, 0 если неизвестно
+     */
+    public int getTotalEpochs() {
+        return totalEpochs;
+    }
+
+    /**
+     * @return значение функции потерь после последней эпохи, NaN если неизвестно
+     */
+    public double getLoss() {
+        return loss;
+    }
+
+    long getFinishTime() {
+        return finishTime;
+    }
+
+    /**
+     * Регистрирует обработчик изменений: смены состояния и сообщений о ходе обучения.
+     * Обработчик сразу вызывается с текущим состоянием и удаляется после завершения обучения
+     * @param listener обработчик, получающий обучение
+     */
+    public void subscribe(Consumer<TrainingRun> listener) {
+        synchronized (listeners) {
+            if (!isFinished())
+                listeners.add(listener);
+        }
+        listener.accept(this);
+    }
+
+    public void unsubscribe(Consumer<TrainingRun> listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+
+    void started() {
+        status = Status.RUNNING;
+        notifyListeners(false);
+    }
+
+    void progress(int epoch, int totalEpochs, double loss) {
+        this.epoch = epoch;
+        this.totalEpochs = totalEpochs;
+        this.loss = loss;
+        notifyListeners(false);
+    }
+
+    void finished(boolean success) {
+        synchronized (listeners) {
+            finishTime = System.currentTimeMillis();
+            status = success ? Status.DONE : Status.FAILED;
+        }
+        notifyListeners(true);
+    }
+
+    private void notifyListeners(boolean last) {
+        List<Consumer<TrainingRun>> current;
+        synchronized (listeners) {
+            current = new ArrayList<>(listeners);
+            if (last)
+                listeners.clear();
+        }
+        for (Consumer<TrainingRun> listener : current)
+            listener.accept(this);
+    }
+}
@@ -0,0 +1,39 @@
+package edu.susu.crypto;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Учёт работы, которая идёт с файлами пользователя вне его запросов: заданий в очереди,
+ * пакетов и ответов, отдаваемых на лету. Пока у пользователя есть такая работа, его директорию
+ * нельзя чистить при закрытии сеанса и переносить в другое место: работа уже знает путь к файлам
+ */
+final class UserActivity {
+
+    private static final ConcurrentHashMap<String, Integer> active = new ConcurrentHashMap<>();
+
+    private UserActivity() {
+    }
+
+    /**
+     * Отмечает начало работы пользователя; каждому вызову должен соответствовать {@link #finished}
+     */
+    static void started(String username) {
+        active.merge(key(username), 1, Integer::sum);
+    }
+
+    static void finished(String username) {
+        active.computeIfPresent(key(username), (name, count) -> (count > 1) ? count - 1 : null);
+    }
+
+    /**
+     * @return true, если с файлами пользователя сейчас идёт работа
+     */
+    static boolean isActive(String username) {
+        return active.containsKey(key(username));
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+}
@@ -1,12 +1,17 @@
 package edu.susu.crypto;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.net.UnknownHostException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -15,16 +20,39 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.Normalizer;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.*;
 
+import org.glassfish.jersey.media.multipart.FormDataBodyPart;
 import org.glassfish.jersey.media.multipart.FormDataContentDisposition;
 import org.glassfish.jersey.media.multipart.FormDataParam;
+import org.glassfish.jersey.server.ChunkedOutput;
 
 import edu.susu.database.*;
 import edu.susu.exception.*;
+import edu.susu.logging.LogManager;
+import edu.susu.logging.Logger;
+import edu.susu.metrics.MetricFamily;
+import edu.susu.metrics.MetricRegistry;
 
 /**
  * Служба, принимающая первичные REST-запросы от пользователя и возвращающая веб-страницы или файлы
@@ -34,25 +62,58 @@ import edu.susu.exception.*;
 @Path("/")
 public class WebInterfaceService {
 
+    private static final Logger log = LogManager.getLogger(WebInterfaceService.class);
+
     static DatabaseConnector db; // инициализируется в ServiceContextListener
     static SessionPool sessions; // инициализаируется в ServiceContextListener
+    static JobQueue jobs; // инициализируется в ServiceContextListener
+    static TrainingManager trainings; // инициализируется в ServiceContextListener
+    static BatchProcessor batches; // инициализируется в ServiceContextListener
+    static volatile String metricsToken; // инициализируется в ServiceContextListener
+
+    private static final long JOB_RESULT_TIMEOUT_MINUTES = 10;
+    private static final String SSE_MEDIA_TYPE = "text/event-stream";
+    private static final String ZIP_MEDIA_TYPE = "application/zip";
+    // в CP866 допустим любой байт, так что имя в старой кодировке не обрывает чтение архива
+    private static final Charset ZIP_NAME_CHARSET = Charset.isSupported("IBM866")
+            ? Charset.forName("IBM866") : StandardCharsets.ISO_8859_1;
+    /** Insufficient Storage (RFC 4918): в JAX-RS 2.0 нет константы */
+    private static final int INSUFFICIENT_STORAGE = 507;
+    /** Имена путей верхнего уровня: пользователь с таким именем не смог бы открыть свою страницу */
+    private static final Set<String> RESERVED_USERNAMES = new HashSet<>(Arrays.asList(
+            "home", "login", "register", "logout", "metrics"));
+
+    private static final MetricFamily<LongAdder> logins = MetricRegistry.getDefault().counter(
+            "cryptoann_logins_total", "Sign-in attempts by outcome", "outcome");
+    private static final MetricFamily<LongAdder> registrations = MetricRegistry.getDefault().counter(
+            "cryptoann_registrations_total", "Registration attempts by outcome", "outcome");
+    private static final MetricFamily<LongAdder> uploads = MetricRegistry.getDefault().counter(
+            "cryptoann_uploads_total", "Accepted file uploads by mode", "mode", "stream");
 
     /**
      * Генерирует главную страницу сервиса (она же страница логина)
-     * @return html-страница в строковом формате
+     * @param errorCause причина перенаправления на страницу логина
+     * @param request запрос, по которому проверяется If-None-Match
+     * @return html-страница; код 304, если у клиента актуальная копия страницы без сообщения
      */
     @GET
     @Path("/home")
     @Produces(MediaType.TEXT_HTML)
-    public Response serveHomePage(@QueryParam("cause") String errorCause) throws URISyntaxException {
-        if (errorCause == null || errorCause.isEmpty())
-            return Response.ok(HTMLFactory.createLoginPage()).build();
+    public Response serveHomePage(@QueryParam("cause") String errorCause, @Context Request request) throws URISyntaxException {
+        if (errorCause == null || errorCause.isEmpty()) {
+            EntityTag tag = HTMLFactory.getLoginPageTag();
+            Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+            if (notModified != null)
+                return notModified.build();
+            return Response.ok(HTMLFactory.createLoginPage()).tag(tag).build();
+        }
         String message = null;
         switch(errorCause) {
             case "nullUser": message = "Account with the given username does not exist."; break;
             case "passwordMismatch" : message = "Incorrect password."; break;
             case "notAuthorized" : message = "Look's like you're not authenticated on server"; break;
             case "alreadyExists": message = "User with specified username already registered"; break;
+            case "reservedName": message = "This username is reserved. Please choose another one."; break;
             case "registrationSuccessful": message = "Registration successful. You can now sign in"; break;
             case "sessionExpired": message = "Session time expired. Please sign in again."; break;
             default: return Response.status(Response.Status.NOT_FOUND).build();
@@ -71,10 +132,16 @@ public class WebInterfaceService {
     public Response register(@FormParam("username") String username, @FormParam("password")String password) throws URISyntaxException {
         try {
             registerUser(username, password);
+            registrations.labels("success").increment();
             return Response.seeOther(Routes.loginPage("registrationSuccessful")).build();
         } catch (AlreadyExistsException ex) {
+            registrations.labels("already_exists").increment();
             return Response.seeOther(Routes.loginPage("alreadyExists")).build();
+        } catch (ReservedNameException ex) {
+            registrations.labels("reserved_name").increment();
+            return Response.seeOther(Routes.loginPage("reservedName")).build();
         } catch (DatabaseUnreachableException dbEx) {
+            registrations.labels("database_unreachable").increment();
             return Response.serverError().build();
         }
     }
@@ -92,12 +159,16 @@ public class WebInterfaceService {
             String userSessionKey = authUser(username, password);
             String token = sessions.getSession(userSessionKey).getToken();
             NewCookie[] cookies = formCookies(userSessionKey, token);
+            logins.labels("success").increment();
             return Response.seeOther(Routes.personalPage(username)).cookie(cookies).build();
         } catch (UserDoesNotExistException usrEx) {
+            logins.labels("unknown_user").increment();
             return Response.seeOther(Routes.loginPage("nullUser")).build();
         } catch (PasswordMismatchException pswdEx) {
+            logins.labels("password_mismatch").increment();
             return Response.seeOther(Routes.loginPage("passwordMismatch")).build();
         } catch (DatabaseUnreachableException e) {
+            logins.labels("database_unreachable").increment();
             return Response.serverError().build();
         }
     }
@@ -121,12 +192,19 @@ public class WebInterfaceService {
         session.extend(30);
         session.tokenUsageCount++;
         NewCookie[] cookies = (!session.getToken().equals(token)) ? reformTokenCookie(tokenCookie, session.getToken()) : null;
-        boolean firstLogin = sessions.getSession(sessionKey).getUser().getStoragePath() == null;
-        return (firstLogin)
+        TrainingRun training = trainings.getRun(usr);
+        if (training != null && !training.isFinished())
+            return Response.seeOther(Routes.trainingStatus(usr)).cookie(cookies).build();
+        return (!hasNetworks(session.getUser()))
                 ? Response.seeOther(Routes.trainingPage(usr)).cookie(cookies).build()
                 : Response.ok(HTMLFactory.createUserPage(usr), MediaType.TEXT_HTML).cookie(cookies).build();
     }
 
+    private boolean hasNetworks(User user) {
+        return user.getStoragePath() != null
+                && Files.isRegularFile(Paths.get(user.getStoragePath(), CipherEngine.ENCRYPTOR_FILE_NAME));
+    }
+
     private boolean isNullOrEmpty(Cookie cookie) {
         return cookie == null || cookie.getValue().isEmpty();
     }
@@ -163,10 +241,18 @@ public class WebInterfaceService {
      * @param tokenCookie токен сессии
      * @param uploadedInputStream файл из формы
      * @param fileDetail файл из формы
-     * @return http-ответ с перенаправлением на страницу результата в общем случае;
+     * @param stream шифровать или дешифровать на лету, отдавая результат в ответе по мере готовности блоков
+     * @param request запрос контейнера сервлетов; нужен, чтобы оборвать ответ, отдаваемый на лету
+     * @return код 202 со ссылкой на состояние фонового задания в общем случае;
+     * перенаправление на страницу хода обучения, если mode=train;
+     * код 200 с результатом, если указан stream (результат не сохраняется и не ставится в очередь;
+     * при ошибке обработки соединение обрывается);
      * код 200 со страницей логина, если указаны недейстивтельные ключи;
      * код 401, если ключи не указаны вовсе;
      * код 400, если mode невозможно обработать;
+     * код 413, если файл превышает допустимый размер;
+     * код 507, если файл не помещается в квоту хранилища пользователя;
+     * код 503, если очередь заданий переполнена или сервис останавливается;
      * код 500, если возникла ошибка при передаче файла
      */
     @Path("/{usr}/upload")
@@ -177,8 +263,160 @@ public class WebInterfaceService {
                                                    @CookieParam("session") Cookie sessionCookie,
                                                    @CookieParam("token") Cookie tokenCookie,
                                                    @FormDataParam("file") InputStream uploadedInputStream,
-                                                   @FormDataParam("file") FormDataContentDisposition fileDetail)
-            throws URISyntaxException, UnsupportedEncodingException
+                                                   @FormDataParam("file") FormDataContentDisposition fileDetail,
+                                                   @QueryParam("stream") boolean stream,
+                                                   @Context HttpServletRequest request)
+            throws URISyntaxException, IOException
+    {
+        User user = db.getUser(username);
+        if (isNullOrEmpty(sessionCookie) || isNullOrEmpty(tokenCookie) || user == null)
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        String sessionKey = sessionCookie.getValue(), token = tokenCookie.getValue();
+        Session session = sessions.getSession(sessionKey);
+        if (session == null || !session.getUser().getName().equalsIgnoreCase(username) || !session.getToken().equals(token))
+            return Response.seeOther(Routes.loginPage("sessionExpired")).cookie(expireCookies(sessionCookie, tokenCookie)).build();
+        session.extend(30);
+        session.tokenUsageCount++;
+        NewCookie[] cookies = (!session.getToken().equals(token)) ? reformTokenCookie(tokenCookie, session.getToken()) : null;
+        if (!isSupportedMode(mode))
+            return Response.status(Response.Status.BAD_REQUEST).cookie(cookies).build();
+        if (user.getStoragePath() == null)
+            try {
+                FileProcessor.createUserDirectory(user);
+            } catch (IOException e) {
+                log.error("Failed to create storage directory", e);
+                return Response.serverError().build();
+            }
+        String fileName = storageFileName(new String(fileDetail.getFileName().getBytes("iso-8859-1"), "UTF-8"));
+        if (fileName == null)
+            return Response.status(Response.Status.BAD_REQUEST).cookie(cookies).build();
+        if (stream && !mode.equals("train")) {
+            InputStream upload = new BufferedInputStream(uploadedInputStream);
+            // старые шифротексты без контейнера дешифруются только целиком, через очередь
+            if (mode.equals("encrypt") || ChunkedCipher.startsWithContainer(upload)) {
+                uploads.labels(mode, "true").increment();
+                return streamFile(user, mode, upload, fileName, cookies, request);
+            }
+            uploadedInputStream = upload;
+        }
+        uploads.labels(mode, "false").increment();
+        if (mode.equals("train"))
+            return startTraining(user, uploadedInputStream, cookies);
+        java.nio.file.Path filePath;
+        try {
+            filePath = FileProcessor.saveFileInStorage(user, uploadedInputStream, fileName);
+        } catch (QuotaExceededException e) {
+            return Response.status(INSUFFICIENT_STORAGE).cookie(cookies).build();
+        } catch (UploadLimitExceededException e) {
+            return Response.status(Response.Status.REQUEST_ENTITY_TOO_LARGE).cookie(cookies).build();
+        }
+        if (filePath == null) return Response.serverError().build();
+        Callable<URI> task = createFileTask(user, mode, filePath.getFileName().toString(), fileName);
+        Job job;
+        try {
+            job = jobs.submit(user.getName(), Job.PRIORITY_HIGH, task);
+        } catch (RejectedExecutionException e) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).cookie(cookies).build();
+        }
+        return Response.status(Response.Status.ACCEPTED)
+                .location(Routes.jobStatus(username, job.getId()))
+                .header("Refresh", HTMLFactory.createJobPageRefresh(username, job.getId()))
+                .entity(HTMLFactory.createJobPage(username, job.getId(), true))
+                .type(MediaType.TEXT_HTML)
+                .cookie(cookies)
+                .build();
+    }
+
+    /**
+     * Шифрует или дешифрует пакет файлов из полей file формы за один запрос: сеанс проверяется один раз,
+     * файлы обрабатываются параллельно, ответ отправляется, когда обработаны все. Форма к этому моменту
+     * уже принята целиком, так что обработка начинается только после приёма всех файлов;
+     * принимать файлы одновременно с обработкой позволяет {@link #processZipBatch}
+     * @param username имя пользователя
+     * @param mode режим нейронной сети: encrypt, decrypt
+     * @param sessionCookie ключ сессии
+     * @param tokenCookie токен сессии
+     * @param parts файлы из формы
+     * @return код 200 со списком файлов (см. {@link #batchManifest});
+     * код 200 со страницей логина, если указаны недействительные ключи;
+     * код 401, если ключи не указаны вовсе;
+     * код 400, если mode невозможно обработать;
+     * код 503, если сервис останавливается
+     */
+    @Path("/{usr}/upload/batch")
+    @POST
+    @Consumes(MediaType.MULTIPART_FORM_DATA)
+    public Response processBatch(@PathParam("usr") String username,
+                                 @QueryParam("mode") String mode,
+                                 @CookieParam("session") Cookie sessionCookie,
+                                 @CookieParam("token") Cookie tokenCookie,
+                                 @FormDataParam("file") List<FormDataBodyPart> parts)
+            throws IOException
+    {
+        return runBatch(username, mode, sessionCookie, tokenCookie, batch -> {
+            if (parts == null)
+                return;
+            for (FormDataBodyPart part : parts) {
+                String fileName = part.getFormDataContentDisposition().getFileName();
+                fileName = (fileName != null) ? storageFileName(new String(fileName.getBytes("iso-8859-1"), "UTF-8")) : null;
+                batch.add((fileName != null) ? fileName : "file", part.getValueAs(InputStream.class));
+            }
+        });
+    }
+
+    /**
+     * Шифрует или дешифрует пакет файлов, переданный zip-архивом в теле запроса. Файлы архива
+     * обрабатываются по мере приёма, не дожидаясь конца архива; директории архива не сохраняются.
+     * Имена без флага UTF-8 читаются в кодировке CP866, в которой архивы создаёт русская Windows
+     * @return то же, что {@link #processBatch}; код 400 со списком принятых файлов, если архив повреждён или обрезан
+     */
+    @Path("/{usr}/upload/batch")
+    @POST
+    @Consumes(ZIP_MEDIA_TYPE)
+    public Response processZipBatch(@PathParam("usr") String username,
+                                    @QueryParam("mode") String mode,
+                                    @CookieParam("session") Cookie sessionCookie,
+                                    @CookieParam("token") Cookie tokenCookie,
+                                    InputStream body)
+            throws IOException
+    {
+        return runBatch(username, mode, sessionCookie, tokenCookie, batch -> {
+            ZipInputStream archive = new ZipInputStream(new BufferedInputStream(body), ZIP_NAME_CHARSET);
+            ZipEntry entry;
+            while ((entry = nextZipEntry(archive)) != null) {
+                if (entry.isDirectory())
+                    continue;
+                String fileName = storageFileName(entry.getName());
+                // файл сохраняется до конца записи, а поток архива остаётся открытым для следующей
+                batch.add((fileName != null) ? fileName : "file", new FilterInputStream(archive) {
+                    @Override
+                    public void close() {
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Читает заголовок следующей записи архива; имя, которое не удалось раскодировать, считается повреждением архива
+     */
+    private static ZipEntry nextZipEntry(ZipInputStream archive) throws IOException {
+        try {
+            return archive.getNextEntry();
+        } catch (IllegalArgumentException e) {
+            throw new ZipException("Malformed entry name: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Источник файлов пакета: добавляет в пакет файлы по мере чтения запроса
+     */
+    private interface BatchSource {
+        void addTo(BatchProcessor.Batch batch) throws IOException, InterruptedException;
+    }
+
+    private Response runBatch(String username, String mode, Cookie sessionCookie, Cookie tokenCookie, BatchSource source)
+            throws IOException
     {
         User user = db.getUser(username);
         if (isNullOrEmpty(sessionCookie) || isNullOrEmpty(tokenCookie) || user == null)
@@ -190,62 +428,372 @@ public class WebInterfaceService {
         session.extend(30);
         session.tokenUsageCount++;
         NewCookie[] cookies = (!session.getToken().equals(token)) ? reformTokenCookie(tokenCookie, session.getToken()) : null;
+        if (!"encrypt".equals(mode) && !"decrypt".equals(mode))
+            return Response.status(Response.Status.BAD_REQUEST).cookie(cookies).build();
         if (user.getStoragePath() == null)
             try {
                 FileProcessor.createUserDirectory(user);
             } catch (IOException e) {
-                e.printStackTrace();
+                log.error("Failed to create storage directory", e);
                 return Response.serverError().build();
             }
-        String fileName = new String(fileDetail.getFileName().getBytes ("iso-8859-1"), "UTF-8");
+        Response.Status status = Response.Status.OK;
+        try (BatchProcessor.Batch batch = batches.open(user, mode)) {
+            try {
+                source.addTo(batch);
+            } catch (IOException e) {
+                // повреждённый архив или оборванный запрос: в ответе то, что успели принять
+                log.warn("Batch upload interrupted: {}", e.toString());
+                status = Response.Status.BAD_REQUEST;
+            }
+            List<BatchProcessor.Entry> entries = batch.finish();
+            uploads.labels(mode, "false").add(entries.size());
+            return Response.status(status)
+                    .entity(batchManifest(user.getName(), mode, entries))
+                    .type(MediaType.TEXT_PLAIN_TYPE.withCharset("UTF-8"))
+                    .cookie(cookies)
+                    .build();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).cookie(cookies).build();
+        }
+    }
+
+    /**
+     * Список файлов пакета: строка на файл в порядке приёма, поля через табуляцию -
+     * итог (DONE, FAILED, TOO_LARGE, QUOTA_EXCEEDED, SKIPPED), ссылка на результат или "-", исходное имя файла
+     */
+    private static String batchManifest(String username, String mode, List<BatchProcessor.Entry> entries)
+            throws UnsupportedEncodingException
+    {
+        StringBuilder manifest = new StringBuilder(entries.size() * 128);
+        for (BatchProcessor.Entry entry : entries) {
+            manifest.append(entry.getStatus()).append('\t');
+            if (entry.getStatus() == BatchProcessor.Status.DONE)
+                manifest.append(Routes.downloadLink(username, URLEncoder.encode(entry.getStoredFileName(), "UTF-8"),
+                        entry.getFileName(), mode));
+            else
+                manifest.append('-');
+            manifest.append('\t').append(entry.getFileName()).append('\n');
+        }
+        return manifest.toString();
+    }
+
+    /**
+     * Приводит имя загруженного файла к имени в хранилище: отбрасывает путь,
+     * имена не из ASCII заменяет на fileNonAscii с прежним расширением
+     * @return имя в хранилище; null, если имя пустое или состоит из одних точек
+     */
+    private static String storageFileName(String fileName) {
+        fileName = fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1);
+        if (fileName.replace(".", "").trim().isEmpty())
+            return null;
         fileName = Normalizer.normalize(fileName, Normalizer.Form.NFD);
         if (!StandardCharsets.US_ASCII.newEncoder().canEncode(fileName)) {
-            String extension = fileName.substring(fileName.lastIndexOf('.'), fileName.length());
-            fileName = "fileNonAscii" + extension;
+            int dot = fileName.lastIndexOf('.');
+            fileName = "fileNonAscii" + ((dot >= 0) ? fileName.substring(dot) : "");
         }
-        java.nio.file.Path filePath = FileProcessor.saveFileInStorage(user, uploadedInputStream, fileName);
-        if (filePath == null) return Response.serverError().build();
+        return fileName;
+    }
+
+    /**
+     * Сохраняет обучающую выборку и ставит обучение сетей пользователя в очередь. Пока обучение
+     * не завершено, новая выборка не принимается: её файл читает cryptoANN
+     */
+    private Response startTraining(User user, InputStream upload, NewCookie[] cookies) throws IOException {
+        String username = user.getName();
+        TrainingRun run;
+        try {
+            run = trainings.reserve(username, user.getStoragePath(), TrainingManager.TRAINING_SET_FILE_NAME);
+        } catch (RejectedExecutionException e) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).cookie(cookies).build();
+        }
+        if (run == null)
+            return Response.seeOther(Routes.trainingStatus(username)).cookie(cookies).build();
+        java.nio.file.Path filePath;
+        try {
+            filePath = FileProcessor.saveFileInStorage(user, upload, TrainingManager.TRAINING_SET_FILE_NAME);
+        } catch (QuotaExceededException e) {
+            trainings.cancel(run);
+            return Response.status(INSUFFICIENT_STORAGE).cookie(cookies).build();
+        } catch (UploadLimitExceededException e) {
+            trainings.cancel(run);
+            return Response.status(Response.Status.REQUEST_ENTITY_TOO_LARGE).cookie(cookies).build();
+        }
+        if (filePath == null) {
+            trainings.cancel(run);
+            return Response.serverError().build();
+        }
+        try {
+            trainings.start(run, false);
+        } catch (RejectedExecutionException e) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).cookie(cookies).build();
+        }
+        return Response.seeOther(Routes.trainingStatus(username)).cookie(cookies).build();
+    }
+
+    /**
+     * Отдаёт результат обработки загрузки, не дожидаясь обработки всего файла: блоки шифруются
+     * или дешифруются по мере чтения части формы и сразу пишутся в ответ, так что результат не сохраняется
+     * в хранилище и задание не ставится в очередь. Открытые данные не попадают на диск, если сеть обрабатывает
+     * блоки в памяти (сеть внутри JVM); cryptoANN работает только с файлами, и с ним на диске временно лежат
+     * обрабатываемые блоки (см. {@link ChunkedCipher#encrypt(String, InputStream, java.io.OutputStream)}).
+     * Саму загрузку Jersey к этому моменту уже принял целиком
+     * (в память или во временный файл), а сеть работает в потоке запроса. Размер загрузки ограничен
+     * так же, как при сохранении. Если обработка прервалась после начала ответа, соединение обрывается
+     * (см. {@link StreamAbortFilter}), чтобы клиент не принял обрезанный файл за целый
+     */
+    private Response streamFile(User user, String mode, InputStream upload, String fileName, NewCookie[] cookies,
+                                HttpServletRequest request) {
         String directoryPath = user.getStoragePath();
-        String savedFileName = filePath.getFileName().toString();
-        Response result = null;
-        switch (mode) {
-            case "train":
+        InputStream limited;
+        try {
+            limited = FileProcessor.limitUpload(user, upload);
+        } catch (QuotaExceededException e) {
+            return Response.status(INSUFFICIENT_STORAGE).cookie(cookies).build();
+        }
+        StreamingOutput body = output -> {
+            UserActivity.started(user.getName());
+            try (InputStream source = limited) {
+                if (mode.equals("encrypt"))
+                    FileProcessor.encryptStream(directoryPath, source, output);
+                else
+                    FileProcessor.decryptStream(directoryPath, source, output);
+            } catch (IOException | RuntimeException e) {
+                StreamAbortFilter.abort(request, e);
+                throw e;
+            } finally {
+                UserActivity.finished(user.getName());
+            }
+        };
+        return Response.ok(body, MediaType.APPLICATION_OCTET_STREAM_TYPE)
+                .header("Content-Disposition", FileDownload.contentDisposition(Routes.outputFileName(fileName, mode)))
+                .cookie(cookies)
+                .build();
+    }
+
+    private boolean isSupportedMode(String mode) {
+        return "train".equals(mode) || "encrypt".equals(mode) || "decrypt".equals(mode);
+    }
+
+    /**
+     * Создаёт фоновое задание обработки сохранённого файла нейронной сетью
+     * @param user пользователь
+     * @param mode режим нейронной сети: encrypt, decrypt
+     * @param savedFileName имя файла в хранилище пользователя
+     * @param fileName исходное имя файла
+     * @return действие, возвращающее адрес страницы результата или null при ошибке
+     */
+    private Callable<URI> createFileTask(User user, String mode, String savedFileName, String fileName) {
+        String username = user.getName();
+        String directoryPath = user.getStoragePath();
+        return () -> {
+            java.nio.file.Path output = (mode.equals("encrypt"))
+                    ? FileProcessor.encryptFile(directoryPath, savedFileName)
+                    : FileProcessor.decryptFile(directoryPath, savedFileName);
+            if (output == null)
+                return null;
+            String storedFileName = URLEncoder.encode(output.getFileName().toString(), "UTF-8");
+            return Routes.downloadLink(username, storedFileName, fileName, mode);
+        };
+    }
+
+    /**
+     * Сообщает состояние фонового задания пользователя
+     * @param username имя пользователя
+     * @param jobId идентификатор задания
+     * @param sessionCookie ключ сессии
+     * @param tokenCookie токен сессии
+     * @return перенаправление на страницу результата, если задание выполнено;
+     * код 200 со страницей ожидания, если задание ещё выполняется;
+     * код 404, если задания не существует;
+     * код 500, если задание завершилось ошибкой;
+     * код 503, если задание отменено остановкой сервиса;
+     * код 401, если ключи не указаны вовсе
+     */
+    @Path("/{usr}/jobs/{id}")
+    @GET
+    public Response serveJobStatus(@PathParam("usr") String username,
+                                   @PathParam("id") String jobId,
+                                   @CookieParam("session") Cookie sessionCookie,
+                                   @CookieParam("token") Cookie tokenCookie)
+    {
+        if (isNullOrEmpty(sessionCookie) || isNullOrEmpty(tokenCookie))
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        String sessionKey = sessionCookie.getValue(), token = tokenCookie.getValue();
+        Session session = sessions.getSession(sessionKey);
+        if (session == null || !session.getUser().getName().equalsIgnoreCase(username) || !session.getToken().equals(token))
+            return Response.seeOther(Routes.loginPage("sessionExpired")).cookie(expireCookies(sessionCookie, tokenCookie)).build();
+        session.extend(30);
+        Job job = jobs.getJob(jobId);
+        if (job == null || !job.getOwner().equalsIgnoreCase(username))
+            return Response.status(Response.Status.NOT_FOUND).build();
+        return jobResponse(job, username);
+    }
+
+    /**
+     * Ожидает завершения фонового задания, не занимая поток обработки запросов
+     * @param username имя пользователя
+     * @param jobId идентификатор задания
+     * @param sessionCookie ключ сессии
+     * @param tokenCookie токен сессии
+     * @param asyncResponse ответ, возобновляемый по завершении задания
+     */
+    @Path("/{usr}/jobs/{id}/result")
+    @GET
+    public void awaitJobResult(@PathParam("usr") String username,
+                               @PathParam("id") String jobId,
+                               @CookieParam("session") Cookie sessionCookie,
+                               @CookieParam("token") Cookie tokenCookie,
+                               @Suspended AsyncResponse asyncResponse)
+    {
+        if (isNullOrEmpty(sessionCookie) || isNullOrEmpty(tokenCookie)) {
+            asyncResponse.resume(Response.status(Response.Status.UNAUTHORIZED).build());
+            return;
+        }
+        String sessionKey = sessionCookie.getValue(), token = tokenCookie.getValue();
+        Session session = sessions.getSession(sessionKey);
+        if (session == null || !session.getUser().getName().equalsIgnoreCase(username) || !session.getToken().equals(token)) {
+            asyncResponse.resume(Response.seeOther(Routes.loginPage("sessionExpired")).cookie(expireCookies(sessionCookie, tokenCookie)).build());
+            return;
+        }
+        session.extend(30);
+        Job job = jobs.getJob(jobId);
+        if (job == null || !job.getOwner().equalsIgnoreCase(username)) {
+            asyncResponse.resume(Response.status(Response.Status.NOT_FOUND).build());
+            return;
+        }
+        asyncResponse.setTimeout(JOB_RESULT_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+        asyncResponse.setTimeoutHandler(response -> response.resume(jobResponse(job, username)));
+        job.onCompletion(finished -> asyncResponse.resume(jobResponse(finished, username)));
+    }
+
+    private Response jobResponse(Job job, String username) {
+        switch (job.getStatus()) {
+            case DONE:
+                return Response.seeOther(job.getResult()).build();
+            case FAILED:
+                return Response.serverError().build();
+            case CANCELLED:
+                return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+            default:
+                return Response.ok(HTMLFactory.createJobPage(username, job.getId(), job.getStatus() == Job.Status.QUEUED), MediaType.TEXT_HTML)
+                        .header("Refresh", HTMLFactory.createJobPageRefresh(username, job.getId()))
+                        .build();
+        }
+    }
+
+    /**
+     * Генерирует страницу хода обучения сетей пользователя
+     * @param username имя пользователя
+     * @param sessionCookie ключ сессии
+     * @param tokenCookie токен сессии
+     * @return код 200 со страницей хода обучения, если обучение ещё идёт;
+     * перенаправление на личную страницу, если сети обучены;
+     * перенаправление на страницу инициализации, если обучение не удалось или не начиналось;
+     * код 200 со страницей логина, если указаны недействительные ключи;
+     * код 401, если ключи не указаны вовсе
+     */
+    @Path("/{usr}/training")
+    @GET
+    public Response serveTrainingStatus(@PathParam("usr") String username,
+                                        @CookieParam("session") Cookie sessionCookie,
+                                        @CookieParam("token") Cookie tokenCookie)
+    {
+        if (isNullOrEmpty(sessionCookie) || isNullOrEmpty(tokenCookie))
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        String sessionKey = sessionCookie.getValue(), token = tokenCookie.getValue();
+        Session session = sessions.getSession(sessionKey);
+        if (session == null || !session.getUser().getName().equalsIgnoreCase(username) || !session.getToken().equals(token))
+            return Response.seeOther(Routes.loginPage("sessionExpired")).cookie(expireCookies(sessionCookie, tokenCookie)).build();
+        session.extend(30);
+        TrainingRun training = trainings.getRun(username);
+        if (training != null && !training.isFinished())
+            return Response.ok(HTMLFactory.createTrainingPage(username), MediaType.TEXT_HTML).build();
+        return (hasNetworks(session.getUser()))
+                ? Response.seeOther(Routes.personalPage(username)).build()
+                : Response.seeOther(Routes.trainingPage(username)).build();
+    }
+
+    /**
+     * Передаёт ход обучения сетей пользователя событиями Server-Sent Events:
+     * progress (JSON с полями epoch, totalEpochs, loss) при каждом сообщении cryptoANN,
+     * done или failed (адрес следующей страницы) по завершении, после чего поток закрывается
+     * @param username имя пользователя
+     * @param sessionCookie ключ сессии
+     * @param tokenCookie токен сессии
+     * @return поток событий; код 404, если пользователь не обучает сети;
+     * код 401, если ключи не указаны или недействительны
+     */
+    @Path("/{usr}/training/events")
+    @GET
+    @Produces(SSE_MEDIA_TYPE)
+    public Response streamTrainingEvents(@PathParam("usr") String username,
+                                         @CookieParam("session") Cookie sessionCookie,
+                                         @CookieParam("token") Cookie tokenCookie)
+    {
+        if (isNullOrEmpty(sessionCookie) || isNullOrEmpty(tokenCookie))
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        String sessionKey = sessionCookie.getValue(), token = tokenCookie.getValue();
+        Session session = sessions.getSession(sessionKey);
+        // EventSource не следует перенаправлениям на страницу логина
+        if (session == null || !session.getUser().getName().equalsIgnoreCase(username) || !session.getToken().equals(token))
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        session.extend(30);
+        TrainingRun training = trainings.getRun(username);
+        if (training == null)
+            return Response.status(Response.Status.NOT_FOUND).build();
+        ChunkedOutput<String> events = new ChunkedOutput<>(String.class);
+        training.subscribe(new Consumer<TrainingRun>() {
+            @Override
+            public void accept(TrainingRun run) {
                 try {
-                    boolean succ = FileProcessor.trainNeuralNetwork(directoryPath, savedFileName);
-                    if (succ)
-                        result = Response.seeOther(Routes.personalPage(username)).build();
-                    else {
-                        db.updateUserStoragePath(user.getName(), null);
-                        result = Response.serverError().build();
+                    switch (run.getStatus()) {
+                        case DONE:
+                            events.write(trainingEvent("done", Routes.personalPage(username).toString()));
+                            events.close();
+                            break;
+                        case FAILED:
+                            events.write(trainingEvent("failed", Routes.trainingPage(username).toString()));
+                            events.close();
+                            break;
+                        default:
+                            events.write(trainingEvent("progress", progressJson(run)));
                     }
-                } catch (IdleUpdateException e) {
-                    e.printStackTrace();
+                } catch (IOException e) {
+                    // клиент закрыл страницу
+                    run.unsubscribe(this);
                 }
-                break;
-            case "encrypt" :
-            case "decrypt" :
-                java.nio.file.Path output = (mode.equals("encrypt"))
-                        ? FileProcessor.encryptFile(directoryPath, savedFileName)
-                        : FileProcessor.decryptFile(directoryPath, savedFileName);
-                if (output != null) {
-                    String storedFileName = URLEncoder.encode(output.getFileName().toString(), "UTF-8");
-                    result = Response.seeOther(Routes.downloadLink(username, storedFileName, fileName, mode)).build();
-                } else result = Response.serverError().build();
-                break;
-            default: result = Response.status(Response.Status.BAD_REQUEST).build();
-        }
-        return result;
+            }
+        });
+        return Response.ok(events, SSE_MEDIA_TYPE).header("Cache-Control", "no-cache").build();
+    }
+
+    private static String trainingEvent(String name, String data) {
+        return "event: " + name + "\ndata: " + data + "\n\n";
+    }
+
+    private static String progressJson(TrainingRun run) {
+        double loss = run.getLoss();
+        return String.format(Locale.ROOT, "{\"epoch\":%d,\"totalEpochs\":%d,\"loss\":%s}",
+                run.getEpoch(), run.getTotalEpochs(),
+                (Double.isNaN(loss) || Double.isInfinite(loss)) ? "null" : Double.toString(loss));
     }
 
     /**
-     *
-     * @param username
-     * @param storageFileName
-     * @param outputFileName
-     * @param sessionCookie
-     * @param tokenCookie
-     * @return
-     * @throws UnsupportedEncodingException
+     * Отдаёт пользователю файл из его хранилища; поддерживает докачку (Range, If-Range)
+     * и условные запросы (If-None-Match, If-Modified-Since)
+     * @param username имя пользователя
+     * @param storageFileName имя файла в хранилище
+     * @param outputFileName имя, под которым файл предлагается сохранить
+     * @param sessionCookie ключ сессии
+     * @param tokenCookie токен сессии
+     * @param request запрос, по которому проверяются условные заголовки
+     * @param range заголовок Range
+     * @param ifRange заголовок If-Range
+     * @return код 200 с файлом; код 206 с фрагментом файла; код 304, если файл не изменился;
+     * код 200 со страницей логина, если указаны недействительные ключи;
+     * код 401, если ключи не указаны вовсе; код 404, если файла нет
      */
     @Path("/{usr}/download")
     @GET
@@ -254,8 +802,97 @@ public class WebInterfaceService {
                                                    @QueryParam("file") String storageFileName,
                                                    @QueryParam("name") String outputFileName,
                                                    @CookieParam("session") Cookie sessionCookie,
-                                                   @CookieParam("token") Cookie tokenCookie)
+                                                   @CookieParam("token") Cookie tokenCookie,
+                                                   @Context Request request,
+                                                   @HeaderParam("Range") String range,
+                                                   @HeaderParam("If-Range") String ifRange)
+            throws IOException
+    {
+        User user = db.getUser(username);
+        if (isNullOrEmpty(sessionCookie) || isNullOrEmpty(tokenCookie) || user == null)
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        String sessionKey = sessionCookie.getValue(), token = tokenCookie.getValue();
+        Session session = sessions.getSession(sessionKey);
+        if (session == null || !session.getUser().getName().equalsIgnoreCase(username) || !session.getToken().equals(token))
+            return Response.ok(HTMLFactory.createLoginPage("Session time expired. Please sign in again."), MediaType.TEXT_HTML).cookie(expireCookies(sessionCookie, tokenCookie)).build();
+        session.extend(30);
+        session.tokenUsageCount++;
+        if (user.getStoragePath() == null || storageFileName == null)
+            return Response.status(Response.Status.NOT_FOUND).build();
+        java.nio.file.Path filePath = resolveStorageFile(user, storageFileName);
+        if (filePath == null)
+            return Response.status(Response.Status.NOT_FOUND).build();
+        ContentStore.used(filePath);
+        return FileDownload.build(filePath, outputFileName, request, range, ifRange);
+    }
+
+    /**
+     * Находит файл в директории пользователя по имени из ссылки на скачивание
+     * @param storageFileName имя в хранилище, закодированное как в ссылке
+     * @return путь к файлу; null, если имя указывает за пределы директории пользователя
+     */
+    private static java.nio.file.Path resolveStorageFile(User user, String storageFileName)
             throws UnsupportedEncodingException
+    {
+        java.nio.file.Path directory = Paths.get(user.getStoragePath()).normalize();
+        java.nio.file.Path filePath = directory.resolve(URLDecoder.decode(storageFileName, "UTF-8")).normalize();
+        return (filePath.startsWith(directory) && !filePath.equals(directory)) ? filePath : null;
+    }
+
+    /**
+     * Отдаёт несколько файлов хранилища одним zip-архивом без сжатия. Архив формируется на лету
+     * прямо в ответ (см. {@link FileDownload#archive}); докачка и условные запросы не поддерживаются
+     * @param username имя пользователя
+     * @param storageFileNames имена файлов в хранилище, параметры file
+     * @param outputFileNames имена файлов в архиве, параметры name в том же порядке; без имени файл
+     * кладётся в архив под именем в хранилище
+     * @param archiveName имя, под которым архив предлагается сохранить; по умолчанию files.zip
+     * @param sessionCookie ключ сессии
+     * @param tokenCookie токен сессии
+     * @param request запрос контейнера сервлетов; нужен, чтобы оборвать ответ, если архив не удалось дописать
+     * @return код 200 с архивом;
+     * код 200 со страницей логина, если указаны недействительные ключи;
+     * код 401, если ключи не указаны вовсе; код 404, если какого-либо файла нет или файлы не указаны
+     */
+    @Path("/{usr}/download/archive")
+    @GET
+    @Produces(ZIP_MEDIA_TYPE)
+    public Response serveArchive(@PathParam("usr") String username,
+                                 @QueryParam("file") List<String> storageFileNames,
+                                 @QueryParam("name") List<String> outputFileNames,
+                                 @QueryParam("archive") String archiveName,
+                                 @CookieParam("session") Cookie sessionCookie,
+                                 @CookieParam("token") Cookie tokenCookie,
+                                 @Context HttpServletRequest request)
+            throws IOException
+    {
+        return archiveResponse(username, storageFileNames, outputFileNames, archiveName, sessionCookie, tokenCookie, request);
+    }
+
+    /**
+     * То же, что {@link #serveArchive}, с параметрами в теле формы: список файлов большого пакета
+     * не умещается в строку запроса
+     */
+    @Path("/{usr}/download/archive")
+    @POST
+    @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    @Produces(ZIP_MEDIA_TYPE)
+    public Response serveArchiveForm(@PathParam("usr") String username,
+                                     @FormParam("file") List<String> storageFileNames,
+                                     @FormParam("name") List<String> outputFileNames,
+                                     @FormParam("archive") String archiveName,
+                                     @CookieParam("session") Cookie sessionCookie,
+                                     @CookieParam("token") Cookie tokenCookie,
+                                     @Context HttpServletRequest request)
+            throws IOException
+    {
+        return archiveResponse(username, storageFileNames, outputFileNames, archiveName, sessionCookie, tokenCookie, request);
+    }
+
+    private Response archiveResponse(String username, List<String> storageFileNames, List<String> outputFileNames,
+                                     String archiveName, Cookie sessionCookie, Cookie tokenCookie,
+                                     HttpServletRequest request)
+            throws IOException
     {
         User user = db.getUser(username);
         if (isNullOrEmpty(sessionCookie) || isNullOrEmpty(tokenCookie) || user == null)
@@ -263,15 +900,61 @@ public class WebInterfaceService {
         String sessionKey = sessionCookie.getValue(), token = tokenCookie.getValue();
         Session session = sessions.getSession(sessionKey);
         if (session == null || !session.getUser().getName().equalsIgnoreCase(username) || !session.getToken().equals(token))
-            return Response.ok(HTMLFactory.createLoginPage("Session time expired. Please sign in again.")).cookie(expireCookies(sessionCookie, tokenCookie)).build();
+            return Response.ok(HTMLFactory.createLoginPage("Session time expired. Please sign in again."), MediaType.TEXT_HTML).cookie(expireCookies(sessionCookie, tokenCookie)).build();
         session.extend(30);
         session.tokenUsageCount++;
-        storageFileName = URLDecoder.decode(storageFileName, "UTF-8");
-        java.nio.file.Path filePath = Paths.get(user.getStoragePath(), storageFileName);
-        File file = filePath.toFile();
-        Response.ResponseBuilder response = Response.ok((Object) file);
-        response.header("Content-Disposition", "attachment; filename=" + outputFileName);
-        return response.build();
+        if (user.getStoragePath() == null || storageFileNames == null || storageFileNames.isEmpty())
+            return Response.status(Response.Status.NOT_FOUND).build();
+        List<java.nio.file.Path> files = new ArrayList<>(storageFileNames.size());
+        List<String> entryNames = new ArrayList<>(storageFileNames.size());
+        for (int i = 0; i < storageFileNames.size(); i++) {
+            java.nio.file.Path filePath = resolveStorageFile(user, storageFileNames.get(i));
+            if (filePath == null)
+                return Response.status(Response.Status.NOT_FOUND).build();
+            files.add(filePath);
+            String entryName = (outputFileNames != null && i < outputFileNames.size()) ? outputFileNames.get(i) : null;
+            // путь в имени записи позволил бы архиву распаковаться за пределы директории клиента
+            if (entryName != null)
+                entryName = entryName.substring(Math.max(entryName.lastIndexOf('/'), entryName.lastIndexOf('\\')) + 1);
+            entryNames.add((entryName == null || entryName.isEmpty()) ? filePath.getFileName().toString() : entryName);
+        }
+        for (java.nio.file.Path file : files)
+            ContentStore.used(file);
+        return FileDownload.archive(files, entryNames, (archiveName == null || archiveName.isEmpty()) ? "files.zip" : archiveName,
+                request);
+    }
+
+    /**
+     * Выдаёт метрики сервиса в текстовом формате Prometheus. Если задан параметр metrics.token,
+     * запрос должен нести заголовок Authorization: Bearer с этим токеном; иначе метрики отдаются
+     * только запросам с локального адреса
+     * @param authorization значение заголовка Authorization, может быть null
+     * @return код 200 со значениями всех метрик; код 401, если токен не указан или неверен;
+     * код 403, если токен не задан, а запрос пришёл не с локального адреса
+     */
+    @Path("/metrics")
+    @GET
+    public Response serveMetrics(@HeaderParam("Authorization") String authorization,
+                                 @Context HttpServletRequest request) {
+        String token = metricsToken;
+        if (token != null) {
+            String expected = "Bearer " + token;
+            if (authorization == null || !MessageDigest.isEqual(
+                    expected.getBytes(StandardCharsets.UTF_8), authorization.getBytes(StandardCharsets.UTF_8)))
+                return Response.status(Response.Status.UNAUTHORIZED).header("WWW-Authenticate", "Bearer").build();
+        } else if (!isLoopback(request.getRemoteAddr())) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+        return Response.ok(MetricRegistry.getDefault().scrape(), MetricRegistry.CONTENT_TYPE).build();
+    }
+
+    private static boolean isLoopback(String address) {
+        try {
+            // адрес клиента - всегда IP, так что имя не разрешается через DNS
+            return address != null && InetAddress.getByName(address).isLoopbackAddress();
+        } catch (UnknownHostException e) {
+            return false;
+        }
     }
 
     /**
@@ -297,9 +980,14 @@ public class WebInterfaceService {
      * @param name имя пользователя
      * @param password пароль
      * @throws AlreadyExistsException если пользователь с заданным именем уже существует
+     * @throws ReservedNameException если имя совпадает с путём сервиса верхнего уровня
      * @throws DatabaseUnreachableException если не удалось подключиться к базе данных
      */
-    private void registerUser(String name, String password) throws AlreadyExistsException, DatabaseUnreachableException {
+    private void registerUser(String name, String password)
+            throws AlreadyExistsException, ReservedNameException, DatabaseUnreachableException {
+        // имена пользователей сравниваются без учёта регистра
+        if (name != null && RESERVED_USERNAMES.contains(name.toLowerCase(Locale.ROOT)))
+            throw new ReservedNameException();
         byte[] hash = getPasswordHash(password);
         if (db.isConnected()) {
             User entry = db.getUser(name);
@@ -346,7 +1034,7 @@ public class WebInterfaceService {
             return digest.digest(password.getBytes(StandardCharsets.UTF_8));
         } catch (NoSuchAlgorithmException e) {
             // probably never fires
-            e.printStackTrace();
+            log.error("SHA-256 is not available", e);
             return new byte[32];
         }
     }
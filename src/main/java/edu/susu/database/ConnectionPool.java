@@ -0,0 +1,152 @@
+package edu.susu.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ограниченный пул соединений с базой данных. Соединения создаются по мере надобности,
+ * но не больше заданного числа; при исчерпании пула запрос ждёт освободившееся соединение
+ * не дольше заданного времени
+ */
+public class ConnectionPool {
+
+	private final String url;
+	private final int maxSize;
+	private final long borrowTimeoutMillis;
+	private final ArrayBlockingQueue<PooledConnection> idle;
+	// разрешение - право держать соединение; выданных соединений не больше maxSize, так что и открытых тоже
+	private final Semaphore permits;
+	private final AtomicInteger openCount = new AtomicInteger();
+	private volatile boolean closed = false;
+
+	private final LongAdder borrowCount = new LongAdder();
+	private final LongAdder waitCount = new LongAdder();
+	private final LongAdder timeoutCount = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+
+	/**
+	 * @param url адрес базы данных
+	 * @param maxSize максимальное число соединений
+	 * @param borrowTimeoutMillis сколько ждать свободного соединения
+	 */
+	ConnectionPool(String url, int maxSize, long borrowTimeoutMillis) {
+		this.url = url;
+		this.maxSize = maxSize;
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+		this.idle = new ArrayBlockingQueue<>(maxSize);
+		this.permits = new Semaphore(maxSize);
+	}
+
+	/**
+	 * Выдаёт соединение из пула; по окончании работы его нужно закрыть (вернуть в пул)
+	 * @return соединение
+	 * @throws SQLTransientConnectionException если свободное соединение не появилось за отведённое время
+	 * @throws SQLException если не удалось открыть новое соединение
+	 */
+	PooledConnection borrow() throws SQLException {
+		if (closed)
+			throw new SQLException("Connection pool is closed");
+		borrowCount.increment();
+		if (!permits.tryAcquire()) {
+			waitCount.increment();
+			long start = System.nanoTime();
+			boolean acquired;
+			try {
+				acquired = permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLTransientConnectionException("Interrupted while waiting for a database connection");
+			} finally {
+				waitNanos.add(System.nanoTime() - start);
+			}
+			if (!acquired) {
+				timeoutCount.increment();
+				throw new SQLTransientConnectionException("No database connection available within " + borrowTimeoutMillis + " ms");
+			}
+		}
+		PooledConnection connection = idle.poll();
+		if (connection != null)
+			return connection;
+		openCount.incrementAndGet();
+		try {
+			return new PooledConnection(this, DriverManager.getConnection(url));
+		} catch (SQLException e) {
+			openCount.decrementAndGet();
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Возвращает соединение в пул; закрытые и испорченные соединения отбрасываются.
+	 * В обоих случаях место в пуле переходит к ожидающему запросу: вместо отброшенного соединения он откроет новое
+	 */
+	void release(PooledConnection connection) {
+		boolean reusable;
+		try {
+			reusable = !closed && !connection.getConnection().isClosed();
+		} catch (SQLException e) {
+			reusable = false;
+		}
+		if (!reusable || !idle.offer(connection)) {
+			openCount.decrementAndGet();
+			connection.closePhysically();
+		}
+		permits.release();
+	}
+
+	/**
+	 * Закрывает свободные соединения; занятые закрываются при возврате
+	 */
+	void close() {
+		closed = true;
+		PooledConnection connection;
+		while ((connection = idle.poll()) != null) {
+			openCount.decrementAndGet();
+			connection.closePhysically();
+		}
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int getOpenCount() {
+		return openCount.get();
+	}
+
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	/** @return сколько раз соединение запрашивалось из пула */
+	public long getBorrowCount() {
+		return borrowCount.sum();
+	}
+
+	/** @return сколько раз запросу пришлось ждать освобождения соединения */
+	public long getWaitCount() {
+		return waitCount.sum();
+	}
+
+	/** @return сколько раз соединение не удалось получить за отведённое время */
+	public long getTimeoutCount() {
+		return timeoutCount.sum();
+	}
+
+	/** @return суммарное время ожидания соединений, мс */
+	public long getTotalWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(waitNanos.sum());
+	}
+}
@@ -3,6 +3,11 @@ package edu.susu.database;
 import java.sql.*;
 
 import edu.susu.exception.IdleUpdateException;
+import edu.susu.logging.LogManager;
+import edu.susu.logging.Logger;
+import edu.susu.metrics.Histogram;
+import edu.susu.metrics.MetricFamily;
+import edu.susu.metrics.MetricRegistry;
 
 /**
  * JDBC-коннектор к локальной базе данных пользователей
@@ -11,14 +16,33 @@ import edu.susu.exception.IdleUpdateException;
  */
 public class DatabaseConnector {
 	
-	private boolean debugMode = true;
+	private static final Logger log = LogManager.getLogger(DatabaseConnector.class);
 	public final static String EMBEDDED_DERBY_DRIVER = "org.apache.derby.jdbc.EmbeddedDriver";
 	public final static String DERBY_PROTOCOL = "jdbc:derby:";
+	public final static int DEFAULT_POOL_SIZE = 8;
+	public final static long DEFAULT_BORROW_TIMEOUT_MILLIS = 5000;
+	public final static int DEFAULT_USER_CACHE_SIZE = 10000;
+	public final static long DEFAULT_USER_CACHE_TTL_MILLIS = 5 * 60 * 1000;
+
+	private final static String SQL_INSERT_USER = "INSERT INTO Users(username, password_hash, storage_path) VALUES(?, ?, ?)";
+	private final static String SQL_SELECT_USER = "SELECT username, password_hash, storage_path FROM Users WHERE username = ?";
+	private final static String SQL_UPDATE_PASSWORD = "UPDATE Users SET password_hash = ? WHERE username = ?";
+	private final static String SQL_UPDATE_STORAGE_PATH = "UPDATE Users SET storage_path = ? WHERE username = ?";
+	private final static String SQL_DELETE_USER = "DELETE FROM Users WHERE username = ?";
+
+	private final static MetricFamily<Histogram> queryDurations = MetricRegistry.getDefault().histogram(
+			"cryptoann_db_query_duration_seconds", "Database query time, including waiting for a pooled connection", "query");
+	private final static Histogram insertUserTime = queryDurations.labels("insert_user");
+	private final static Histogram selectUserTime = queryDurations.labels("select_user");
+	private final static Histogram updatePasswordTime = queryDurations.labels("update_password");
+	private final static Histogram updateStoragePathTime = queryDurations.labels("update_storage_path");
+	private final static Histogram deleteUserTime = queryDurations.labels("delete_user");
 	
 	private final String driver;
 	private final String protocol;
 	private final String dbName;
-	private Connection connection;
+	private ConnectionPool pool;
+	private UserCache userCache = new UserCache(DEFAULT_USER_CACHE_SIZE, DEFAULT_USER_CACHE_TTL_MILLIS);
 	
 	/**
 	 * Создаёт объект коннектора к указанной базе данных и регистрирует встроенный драйвер
@@ -42,77 +66,103 @@ public class DatabaseConnector {
 			throws InstantiationException, IllegalAccessException, ClassNotFoundException 
 	{
 		Class.forName(driver).newInstance();
-		if (debugMode)
-			System.out.println("Registered database driver instance");
+		log.debug("Registered database driver instance");
 	}
 	
 	/**
-	 * Осуществляет подключение к базе данных
+	 * Осуществляет подключение к базе данных с параметрами пула по умолчанию
 	 */
 	public void connect() throws SQLException 
 	{
-		connection = DriverManager.getConnection(protocol + dbName + ";create=true");
-		if (debugMode)
-			System.out.println("Connected to / created database " + dbName);
+		connect(DEFAULT_POOL_SIZE, DEFAULT_BORROW_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Осуществляет подключение к базе данных
+	 * @param poolSize максимальное число одновременно открытых соединений
+	 * @param borrowTimeoutMillis сколько запрос ждёт свободного соединения
+	 */
+	public void connect(int poolSize, long borrowTimeoutMillis) throws SQLException
+	{
+		ConnectionPool connecting = new ConnectionPool(protocol + dbName + ";create=true", poolSize, borrowTimeoutMillis);
+		try {
+			connecting.borrow().close(); // создаёт базу данных, если её нет, и проверяет подключение
+		} catch (SQLException e) {
+			connecting.close();
+			throw e;
+		}
+		// пул доступен только после удачного подключения, иначе isConnected скрыл бы недоступность базы
+		pool = connecting;
+		log.info("Connected to / created database {}", dbName);
 		if (isDatabaseEmpty()) {
 			createTables();
-			if (debugMode)
-				System.out.println("Created tables");
+			log.info("Created tables");
 		}
 	}
 
+	/**
+	 * Заменяет кеш пользователей
+	 * @param maxSize максимальное число записей; 0 отключает кеширование
+	 * @param timeToLiveMillis время жизни записи, мс
+	 */
+	public void configureUserCache(int maxSize, long timeToLiveMillis) {
+		userCache = new UserCache(maxSize, timeToLiveMillis);
+	}
+
+	/**
+	 * @return кеш пользователей (для сбора статистики)
+	 */
+	public UserCache getUserCache() {
+		return userCache;
+	}
+
 	/**
 	 * Проверка, не закрыто ли соединение с базой данных
 	 * @return false, если соединение закрыто, иначе true
 	 */
 	public boolean isConnected() {
-		try {
-			return !connection.isClosed();
-		} catch (SQLException e) {
-			e.printStackTrace();
-			return false;
-		}
+		return pool != null && !pool.isClosed();
+	}
+
+	/**
+	 * @return пул соединений (для сбора статистики), null если подключение не выполнялось
+	 */
+	public ConnectionPool getConnectionPool() {
+		return pool;
 	}
 	
 	/**
-	 * Закрывает соединение с базой данных
+	 * Закрывает соединения с базой данных
 	 */
 	public void close() {
-		try {
-			if (isConnected())
-				connection.close();
-			if (debugMode)
-				System.out.println("Disconnected from database");
-		} catch (SQLException e) {
-			e.printStackTrace();
-		}
+		if (isConnected())
+			pool.close();
+		log.info("Disconnected from database");
 	}
 	
 	/**
-	 * Проверяет, есть ли в базе таблицы, выводит их в консоль отладки
+	 * Проверяет, есть ли в базе таблицы, выводит первую из них в отладочный журнал
 	 * @return true если база не пуста, иначе false
 	 */
 	public boolean isDatabaseEmpty() {
 		boolean result = true;
-		try {
-			ResultSet res = connection.getMetaData().getTables(null, null, null, new String[]{"TABLE"});
-			if (debugMode)
-				System.out.println("List of tables: ");
+		try (PooledConnection connection = pool.borrow()) {
+			ResultSet res = connection.getConnection().getMetaData().getTables(null, null, null, new String[]{"TABLE"});
 			if (res.next()) {
 				result = false;
-				if (debugMode)
-					System.out.println(res.getString(3));
+				log.debug("Found table {}", res.getString(3));
 			}
 			res.close();
 		} catch (SQLException e) {
-			e.printStackTrace();
+			log.error("Failed to list tables", e);
 		}
 		return result;
 	}
 	
 	/**
-	 * Создаёт новые таблицы в базе данных
-	 * @throws SQLException в случае ошибки при создании одной из таблиц успешно созданные удаляются
+	 * Создаёт новые таблицы в базе данных. Соединения пула работают в режиме автоподтверждения,
+	 * так что каждая таблица создаётся отдельной транзакцией
+	 * @throws SQLException в случае ошибки при создании таблицы
 	 */
 	private void createTables() throws SQLException {
 		String createTableUsers = "CREATE TABLE Users"
@@ -122,36 +172,33 @@ public class DatabaseConnector {
 				+ "storage_path VARCHAR(1000),"
 				+ "PRIMARY KEY (username)"
 				+ ")";
-		try {
-			Statement statement = connection.createStatement();
-			System.out.println("Creating Table Users");
+		try (PooledConnection pooled = pool.borrow();
+				Statement statement = pooled.getConnection().createStatement()) {
+			log.info("Creating Table Users");
 			statement.executeUpdate(createTableUsers);
-		} catch (SQLException sqle) {
-			connection.rollback();
-			throw sqle;
 		}
-		connection.commit();
 	}
 	
 	/**
 	 * Удаляет все таблицы из базы данных
-	 * @throws SQLException в случае ошибки при удалении одной из таблиц все таблицы восстанавливаются
+	 * @throws SQLException в случае ошибки при удалении таблицы, кроме её отсутствия;
+	 * удалённые до неё таблицы не восстанавливаются: соединения работают в режиме автоподтверждения
 	 */
 	public void clear() throws SQLException {
 		String[] sqls = { "DROP TABLE Users" };
-		for (String sql : sqls)
-			try {
-				connection.createStatement().executeUpdate(sql);
-				if (debugMode)
-					System.out.print(sql);
-			} catch (SQLException sqle) {
-				System.out.println(sqle.getSQLState());
-				// 42Y55 - STATEMENT cannot be performed on TABLE because it does not exist
-				if (sqle.getSQLState() != "42Y55") {
-					connection.rollback();
-					throw sqle;
+		try (PooledConnection pooled = pool.borrow()) {
+			Connection connection = pooled.getConnection();
+			for (String sql : sqls)
+				try (Statement statement = connection.createStatement()) {
+					statement.executeUpdate(sql);
+					log.debug(sql);
+				} catch (SQLException sqle) {
+					log.warn("{} failed with SQL state {}", sql, sqle.getSQLState());
+					// 42Y55 - STATEMENT cannot be performed on TABLE because it does not exist
+					if (!"42Y55".equals(sqle.getSQLState()))
+						throw sqle;
 				}
-			}
+		}
 	}
 	
 	/**
@@ -160,37 +207,61 @@ public class DatabaseConnector {
 	 * @param pswdHash хеш пароля
 	 */
 	public void addUser(String name, byte[] pswdHash) {
-		final String sql = "INSERT INTO USERS(username, password_hash, storage_path) VALUES(?, ?, ?)";
-		try {
-			final PreparedStatement preparedStatement = connection.prepareStatement(sql);
+		long start = System.nanoTime();
+		try (PooledConnection connection = pool.borrow()) {
+			final PreparedStatement preparedStatement = connection.prepare(SQL_INSERT_USER);
 			preparedStatement.setString(1, name);
 			preparedStatement.setBytes(2, pswdHash);
 			preparedStatement.setNull(3, Types.VARCHAR);
 			preparedStatement.executeUpdate();
-			connection.commit();
 		} catch (SQLException e) {
-			e.printStackTrace();
+			log.error("Failed to add user {}", name, e);
+		} finally {
+			insertUserTime.recordSince(start);
+			userCache.invalidate(name);
 		}
 	}
 
 	/**
-	 * Получение представления пользователя
+	 * Получение представления пользователя; повторные запросы обслуживаются из кеша
 	 * @param name имя пользователя
 	 * @return представление пользователя, null если пользователя не существует
 	 */
 	public User getUser(String name) {
+		UserCache cache = userCache;
+		User cached = cache.get(name);
+		if (cached != null)
+			return cached;
+		long loadStamp = cache.startLoad();
+		User result = loadUser(name);
+		if (result != null)
+			cache.put(result, loadStamp);
+		return result;
+	}
+
+	/**
+	 * Чтение пользователя из базы данных в обход кеша
+	 * @param name имя пользователя
+	 * @return представление пользователя, null если пользователя не существует
+	 */
+	private User loadUser(String name) {
 		User result = null;
-		final String sql = "SELECT * FROM Users WHERE username = \'" + name + "\'";
-		try {
-			ResultSet rs = connection.createStatement().executeQuery(sql);
-			if (rs.next()) {
-				result = new User();
-				result.setName(rs.getString("username"));
-				result.setPasswordHash(rs.getBytes("password_hash"));
-				result.setStoragePath(rs.getString("storage_path"));
+		long start = System.nanoTime();
+		try (PooledConnection connection = pool.borrow()) {
+			final PreparedStatement preparedStatement = connection.prepare(SQL_SELECT_USER);
+			preparedStatement.setString(1, name);
+			try (ResultSet rs = preparedStatement.executeQuery()) {
+				if (rs.next()) {
+					result = new User();
+					result.setName(rs.getString(1));
+					result.setPasswordHash(rs.getBytes(2));
+					result.setStoragePath(rs.getString(3));
+				}
 			}
 		} catch(SQLException e) {
-			e.printStackTrace();
+			log.error("Failed to load user {}", name, e);
+		} finally {
+			selectUserTime.recordSince(start);
 		}
 		return result;
 	}
@@ -203,15 +274,17 @@ public class DatabaseConnector {
 	 */
 	public void updateUserPassword(String name, byte[] newPswdHash) throws IdleUpdateException
 	{
-		StringBuilder hexString = new StringBuilder("x\'");
-		for(byte b : newPswdHash)
-			hexString.append(String.format("%02x", b));
-		String newPswdHashHexString = hexString.append('\'').toString(); // byte array in string format, like x'4f33901a'
-		String sql = "UPDATE Users SET password_hash = " + newPswdHashHexString + " WHERE username = \'" + name + "\'";
-		try {
-			performUpdate(sql);
+		long start = System.nanoTime();
+		try (PooledConnection connection = pool.borrow()) {
+			final PreparedStatement preparedStatement = connection.prepare(SQL_UPDATE_PASSWORD);
+			preparedStatement.setBytes(1, newPswdHash);
+			preparedStatement.setString(2, name);
+			performUpdate(preparedStatement);
 		} catch(SQLException e) {
-			e.printStackTrace();
+			log.error("Failed to update password of user {}", name, e);
+		} finally {
+			updatePasswordTime.recordSince(start);
+			userCache.invalidate(name);
 		}
 	}
 
@@ -222,18 +295,22 @@ public class DatabaseConnector {
 	 * @throws IdleUpdateException если пользователя не существует или новое имя файла совпадает со старым
 	 */
 	public void updateUserStoragePath(String name, String newStoragePath) throws IdleUpdateException {
-		String sql = "UPDATE Users SET storage_path=? WHERE username = \'" + name + "\'";
-		try {
-			PreparedStatement preparedStatement = connection.prepareStatement(sql);
+		long start = System.nanoTime();
+		try (PooledConnection connection = pool.borrow()) {
+			PreparedStatement preparedStatement = connection.prepare(SQL_UPDATE_STORAGE_PATH);
 			if (newStoragePath == null)
 				preparedStatement.setNull(1,  Types.VARCHAR);
 			else
 				preparedStatement.setString(1, newStoragePath);
+			preparedStatement.setString(2, name);
 			int res = preparedStatement.executeUpdate();
 			if (res == 0)
 				throw new IdleUpdateException();
 		} catch(SQLException e) {
-			e.printStackTrace();
+			log.error("Failed to update storage path of user {}", name, e);
+		} finally {
+			updateStoragePathTime.recordSince(start);
+			userCache.invalidate(name);
 		}
 	}
 
@@ -243,26 +320,28 @@ public class DatabaseConnector {
 	 * @throws IdleUpdateException если пользователя не существует (нечего удалять)
 	 */
 	public void deleteUser(String name) throws SQLException, IdleUpdateException {
-		String sql = "DELETE FROM Users WHERE username = \'" + name + "\'";
-		int result = connection.createStatement().executeUpdate(sql);
-		if (result == 0)
-			throw new IdleUpdateException("No deletes where made");
-		else
-			connection.commit();
+		long start = System.nanoTime();
+		try (PooledConnection connection = pool.borrow()) {
+			final PreparedStatement preparedStatement = connection.prepare(SQL_DELETE_USER);
+			preparedStatement.setString(1, name);
+			if (preparedStatement.executeUpdate() == 0)
+				throw new IdleUpdateException("No deletes where made");
+		} finally {
+			deleteUserTime.recordSince(start);
+			userCache.invalidate(name);
+		}
 	}
 
 	/**
 	 * Отправляет update-запрос на выполнение базе данных
-	 * @param sql запрос
+	 * @param statement подготовленный запрос с заданными параметрами
 	 * @throws SQLException при ошибке в запросе
 	 * @throws IdleUpdateException если запрос не повлёк изменений в базе
 	 */
-	private void performUpdate(String sql) throws SQLException, IdleUpdateException {
-		int result = connection.createStatement().executeUpdate(sql);
+	private void performUpdate(PreparedStatement statement) throws SQLException, IdleUpdateException {
+		int result = statement.executeUpdate();
 		if (result == 0)
 			throw new IdleUpdateException("No updates where made");
-		else
-			connection.commit();
 	}
 	
 }
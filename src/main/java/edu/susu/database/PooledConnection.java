@@ -0,0 +1,66 @@
+package edu.susu.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.susu.logging.LogManager;
+import edu.susu.logging.Logger;
+
+/**
+ * Соединение из пула вместе с кешем подготовленных запросов. Закрытие возвращает соединение в пул,
+ * подготовленные запросы при этом остаются открытыми и используются повторно
+ */
+class PooledConnection implements AutoCloseable {
+
+	private static final Logger log = LogManager.getLogger(PooledConnection.class);
+
+	private final ConnectionPool pool;
+	private final Connection connection;
+	private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+	PooledConnection(ConnectionPool pool, Connection connection) {
+		this.pool = pool;
+		this.connection = connection;
+	}
+
+	Connection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * Возвращает подготовленный запрос, при первом обращении компилируя его
+	 * @param sql текст запроса
+	 * @return подготовленный запрос с очищенными параметрами
+	 */
+	PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement statement = statements.get(sql);
+		if (statement == null) {
+			statement = connection.prepareStatement(sql);
+			statements.put(sql, statement);
+		} else
+			statement.clearParameters();
+		return statement;
+	}
+
+	/**
+	 * Возвращает соединение в пул
+	 */
+	@Override
+	public void close() {
+		pool.release(this);
+	}
+
+	void closePhysically() {
+		try {
+			for (PreparedStatement statement : statements.values())
+				statement.close();
+			statements.clear();
+			connection.close();
+		} catch (SQLException e) {
+			log.warn("Failed to close database connection", e);
+		}
+	}
+}
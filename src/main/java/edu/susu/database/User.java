@@ -38,6 +38,17 @@ public class User implements Serializable {
 		return Arrays.equals(passwordHash, this.passwordHash);
 	}
 
+	/**
+	 * @return независимая копия представления пользователя
+	 */
+	public User copy() {
+		User copy = new User();
+		copy.username = username;
+		copy.passwordHash = passwordHash;
+		copy.storagePath = storagePath;
+		return copy;
+	}
+
 	public boolean equals(User that) {
 		return this.username.equals(that.username);
 	}
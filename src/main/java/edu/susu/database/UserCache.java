@@ -0,0 +1,116 @@
+package edu.susu.database;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Кеш представлений пользователей перед базой данных. Записи вытесняются по времени жизни
+ * и по числу (давно не запрашивавшиеся - первыми). Хранит и выдаёт копии,
+ * чтобы изменения объекта вызывающим кодом не попадали в кеш
+ */
+public class UserCache {
+
+	private static class CacheEntry {
+		final User user;
+		final long loadTime;
+
+		CacheEntry(User user, long loadTime) {
+			this.user = user;
+			this.loadTime = loadTime;
+		}
+	}
+
+	private final long timeToLiveNanos;
+	private final Map<String, CacheEntry> entries;
+	private long generation = 0; // меняется при каждой инвалидации, под монитором this
+
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+
+	/**
+	 * @param maxSize максимальное число записей
+	 * @param timeToLiveMillis время жизни записи, мс
+	 */
+	public UserCache(final int maxSize, long timeToLiveMillis) {
+		this.timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis);
+		this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Возвращает копию пользователя из кеша
+	 * @param name имя пользователя
+	 * @return копия представления, null если записи нет или она устарела
+	 */
+	User get(String name) {
+		CacheEntry entry;
+		synchronized (this) {
+			entry = entries.get(name);
+			if (entry != null && System.nanoTime() - entry.loadTime > timeToLiveNanos) {
+				entries.remove(name);
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			missCount.increment();
+			return null;
+		}
+		hitCount.increment();
+		return entry.user.copy();
+	}
+
+	/**
+	 * @return отметка, которую нужно передать в put после чтения из базы
+	 */
+	synchronized long startLoad() {
+		return generation;
+	}
+
+	/**
+	 * Помещает в кеш пользователя, прочитанного из базы. Запись отбрасывается,
+	 * если после начала чтения кеш инвалидировался: прочитанные данные могли устареть
+	 * @param user представление пользователя
+	 * @param loadStamp отметка, полученная из startLoad до чтения
+	 */
+	void put(User user, long loadStamp) {
+		CacheEntry entry = new CacheEntry(user.copy(), System.nanoTime());
+		synchronized (this) {
+			if (loadStamp == generation)
+				entries.put(user.getName(), entry);
+		}
+	}
+
+	/**
+	 * Удаляет запись о пользователе; вызывается при любом изменении пользователя в базе
+	 * @param name имя пользователя
+	 */
+	synchronized void invalidate(String name) {
+		generation++;
+		entries.remove(name);
+	}
+
+	public synchronized void clear() {
+		generation++;
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	public long getMissCount() {
+		return missCount.sum();
+	}
+}
@@ -0,0 +1,10 @@
+package edu.susu.exception;
+
+public class QuotaExceededException extends UploadLimitExceededException {
+
+	private static final long serialVersionUID = 1L;
+
+	public QuotaExceededException(String message) {
+		super(message);
+	}
+}
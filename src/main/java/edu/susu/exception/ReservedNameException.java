@@ -0,0 +1,7 @@
+package edu.susu.exception;
+
+public class ReservedNameException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+}
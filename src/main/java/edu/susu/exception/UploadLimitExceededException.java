@@ -0,0 +1,14 @@
+package edu.susu.exception;
+
+public class UploadLimitExceededException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public UploadLimitExceededException() {
+		super();
+	}
+
+	public UploadLimitExceededException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,153 @@
+package edu.susu.logging;
+
+import java.io.IOException;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Кольцевой буфер записей журнала и фоновый поток, который пачками переводит их в текст и пишет в вывод.
+ * Потоки, пишущие в журнал, только занимают ячейку сравнением с обменом и кладут в неё запись:
+ * ни блокировок, ни ввода-вывода. Если буфер полон, записи DEBUG и INFO отбрасываются (их число
+ * затем сообщается в журнал), а WARN и ERROR ждут, пока фоновый поток освободит место
+ */
+final class AsyncAppender {
+
+    private static final int MAX_BATCH = 512;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final AtomicReferenceArray<LogEvent> ring;
+    private final int mask;
+    // следующая свободная ячейка; старший бит выставляет фоновый поток, завершаясь, и после этого ячейки не выдаются
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0; // следующая непрочитанная ячейка; меняет только фоновый поток
+    private final LongAdder dropped = new LongAdder(); // ещё не сообщённые в журнал
+    private final LongAdder droppedTotal = new LongAdder();
+    private final LogOutput output;
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    /**
+     * @param capacity вместимость буфера, округляется вверх до степени двойки
+     * @param output получатель записей; закрывается при остановке
+     */
+    AsyncAppender(int capacity, LogOutput output) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.output = output;
+        this.writer = new Thread(this::drainLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return false, если буфер уже закрыт и запись нужно отдать другому буферу;
+     * запись, отброшенная из-за переполнения, считается принятой
+     */
+    boolean publish(LogEvent event) {
+        while (true) {
+            long slot = tail.get();
+            if (slot < 0)
+                return false;
+            if (slot - head > mask) {
+                // буфер закрывается только пустым, так что WARN и ERROR дождутся места и после остановки
+                if (event.level.compareTo(Level.WARN) < 0) {
+                    dropped.increment();
+                    droppedTotal.increment();
+                    return true;
+                }
+                Thread.yield();
+                continue;
+            }
+            if (tail.compareAndSet(slot, slot + 1)) {
+                ring.lazySet((int) slot & mask, event);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Записывает всё, что уже в буфере, и закрывает вывод. Запись, начатая до закрытия буфера,
+     * либо успевает попасть в вывод, либо отклоняется {@link #publish}
+     */
+    void shutdown() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    long getDroppedCount() {
+        return droppedTotal.sum();
+    }
+
+    private void drainLoop() {
+        StringBuilder text = new StringBuilder(1024);
+        long position = head;
+        while (true) {
+            int batch = 0;
+            while (batch < MAX_BATCH && position != tail.get()) {
+                int index = (int) position & mask;
+                LogEvent event = ring.get(index);
+                if (event == null) {
+                    Thread.yield(); // ячейка занята, но запись в неё ещё не положена
+                    continue;
+                }
+                ring.lazySet(index, null);
+                head = ++position;
+                text.setLength(0);
+                event.appendTo(text, zone);
+                write(text);
+                batch++;
+            }
+            long lost = dropped.sumThenReset();
+            if (lost > 0) {
+                text.setLength(0);
+                new LogEvent(Level.WARN, "log", lost + " log events dropped: buffer full", null, null).appendTo(text, zone);
+                write(text);
+            }
+            if (batch > 0 || lost > 0) {
+                flush();
+                continue;
+            }
+            // буфер закрывается, только если в нём не осталось записей; иначе они дописываются
+            if (!running && tail.compareAndSet(position, position | Long.MIN_VALUE))
+                break;
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        try {
+            output.close();
+        } catch (IOException e) {
+            reportFailure(e);
+        }
+    }
+
+    private void write(CharSequence text) {
+        try {
+            output.write(text);
+        } catch (IOException e) {
+            reportFailure(e);
+        }
+    }
+
+    private void flush() {
+        try {
+            output.flush();
+        } catch (IOException e) {
+            reportFailure(e);
+        }
+    }
+
+    private static void reportFailure(IOException e) {
+        // журналу некуда писать; консоль - последнее средство
+        System.err.println("Log output failed: " + e);
+    }
+}
@@ -0,0 +1,30 @@
+package edu.susu.logging;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Вывод журнала в стандартный поток вывода (в журнал контейнера сервлетов)
+ */
+class ConsoleOutput implements LogOutput {
+
+    private final Writer writer = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+
+    @Override
+    public void write(CharSequence event) throws IOException {
+        writer.append(event);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.flush(); // System.out не закрывается
+    }
+}
@@ -0,0 +1,22 @@
+package edu.susu.logging;
+
+/**
+ * Уровни важности записей журнала в порядке возрастания
+ */
+public enum Level {
+    DEBUG, INFO, WARN, ERROR, OFF;
+
+    /**
+     * @param name имя уровня без учёта регистра
+     * @param defaultLevel уровень, если имя не задано или не распознано
+     */
+    public static Level parse(String name, Level defaultLevel) {
+        if (name == null || name.trim().isEmpty())
+            return defaultLevel;
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultLevel;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package edu.susu.logging;
+
+import java.util.Arrays;
+
+/**
+ * Поля текущего потока, добавляемые к каждой его записи журнала: пользователь, маршрут, сеанс, задание.
+ * Поток, взявший работу (запрос, задание), задаёт поля в начале и очищает их в конце
+ */
+public final class LogContext {
+
+    private static final ThreadLocal<LogContext> current = ThreadLocal.withInitial(LogContext::new);
+
+    // пары ключ-значение подряд; полей немного, поэтому поиск линейный
+    private String[] fields = new String[8];
+    private int size = 0;
+
+    private LogContext() {
+    }
+
+    /**
+     * Задаёт поле потока
+     * @param key имя поля
+     * @param value значение; null удаляет поле
+     */
+    public static void put(String key, String value) {
+        if (value == null) {
+            remove(key);
+            return;
+        }
+        LogContext context = current.get();
+        for (int i = 0; i < context.size; i += 2)
+            if (context.fields[i].equals(key)) {
+                context.fields[i + 1] = value;
+                return;
+            }
+        if (context.size == context.fields.length)
+            context.fields = Arrays.copyOf(context.fields, context.size * 2);
+        context.fields[context.size++] = key;
+        context.fields[context.size++] = value;
+    }
+
+    public static void remove(String key) {
+        LogContext context = current.get();
+        for (int i = 0; i < context.size; i += 2)
+            if (context.fields[i].equals(key)) {
+                System.arraycopy(context.fields, i + 2, context.fields, i, context.size - i - 2);
+                context.size -= 2;
+                context.fields[context.size] = null;
+                context.fields[context.size + 1] = null;
+                return;
+            }
+    }
+
+    public static void clear() {
+        LogContext context = current.get();
+        Arrays.fill(context.fields, 0, context.size, null);
+        context.size = 0;
+    }
+
+    /**
+     * @return копия полей потока (пары ключ-значение), null если полей нет
+     */
+    static String[] snapshot() {
+        LogContext context = current.get();
+        return (context.size == 0) ? null : Arrays.copyOf(context.fields, context.size);
+    }
+}
@@ -0,0 +1,78 @@
+package edu.susu.logging;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Запись журнала. Создаётся в потоке, который пишет в журнал, а в текст превращается
+ * фоновым потоком: подстановка аргументов и форматирование времени не задерживают запрос
+ */
+final class LogEvent {
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    final long timeMillis;
+    final Level level;
+    final String loggerName;
+    final String threadName;
+    final String message;
+    final Object[] arguments;
+    final Throwable thrown;
+    final String[] context;
+
+    LogEvent(Level level, String loggerName, String message, Object[] arguments, Throwable thrown) {
+        this.timeMillis = System.currentTimeMillis();
+        this.level = level;
+        this.loggerName = loggerName;
+        this.threadName = Thread.currentThread().getName();
+        this.message = message;
+        this.arguments = arguments;
+        this.thrown = thrown;
+        this.context = LogContext.snapshot();
+    }
+
+    /**
+     * Дописывает запись строкой вида {@code 2017-05-02 12:00:00.000 INFO  [поток] Логгер - сообщение ключ=значение}
+     * и, если есть исключение, его стек
+     */
+    void appendTo(StringBuilder out, ZoneId zone) {
+        TIME_FORMAT.formatTo(LocalDateTime.ofInstant(Instant.ofEpochMilli(timeMillis), zone), out);
+        out.append(' ').append(level.name());
+        for (int i = level.name().length(); i < 5; i++)
+            out.append(' ');
+        out.append(" [").append(threadName).append("] ").append(loggerName).append(" - ");
+        appendMessage(out);
+        if (context != null)
+            for (int i = 0; i < context.length; i += 2)
+                out.append(' ').append(context[i]).append('=').append(context[i + 1]);
+        out.append(System.lineSeparator());
+        if (thrown != null) {
+            StringWriter trace = new StringWriter();
+            thrown.printStackTrace(new PrintWriter(trace));
+            out.append(trace.getBuffer());
+        }
+    }
+
+    /**
+     * Подставляет аргументы на места {} по порядку; лишние аргументы отбрасываются
+     */
+    private void appendMessage(StringBuilder out) {
+        if (arguments == null) {
+            out.append(message);
+            return;
+        }
+        int from = 0, argument = 0;
+        while (argument < arguments.length) {
+            int placeholder = message.indexOf("{}", from);
+            if (placeholder < 0)
+                break;
+            out.append(message, from, placeholder).append(arguments[argument++]);
+            from = placeholder + 2;
+        }
+        out.append(message, from, message.length());
+    }
+}
@@ -0,0 +1,94 @@
+package edu.susu.logging;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.ZoneId;
+
+/**
+ * Настройка журнала сервиса. До вызова configure записи уровня INFO и выше асинхронно
+ * выводятся в консоль, так что журналом можно пользоваться с самого запуска
+ */
+public final class LogManager {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    public static final String DEFAULT_FILE_NAME = "cryptoann";
+
+    private static volatile Level threshold = Level.INFO;
+    private static volatile AsyncAppender appender = new AsyncAppender(DEFAULT_BUFFER_SIZE, new ConsoleOutput());
+
+    private LogManager() {
+    }
+
+    /**
+     * @param type класс, именем которого подписываются записи
+     */
+    public static Logger getLogger(Class<?> type) {
+        return new Logger(type.getSimpleName());
+    }
+
+    public static Logger getLogger(String name) {
+        return new Logger(name);
+    }
+
+    /**
+     * Выводит журнал в консоль
+     * @param level минимальный уровень записей
+     * @param bufferSize вместимость буфера записей
+     */
+    public static void configureConsole(Level level, int bufferSize) {
+        replaceAppender(level, new AsyncAppender(bufferSize, new ConsoleOutput()));
+    }
+
+    /**
+     * Выводит журнал в файлы с ротацией по суткам и размеру
+     * @param level минимальный уровень записей
+     * @param directory директория журналов
+     * @param maxFileBytes размер файла, после которого он ротируется; 0 - только по смене суток
+     * @param maxFiles сколько ротированных файлов хранить; 0 - все
+     * @param bufferSize вместимость буфера записей
+     * @throws IOException если директорию или файл журнала не удалось создать
+     */
+    public static void configureFiles(Level level, Path directory, long maxFileBytes, int maxFiles, int bufferSize) throws IOException {
+        LogOutput output = new RollingFileOutput(directory, DEFAULT_FILE_NAME, maxFileBytes, maxFiles, ZoneId.systemDefault());
+        replaceAppender(level, new AsyncAppender(bufferSize, output));
+    }
+
+    /**
+     * Дописывает оставшиеся записи и останавливает поток журнала; более поздние записи отбрасываются.
+     * Вызывается при остановке приложения: новый поток здесь пережил бы выгрузку приложения
+     */
+    public static synchronized void shutdown() {
+        appender.shutdown();
+    }
+
+    /**
+     * @return сколько записей отброшено из-за переполнения буфера с момента настройки
+     */
+    public static long getDroppedCount() {
+        return appender.getDroppedCount();
+    }
+
+    private static synchronized void replaceAppender(Level level, AsyncAppender replacement) {
+        AsyncAppender previous = appender;
+        appender = replacement;
+        threshold = level;
+        previous.shutdown();
+    }
+
+    static boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    /**
+     * Отдаёт запись текущему буферу; если буфер закрыли, пока запись отдавалась, - его замене
+     */
+    static void publish(LogEvent event) {
+        AsyncAppender current = appender;
+        while (!current.publish(event)) {
+            AsyncAppender replacement = appender;
+            if (replacement == current)
+                return; // журнал остановлен
+            current = replacement;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package edu.susu.logging;
+
+import java.io.IOException;
+
+/**
+ * Получатель готовых записей журнала; вызывается только фоновым потоком журнала
+ */
+interface LogOutput {
+
+    /**
+     * @param event одна или несколько строк записи вместе с переводом строки
+     */
+    void write(CharSequence event) throws IOException;
+
+    /**
+     * Вызывается после каждой пачки записей
+     */
+    void flush() throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,117 @@
+package edu.susu.logging;
+
+/**
+ * Именованный журнал. Уровень проверяется до создания записи, поэтому отключённые вызовы
+ * стоят одного сравнения. Аргументы подставляются на места {} в фоновом потоке уже после вызова,
+ * так что передавать стоит неизменяемые значения: строки, числа, идентификаторы
+ */
+public final class Logger {
+
+    private final String name;
+
+    Logger(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isEnabled(Level level) {
+        return LogManager.isEnabled(level);
+    }
+
+    public boolean isDebugEnabled() {
+        return LogManager.isEnabled(Level.DEBUG);
+    }
+
+    public void debug(String message) {
+        if (LogManager.isEnabled(Level.DEBUG))
+            LogManager.publish(new LogEvent(Level.DEBUG, name, message, null, null));
+    }
+
+    public void debug(String format, Object argument) {
+        if (LogManager.isEnabled(Level.DEBUG))
+            LogManager.publish(new LogEvent(Level.DEBUG, name, format, new Object[]{argument}, null));
+    }
+
+    public void debug(String format, Object first, Object second) {
+        if (LogManager.isEnabled(Level.DEBUG))
+            LogManager.publish(new LogEvent(Level.DEBUG, name, format, new Object[]{first, second}, null));
+    }
+
+    public void info(String message) {
+        if (LogManager.isEnabled(Level.INFO))
+            LogManager.publish(new LogEvent(Level.INFO, name, message, null, null));
+    }
+
+    public void info(String format, Object argument) {
+        if (LogManager.isEnabled(Level.INFO))
+            LogManager.publish(new LogEvent(Level.INFO, name, format, new Object[]{argument}, null));
+    }
+
+    public void info(String format, Object first, Object second) {
+        if (LogManager.isEnabled(Level.INFO))
+            LogManager.publish(new LogEvent(Level.INFO, name, format, new Object[]{first, second}, null));
+    }
+
+    public void info(String format, Object... arguments) {
+        if (LogManager.isEnabled(Level.INFO))
+            LogManager.publish(new LogEvent(Level.INFO, name, format, arguments, null));
+    }
+
+    public void warn(String message) {
+        if (LogManager.isEnabled(Level.WARN))
+            LogManager.publish(new LogEvent(Level.WARN, name, message, null, null));
+    }
+
+    public void warn(String format, Object argument) {
+        if (LogManager.isEnabled(Level.WARN))
+            LogManager.publish(new LogEvent(Level.WARN, name, format, new Object[]{argument}, null));
+    }
+
+    public void warn(String format, Object first, Object second) {
+        if (LogManager.isEnabled(Level.WARN))
+            LogManager.publish(new LogEvent(Level.WARN, name, format, new Object[]{first, second}, null));
+    }
+
+    public void warn(String message, Throwable thrown) {
+        if (LogManager.isEnabled(Level.WARN))
+            LogManager.publish(new LogEvent(Level.WARN, name, message, null, thrown));
+    }
+
+    public void warn(String format, Object argument, Throwable thrown) {
+        if (LogManager.isEnabled(Level.WARN))
+            LogManager.publish(new LogEvent(Level.WARN, name, format, new Object[]{argument}, thrown));
+    }
+
+    public void warn(String format, Object first, Object second, Throwable thrown) {
+        if (LogManager.isEnabled(Level.WARN))
+            LogManager.publish(new LogEvent(Level.WARN, name, format, new Object[]{first, second}, thrown));
+    }
+
+    public void error(String message) {
+        if (LogManager.isEnabled(Level.ERROR))
+            LogManager.publish(new LogEvent(Level.ERROR, name, message, null, null));
+    }
+
+    public void error(String format, Object argument) {
+        if (LogManager.isEnabled(Level.ERROR))
+            LogManager.publish(new LogEvent(Level.ERROR, name, format, new Object[]{argument}, null));
+    }
+
+    public void error(String message, Throwable thrown) {
+        if (LogManager.isEnabled(Level.ERROR))
+            LogManager.publish(new LogEvent(Level.ERROR, name, message, null, thrown));
+    }
+
+    public void error(String format, Object argument, Throwable thrown) {
+        if (LogManager.isEnabled(Level.ERROR))
+            LogManager.publish(new LogEvent(Level.ERROR, name, format, new Object[]{argument}, thrown));
+    }
+
+    public void error(String format, Object first, Object second, Throwable thrown) {
+        if (LogManager.isEnabled(Level.ERROR))
+            LogManager.publish(new LogEvent(Level.ERROR, name, format, new Object[]{first, second}, thrown));
+    }
+}
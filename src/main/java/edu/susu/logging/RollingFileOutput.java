@@ -0,0 +1,111 @@
+package edu.susu.logging;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Вывод журнала в файл {@code <имя>.log} с ротацией: при смене суток или превышении размера
+ * файл переименовывается в {@code <имя>.<дата>.<номер>.log}, а самые старые из переименованных удаляются
+ */
+class RollingFileOutput implements LogOutput {
+
+    private final Path directory;
+    private final String baseName;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final ZoneId zone;
+
+    private Writer writer;
+    private long size; // приблизительный: считаются символы, а не байты
+    private LocalDate day;
+    private long nextDayMillis;
+
+    /**
+     * @param directory директория журналов
+     * @param baseName имя файла без расширения
+     * @param maxFileBytes размер, после которого файл ротируется; 0 - только по смене суток
+     * @param maxFiles сколько ротированных файлов хранить; 0 - все
+     */
+    RollingFileOutput(Path directory, String baseName, long maxFileBytes, int maxFiles, ZoneId zone) throws IOException {
+        this.directory = directory;
+        this.baseName = baseName;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.zone = zone;
+        Files.createDirectories(directory);
+        open();
+    }
+
+    @Override
+    public void write(CharSequence event) throws IOException {
+        if ((maxFileBytes > 0 && size >= maxFileBytes) || System.currentTimeMillis() >= nextDayMillis)
+            rotate();
+        writer.append(event);
+        size += event.length();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private Path currentFile() {
+        return directory.resolve(baseName + ".log");
+    }
+
+    private void open() throws IOException {
+        Path file = currentFile();
+        if (Files.exists(file)) {
+            size = Files.size(file);
+            day = Instant.ofEpochMilli(Files.getLastModifiedTime(file).toMillis()).atZone(zone).toLocalDate();
+        } else {
+            size = 0;
+            day = LocalDate.now(zone);
+        }
+        nextDayMillis = day.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    private void rotate() throws IOException {
+        writer.close();
+        Path target;
+        int number = 1;
+        do {
+            target = directory.resolve(baseName + "." + day + "." + number++ + ".log");
+        } while (Files.exists(target));
+        Files.move(currentFile(), target);
+        deleteOldFiles();
+        open();
+    }
+
+    private void deleteOldFiles() {
+        if (maxFiles <= 0)
+            return;
+        String current = currentFile().getFileName().toString();
+        File[] rotated = directory.toFile().listFiles((dir, name) ->
+                name.startsWith(baseName + ".") && name.endsWith(".log") && !name.equals(current));
+        if (rotated == null || rotated.length <= maxFiles)
+            return;
+        Arrays.sort(rotated, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < rotated.length - maxFiles; i++)
+            rotated[i].delete();
+    }
+}
@@ -0,0 +1,68 @@
+package edu.susu.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма неотрицательных величин (обычно длительностей в наносекундах) с интервалами,
+ * растущими степенями двойки: значение попадает в интервал по номеру старшего бита.
+ * Относительная погрешность не больше двух раз, зато запись - это подсчёт ведущих нулей
+ * и два неблокирующих сложения, без выделения памяти и блокировок
+ */
+public class Histogram {
+
+    private static final int BUCKET_COUNT = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+    private final LongAdder sum = new LongAdder();
+
+    Histogram() {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    /**
+     * @param value значение; отрицательные считаются нулём
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        buckets[bucketIndex(value)].increment();
+        sum.add(value);
+    }
+
+    /**
+     * Записывает время, прошедшее с момента start
+     * @param startNanos значение System.nanoTime() в начале измерения
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return интервал, в который попадает значение: 0 для нуля, иначе k для значений из [2^(k-1), 2^k)
+     */
+    static int bucketIndex(long value) {
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets)
+            count += bucket.sum();
+        return count;
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return число значений в каждом интервале; k-й элемент - значения меньше 2^k и не меньше 2^(k-1)
+     */
+    long[] snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            counts[i] = buckets[i].sum();
+        return counts;
+    }
+}
@@ -0,0 +1,66 @@
+package edu.susu.metrics;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Метрика с именем и набором меток: по экземпляру счётчика или гистограммы на каждое сочетание значений меток.
+ * Экземпляры создаются при первом обращении; на горячих путях их стоит получать один раз и хранить
+ * @param <T> LongAdder для счётчиков, Histogram для гистограмм
+ */
+public class MetricFamily<T> {
+
+    enum Type {
+        COUNTER("counter"), GAUGE("gauge"), HISTOGRAM("histogram");
+
+        final String exposition;
+
+        Type(String exposition) {
+            this.exposition = exposition;
+        }
+    }
+
+    final String name;
+    final String help;
+    final Type type;
+    final String[] labelNames;
+    private final Supplier<T> factory;
+    final Map<List<String>, T> children = new ConcurrentHashMap<>();
+
+    MetricFamily(String name, String help, Type type, String[] labelNames, Supplier<T> factory) {
+        this.name = name;
+        this.help = help;
+        this.type = type;
+        this.labelNames = labelNames.clone();
+        this.factory = factory;
+    }
+
+    /**
+     * @param labelValues значения меток в порядке их объявления
+     * @return экземпляр метрики для заданных значений
+     * @throws IllegalArgumentException если число значений не совпадает с числом меток
+     */
+    public T labels(String... labelValues) {
+        if (labelValues.length != labelNames.length)
+            throw new IllegalArgumentException(name + " expects " + labelNames.length + " label values");
+        List<String> key = Arrays.asList(labelValues);
+        T child = children.get(key);
+        if (child == null)
+            child = children.computeIfAbsent(Arrays.asList(labelValues.clone()), values -> factory.get());
+        return child;
+    }
+
+    /**
+     * @return экземпляр метрики без меток
+     */
+    public T get() {
+        return labels();
+    }
+
+    boolean isCompatible(Type type, String[] labelNames) {
+        return this.type == type && Arrays.equals(this.labelNames, labelNames);
+    }
+}
@@ -0,0 +1,199 @@
+package edu.susu.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Реестр метрик сервиса и их выдача в текстовом формате Prometheus.
+ * Счётчики и гистограммы обновляются вызывающим кодом; показатели (размеры пулов, кешей)
+ * и счётчики, которые компоненты уже ведут сами, читаются функциями в момент выдачи
+ */
+public class MetricRegistry {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /** Выдаваемые границы гистограмм: от 2^14 нс (16 мкс) до 2^38 нс (4,5 минуты) */
+    private static final int FIRST_EXPOSED_BUCKET = 14;
+    private static final int LAST_EXPOSED_BUCKET = 38;
+
+    private static final MetricRegistry defaultRegistry = new MetricRegistry();
+
+    private final Map<String, MetricFamily<?>> families = new ConcurrentSkipListMap<>();
+
+    /**
+     * @return общий реестр сервиса
+     */
+    public static MetricRegistry getDefault() {
+        return defaultRegistry;
+    }
+
+    /**
+     * Объявляет счётчик; повторное объявление возвращает тот же счётчик
+     * @param name имя метрики, по соглашению Prometheus оканчивается на _total
+     * @param help описание
+     * @param labelNames имена меток
+     * @throws IllegalArgumentException если под этим именем объявлена метрика другого вида
+     */
+    public MetricFamily<LongAdder> counter(String name, String help, String... labelNames) {
+        return register(name, help, MetricFamily.Type.COUNTER, labelNames, LongAdder::new);
+    }
+
+    /**
+     * Объявляет гистограмму длительностей: значения записываются в наносекундах, выдаются в секундах
+     * @param name имя метрики, по соглашению Prometheus оканчивается на _seconds
+     * @param help описание
+     * @param labelNames имена меток
+     * @throws IllegalArgumentException если под этим именем объявлена метрика другого вида
+     */
+    public MetricFamily<Histogram> histogram(String name, String help, String... labelNames) {
+        return register(name, help, MetricFamily.Type.HISTOGRAM, labelNames, Histogram::new);
+    }
+
+    /**
+     * Объявляет показатель, значение которого читается функцией при выдаче; заменяет прежнюю функцию
+     * @param name имя метрики
+     * @param help описание
+     * @param value функция, возвращающая текущее значение
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        registerFunction(name, help, MetricFamily.Type.GAUGE, value);
+    }
+
+    /**
+     * Объявляет счётчик, который ведёт сам компонент; заменяет прежнюю функцию
+     * @param name имя метрики
+     * @param help описание
+     * @param value функция, возвращающая накопленное значение
+     */
+    public void counterFunction(String name, String help, LongSupplier value) {
+        registerFunction(name, help, MetricFamily.Type.COUNTER, value);
+    }
+
+    /**
+     * Удаляет метрику, например показатель остановленного компонента
+     * @param name имя метрики
+     */
+    public void remove(String name) {
+        families.remove(name);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> MetricFamily<T> register(String name, String help, MetricFamily.Type type, String[] labelNames,
+                                         Supplier<T> factory) {
+        MetricFamily<?> family = families.computeIfAbsent(name,
+                key -> new MetricFamily<>(name, help, type, labelNames, factory));
+        if (!family.isCompatible(type, labelNames))
+            throw new IllegalArgumentException("Metric " + name + " is already registered with another type or labels");
+        return (MetricFamily<T>) family;
+    }
+
+    private void registerFunction(String name, String help, MetricFamily.Type type, LongSupplier value) {
+        MetricFamily<LongSupplier> family = new MetricFamily<>(name, help, type, new String[0], () -> value);
+        family.get();
+        families.put(name, family);
+    }
+
+    /**
+     * @return все метрики в текстовом формате Prometheus
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        for (MetricFamily<?> family : families.values())
+            writeFamily(out, family);
+        return out.toString();
+    }
+
+    private static void writeFamily(StringBuilder out, MetricFamily<?> family) {
+        out.append("# HELP ").append(family.name).append(' ');
+        escape(out, family.help, false);
+        out.append('\n');
+        out.append("# TYPE ").append(family.name).append(' ').append(family.type.exposition).append('\n');
+        List<Map.Entry<List<String>, ?>> children = new ArrayList<>(family.children.entrySet());
+        Collections.sort(children, (a, b) -> a.getKey().toString().compareTo(b.getKey().toString()));
+        for (Map.Entry<List<String>, ?> child : children) {
+            Object metric = child.getValue();
+            if (metric instanceof Histogram) {
+                writeHistogram(out, family, child.getKey(), (Histogram) metric);
+                continue;
+            }
+            long value;
+            if (metric instanceof LongAdder)
+                value = ((LongAdder) metric).sum();
+            else {
+                try {
+                    value = ((LongSupplier) metric).getAsLong();
+                } catch (RuntimeException e) {
+                    continue; // компонент недоступен - значение пропускается
+                }
+            }
+            out.append(family.name);
+            writeLabels(out, family.labelNames, child.getKey(), null);
+            out.append(' ').append(value).append('\n');
+        }
+    }
+
+    private static void writeHistogram(StringBuilder out, MetricFamily<?> family, List<String> labelValues, Histogram histogram) {
+        long[] counts = histogram.snapshot();
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            if (i < FIRST_EXPOSED_BUCKET || i > LAST_EXPOSED_BUCKET)
+                continue;
+            out.append(family.name).append("_bucket");
+            writeLabels(out, family.labelNames, labelValues, Double.toString(nanosToSeconds(1L << i)));
+            out.append(' ').append(cumulative).append('\n');
+        }
+        out.append(family.name).append("_bucket");
+        writeLabels(out, family.labelNames, labelValues, "+Inf");
+        out.append(' ').append(cumulative).append('\n');
+        out.append(family.name).append("_sum");
+        writeLabels(out, family.labelNames, labelValues, null);
+        out.append(' ').append(nanosToSeconds(histogram.getSum())).append('\n');
+        out.append(family.name).append("_count");
+        writeLabels(out, family.labelNames, labelValues, null);
+        out.append(' ').append(cumulative).append('\n');
+    }
+
+    private static void writeLabels(StringBuilder out, String[] names, List<String> values, String le) {
+        if (names.length == 0 && le == null)
+            return;
+        out.append('{');
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0)
+                out.append(',');
+            out.append(names[i]).append("=\"");
+            escape(out, values.get(i), true);
+            out.append('"');
+        }
+        if (le != null) {
+            if (names.length > 0)
+                out.append(',');
+            out.append("le=\"").append(le).append('"');
+        }
+        out.append('}');
+    }
+
+    private static void escape(StringBuilder out, String text, boolean quotes) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\')
+                out.append("\\\\");
+            else if (c == '\n')
+                out.append("\\n");
+            else if (c == '"' && quotes)
+                out.append("\\\"");
+            else
+                out.append(c);
+        }
+    }
+
+    private static double nanosToSeconds(long nanos) {
+        return nanos / 1e9;
+    }
+}
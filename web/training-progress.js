@@ -0,0 +1,33 @@
+'use strict';
+
+( function ( document, window )
+{
+	var progress = document.getElementById( 'training-progress' );
+	if( !progress || !window.EventSource )
+		return;
+
+	var events = new EventSource( progress.getAttribute( 'data-events' ) );
+
+	events.addEventListener( 'progress', function( e )
+	{
+		var state = JSON.parse( e.data );
+		if( state.epoch == 0 )
+			return;
+		var text = 'Epoch ' + state.epoch + ( state.totalEpochs > 0 ? ' of ' + state.totalEpochs : '' );
+		if( state.loss !== null )
+			text += ', loss ' + state.loss;
+		progress.innerHTML = text;
+	});
+
+	events.addEventListener( 'done', function( e )
+	{
+		events.close();
+		window.location.href = progress.getAttribute( 'data-done' );
+	});
+
+	events.addEventListener( 'failed', function( e )
+	{
+		events.close();
+		progress.innerHTML = 'Training failed. <a href="' + e.data + '">Try another training set</a>';
+	});
+}( document, window ));